@@ -0,0 +1,317 @@
+package org.twdata.pkgscanner;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * What a scan needs from an archive: the names of its entries, and the contents of the entries that versions,
+ * declared packages and module descriptors are read from, see {@link #isMetadata(String)}.  The other entries are
+ * never read from an archive with random access, and skipped over in a stream.  Jars on the classpath are listed
+ * this way too, from the central directory the scan already read for their fingerprint, so they aren't opened as
+ * {@link JarFile}s just to be listed.  Their metadata entries are only read when first asked for, and charged to a
+ * {@link ByteBudget}, so a version decided without reading the jar costs nothing.
+ * <p/>
+ * Instances are not thread-safe.
+ */
+final class ArchiveContents {
+    private static final String MANIFEST = "META-INF/MANIFEST.MF";
+    private static final String MODULE_DESCRIPTOR = "module-info.class";
+    private static final String VERSIONS = "META-INF/versions/";
+    /** The release of the running JVM, which picks the module descriptor of a multi-release jar */
+    private static final int RUNTIME_RELEASE = runtimeRelease();
+
+    private final List<String> names;
+    /** The contents of the metadata entries, in the order of the archive, null for those not read yet */
+    private final Map<String, byte[]> metadata;
+    private final Loader loader;
+
+    private ArchiveContents(List<String> names, Map<String, byte[]> metadata, Loader loader) {
+        this.names = names;
+        this.metadata = metadata;
+        this.loader = loader;
+    }
+
+    /**
+     * Reads an archive with random access, going straight to its central directory
+     * @param source The archive
+     * @return The contents
+     * @throws IOException If the source can't be read or isn't a zip file
+     */
+    static ArchiveContents read(CentralDirectory.Source source) throws IOException {
+        CentralDirectory directory = CentralDirectory.read(source);
+        List<String> names = new ArrayList<String>(directory.getEntryCount());
+        Map<String, byte[]> metadata = new LinkedHashMap<String, byte[]>();
+        for (CentralDirectory.Entry entry : directory.getEntries()) {
+            names.add(entry.getName());
+            if (!entry.isDirectory() && isMetadata(entry.getName())) {
+                metadata.put(entry.getName(), CentralDirectory.readEntry(source, entry));
+            }
+        }
+        return new ArchiveContents(names, metadata, null);
+    }
+
+    /**
+     * Lists a jar whose central directory was already read, leaving its metadata entries to be read from the file
+     * when first asked for
+     * @param file The jar
+     * @param directory Its central directory
+     * @param budget Charged for the metadata entries read
+     * @return The contents
+     * @throws IOException If the directory is malformed
+     */
+    static ArchiveContents read(final File file, CentralDirectory directory, final ByteBudget budget)
+            throws IOException {
+        List<String> names = new ArrayList<String>(directory.getEntryCount());
+        Map<String, byte[]> metadata = new LinkedHashMap<String, byte[]>();
+        final Map<String, CentralDirectory.Entry> entries = new HashMap<String, CentralDirectory.Entry>();
+        for (CentralDirectory.Entry entry : directory.getEntries()) {
+            names.add(entry.getName());
+            if (!entry.isDirectory() && isMetadata(entry.getName())) {
+                metadata.put(entry.getName(), null);
+                entries.put(entry.getName(), entry);
+            }
+        }
+        return new ArchiveContents(names, metadata, new Loader() {
+            public byte[] load(String name) throws IOException {
+                CentralDirectory.Entry entry = entries.get(name);
+                reserve(budget, name, entry.getCompressedSize());
+                RandomAccessFile raf = new RandomAccessFile(file, "r");
+                try {
+                    return CentralDirectory.readEntry(CentralDirectory.source(raf), entry);
+                }
+                finally {
+                    raf.close();
+                }
+            }
+        });
+    }
+
+    /**
+     * Lists an opened jar, e.g. one whose central directory can't be read directly, leaving its metadata entries
+     * to be read when first asked for
+     * @param jarFile The jar, which must stay open as long as the contents are used
+     * @param budget Charged for the metadata entries read
+     * @return The contents
+     */
+    static ArchiveContents read(final JarFile jarFile, final ByteBudget budget) {
+        List<String> names = new ArrayList<String>(jarFile.size());
+        Map<String, byte[]> metadata = new LinkedHashMap<String, byte[]>();
+        for (Enumeration<JarEntry> e = jarFile.entries(); e.hasMoreElements(); ) {
+            JarEntry entry = e.nextElement();
+            names.add(entry.getName());
+            if (!entry.isDirectory() && isMetadata(entry.getName())) {
+                metadata.put(entry.getName(), null);
+            }
+        }
+        return new ArchiveContents(names, metadata, new Loader() {
+            public byte[] load(String name) throws IOException {
+                JarEntry entry = jarFile.getJarEntry(name);
+                reserve(budget, name, entry.getCompressedSize());
+                InputStream in = jarFile.getInputStream(entry);
+                try {
+                    return readFully(in);
+                }
+                finally {
+                    in.close();
+                }
+            }
+        });
+    }
+
+    private static void reserve(ByteBudget budget, String name, long bytes) throws IOException {
+        if (!budget.reserve(bytes)) {
+            throw new IOException("The scan budget ran out before reading " + name);
+        }
+    }
+
+    /**
+     * Reads an archive that can only be read forward, walking its local headers
+     * @param stream The archive, which is read to the end but not closed
+     * @return The contents
+     * @throws IOException If the stream can't be read or isn't a zip file
+     */
+    static ArchiveContents read(InputStream stream) throws IOException {
+        ZipInputStream in = new ZipInputStream(stream);
+        List<String> names = new ArrayList<String>();
+        Map<String, byte[]> metadata = new LinkedHashMap<String, byte[]>();
+        for (ZipEntry entry; (entry = in.getNextEntry()) != null; ) {
+            names.add(entry.getName());
+            if (!entry.isDirectory() && isMetadata(entry.getName())) {
+                metadata.put(entry.getName(), readFully(in));
+            }
+        }
+        if (names.isEmpty()) {
+            throw new IOException("Not a zip file, or one without entries");
+        }
+        return new ArchiveContents(names, metadata, null);
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        for (int count; (count = in.read(buffer)) != -1; ) {
+            bytes.write(buffer, 0, count);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * @return True if the entry is read for versions, declared packages or the module descriptor, including the
+     *         descriptors of the releases of a multi-release jar
+     */
+    static boolean isMetadata(String name) {
+        return MANIFEST.equals(name) || DeclaredPackages.INDEX_LIST.equals(name)
+                || MODULE_DESCRIPTOR.equals(name) || releaseOf(name) > 0
+                || name.startsWith("META-INF/maven/") && name.endsWith("/pom.properties");
+    }
+
+    /**
+     * @return The release of a {@code META-INF/versions/<release>/module-info.class} entry, or 0 for other entries
+     */
+    private static int releaseOf(String name) {
+        if (!name.startsWith(VERSIONS) || !name.endsWith("/" + MODULE_DESCRIPTOR)
+                || name.length() <= VERSIONS.length() + MODULE_DESCRIPTOR.length() + 1) {
+            return 0;
+        }
+        try {
+            return Integer.parseInt(name.substring(VERSIONS.length(), name.length() - MODULE_DESCRIPTOR.length() - 1));
+        }
+        catch (NumberFormatException ex) {
+            return 0;
+        }
+    }
+
+    private static int runtimeRelease() {
+        String version = System.getProperty("java.specification.version", "1.8");
+        try {
+            return Integer.parseInt(version.startsWith("1.") ? version.substring(2) : version);
+        }
+        catch (NumberFormatException ex) {
+            return 8;
+        }
+    }
+
+    /**
+     * @return The names of the entries, in the order of the archive
+     */
+    List<String> getNames() {
+        return Collections.unmodifiableList(names);
+    }
+
+    /**
+     * @return The packages of the entries, worked out as when listing a jar: files at the root count as packages of
+     *         their own, and directories are left out
+     */
+    Set<String> getPackages() {
+        Set<String> packages = new LinkedHashSet<String>();
+        for (String name : names) {
+            if (!name.endsWith("/")) {
+                int pos = name.lastIndexOf('/');
+                packages.add(pos < 0 ? name : PackageNames.fromPath(name, pos));
+            }
+        }
+        return packages;
+    }
+
+    /**
+     * @return The manifest, or null if the archive has none
+     * @throws IOException If the manifest is malformed
+     */
+    Manifest getManifest() throws IOException {
+        byte[] manifest = metadata(MANIFEST);
+        return manifest == null ? null : new Manifest(new ByteArrayInputStream(manifest));
+    }
+
+    /**
+     * @return The contents of the first {@code pom.properties}, or null if there is none
+     * @throws IOException If it can't be read
+     */
+    InputStream getPomProperties() throws IOException {
+        for (String name : metadata.keySet()) {
+            if (name.endsWith("/pom.properties")) {
+                return new ByteArrayInputStream(metadata(name));
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return The contents of the module descriptor, or null if there is none.  A multi-release jar gives the
+     *         descriptor of the latest release the running JVM supports, as {@link JarFile} does.
+     * @throws IOException If it can't be read
+     */
+    InputStream getModuleDescriptor() throws IOException {
+        String name = MODULE_DESCRIPTOR;
+        int latest = 0;
+        for (String entry : metadata.keySet()) {
+            int release = releaseOf(entry);
+            if (release > latest && release <= RUNTIME_RELEASE) {
+                latest = release;
+            }
+        }
+        if (latest > 0 && isMultiRelease()) {
+            name = VERSIONS + latest + "/" + MODULE_DESCRIPTOR;
+        }
+        byte[] descriptor = metadata(name);
+        return descriptor == null ? null : new ByteArrayInputStream(descriptor);
+    }
+
+    /**
+     * @return The contents of {@code META-INF/INDEX.LIST}, or null if there is none
+     * @throws IOException If it can't be read
+     */
+    InputStream getIndexList() throws IOException {
+        byte[] index = metadata(DeclaredPackages.INDEX_LIST);
+        return index == null ? null : new ByteArrayInputStream(index);
+    }
+
+    private boolean isMultiRelease() throws IOException {
+        Manifest manifest = getManifest();
+        return manifest != null && "true".equalsIgnoreCase(manifest.getMainAttributes().getValue("Multi-Release"));
+    }
+
+    /**
+     * @return The contents of a metadata entry, read now if they weren't yet, or null if there is no such entry
+     */
+    private byte[] metadata(String name) throws IOException {
+        byte[] contents = metadata.get(name);
+        if (contents == null && loader != null && metadata.containsKey(name)) {
+            contents = loader.load(name);
+            metadata.put(name, contents);
+        }
+        return contents;
+    }
+
+    /**
+     * Charged for the entries read from an archive when first asked for
+     */
+    interface ByteBudget {
+        /**
+         * @param bytes The bytes about to be read
+         * @return False if they can't be read
+         */
+        boolean reserve(long bytes);
+    }
+
+    private interface Loader {
+        byte[] load(String name) throws IOException;
+    }
+}
@@ -0,0 +1,135 @@
+package org.twdata.pkgscanner;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+/**
+ * Rescans the classloader of a plan in the background, e.g. after a deploy, without competing with live work on the
+ * same node.  Scans run one at a time on a single daemon thread of minimum priority, slowed down by a
+ * {@link ScanThrottle}, and yield between classpath elements.  The result of the last finished scan stays available
+ * from {@link #getResult()} while the next one runs.
+ * <p/>
+ * The scan itself only uses its one thread.  An {@link ImportCollector} in the plan parses classes on threads of its
+ * own, which should be limited with {@link ImportCollector#ImportCollector(int)}.  Instances are thread-safe.
+ * <pre>
+ * BackgroundScanner scanner = new BackgroundScanner(plan, new ScanThrottle(4 * 1024 * 1024));
+ * scanner.rescan();
+ * ...
+ * ScanResult result = scanner.getResult();
+ * </pre>
+ */
+public class BackgroundScanner {
+    private static final Logger log = LoggerFactory.getLogger(BackgroundScanner.class);
+
+    private final ScanPlan plan;
+    private final ScanThrottle throttle;
+    private final ExecutorService executor;
+    private volatile ScanResult result;
+    private CompletableFuture<ScanResult> running;
+
+    /**
+     * Constructs a scanner that doesn't limit the rate of its scans
+     * @param plan The plan to scan with
+     */
+    public BackgroundScanner(ScanPlan plan) {
+        this(plan, new ScanThrottle());
+    }
+
+    /**
+     * Constructs a scanner
+     * @param plan The plan to scan with
+     * @param throttle The throttle slowing down the scans
+     */
+    public BackgroundScanner(ScanPlan plan, ScanThrottle throttle) {
+        this.plan = plan;
+        this.throttle = throttle;
+        this.executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "pkgscanner-background");
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Starts a scan, unless one is already running
+     * @return The future result of the running scan.  Cancelling it stops the scan at its next jar entry or file, and
+     *         keeps the result of the previous scan.
+     */
+    public synchronized CompletableFuture<ScanResult> rescan() {
+        if (running != null && !running.isDone()) {
+            return running;
+        }
+        final CompletableFuture<ScanResult> future = plan.scanResultAsync(executor, throttle,
+                new Function<ScanResult, ScanResult>() {
+                    public ScanResult apply(ScanResult scanned) {
+                        // published before the future completes, so its callers see it
+                        result = scanned;
+                        return scanned;
+                    }
+                });
+        future.whenComplete(new BiConsumer<ScanResult, Throwable>() {
+            public void accept(ScanResult scanned, Throwable error) {
+                if (error != null && !future.isCancelled()) {
+                    log.error("Background package scan failed, keeping the previous result", error);
+                }
+            }
+        });
+        running = future;
+        return future;
+    }
+
+    /**
+     * @return The result of the last finished scan, or null if none has finished yet
+     */
+    public ScanResult getResult() {
+        return result;
+    }
+
+    /**
+     * @return True if a scan is running, even if paused
+     */
+    public synchronized boolean isScanning() {
+        return running != null && !running.isDone();
+    }
+
+    /**
+     * Pauses the running scan and the scans started later, until {@link #resume()}
+     */
+    public void pause() {
+        throttle.pause();
+    }
+
+    /**
+     * Lets the scans carry on
+     */
+    public void resume() {
+        throttle.resume();
+    }
+
+    /**
+     * @return True if the scans are paused
+     */
+    public boolean isPaused() {
+        return throttle.isPaused();
+    }
+
+    /**
+     * Cancels the running scan and stops the scanning thread.  The last result stays available.
+     */
+    public synchronized void close() {
+        if (running != null) {
+            running.cancel(false);
+        }
+        executor.shutdown();
+    }
+}
@@ -0,0 +1,395 @@
+package org.twdata.pkgscanner;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipEntry;
+
+/**
+ * The central directory of a zip file, read straight from its bytes: the end of central directory record at the end
+ * of the file says where the directory is and how many entries it has, and the directory lists every entry with its
+ * name, CRC and sizes.  Reading it takes two small reads from the end of the file, so it can identify a jar by its
+ * content, or list the entries of a jar that is only partly available or held in memory, without opening the jar.
+ * <p/>
+ * Data in front of the archive, e.g. a launcher script prepended to an executable jar, is allowed as by
+ * {@link java.util.zip.ZipFile}: the offsets the archive records are taken from the start of the archive, and moved
+ * by the length of what precedes it.  Zip64 archives, whose directory is described by another record, are not
+ * supported.
+ */
+final class CentralDirectory {
+    /** The size of the end of central directory record without its comment */
+    static final int END_RECORD_SIZE = 22;
+    /** The longest tail of a file that can hold the end record, as its comment is at most 64KB */
+    static final int MAX_END_RECORD_SIZE = END_RECORD_SIZE + 0xffff;
+
+    private static final int END_SIGNATURE = 0x06054b50;
+    private static final int ENTRY_SIGNATURE = 0x02014b50;
+    private static final int ENTRY_HEADER_SIZE = 46;
+    private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    private static final int LOCAL_HEADER_SIZE = 30;
+    /** Read past the data of an entry in case its local header has more extra data than its central one */
+    private static final int LOCAL_EXTRA_SLACK = 256;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final byte[] data;
+    private final int entryCount;
+    private final long archiveLength;
+    private final long prefixLength;
+
+    private CentralDirectory(byte[] data, int entryCount, long archiveLength, long prefixLength) {
+        this.data = data;
+        this.entryCount = entryCount;
+        this.archiveLength = archiveLength;
+        this.prefixLength = prefixLength;
+    }
+
+    /**
+     * Reads the central directory of a zip file
+     * @param file The file
+     * @return The central directory
+     * @throws IOException If the file can't be read or isn't a zip file
+     */
+    static CentralDirectory read(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            return read(source(raf));
+        }
+        finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Reads the central directory of a zip file
+     * @param source The zip file
+     * @return The central directory
+     * @throws IOException If the source can't be read or isn't a zip file
+     */
+    static CentralDirectory read(Source source) throws IOException {
+        long length = source.length();
+        int tailLength = (int) Math.min(length, MAX_END_RECORD_SIZE);
+        return read(source, source.read(length - tailLength, tailLength));
+    }
+
+    /**
+     * Reads the central directory of a zip file whose end was already read
+     * @param source The zip file
+     * @param tail The last bytes of the file, see {@link #locate(byte[], long)}
+     * @return The central directory
+     * @throws IOException If the source can't be read or isn't a zip file
+     */
+    static CentralDirectory read(Source source, byte[] tail) throws IOException {
+        long length = source.length();
+        long[] location = locate(tail, length);
+        long tailStart = length - tail.length;
+        byte[] data;
+        if (location[0] >= tailStart) {
+            // small archives have their directory in the tail already
+            int from = (int) (location[0] - tailStart);
+            data = Arrays.copyOfRange(tail, from, from + (int) location[1]);
+        } else {
+            data = source.read(location[0], (int) location[1]);
+        }
+        return new CentralDirectory(data, (int) location[2], length, location[3]);
+    }
+
+    /**
+     * Reads the uncompressed data of an entry, from its local header on
+     * @param source The zip file
+     * @param entry The entry
+     * @return The data
+     * @throws IOException If the entry can't be read or is compressed with an unsupported method
+     */
+    static byte[] readEntry(Source source, Entry entry) throws IOException {
+        long start = entry.getLocalHeaderOffset();
+        // one read usually covers the header and the data, unless the local extra field is much larger than the
+        // central one
+        long guess = LOCAL_HEADER_SIZE + entry.getName().length() * 3L + entry.getCompressedSize()
+                + LOCAL_EXTRA_SLACK;
+        byte[] bytes = source.read(start, (int) Math.min(guess, source.length() - start));
+        if (bytes.length < LOCAL_HEADER_SIZE || readInt(bytes, 0) != LOCAL_HEADER_SIGNATURE) {
+            throw new IOException("Corrupt local header for " + entry.getName());
+        }
+        int dataStart = LOCAL_HEADER_SIZE + readUnsignedShort(bytes, 26) + readUnsignedShort(bytes, 28);
+        byte[] compressed;
+        if (dataStart + entry.getCompressedSize() <= bytes.length) {
+            compressed = Arrays.copyOfRange(bytes, dataStart, dataStart + (int) entry.getCompressedSize());
+        } else {
+            compressed = source.read(start + dataStart, (int) entry.getCompressedSize());
+        }
+
+        if (entry.getMethod() == ZipEntry.STORED) {
+            return compressed;
+        }
+        if (entry.getMethod() != ZipEntry.DEFLATED) {
+            throw new IOException("Unsupported compression method " + entry.getMethod() + " for "
+                    + entry.getName());
+        }
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(compressed);
+            byte[] data = new byte[(int) entry.getSize()];
+            int read = 0;
+            while (read < data.length && !inflater.finished()) {
+                int count = inflater.inflate(data, read, data.length - read);
+                if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                read += count;
+            }
+            if (read != data.length) {
+                throw new IOException("Truncated entry " + entry.getName());
+            }
+            return data;
+        }
+        catch (DataFormatException ex) {
+            throw new IOException("Corrupt entry " + entry.getName(), ex);
+        }
+        finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * @param raf A zip file opened for reading, which stays open as long as the source is used
+     * @return A source reading the file
+     */
+    static Source source(final RandomAccessFile raf) {
+        return new Source() {
+            public long length() throws IOException {
+                return raf.length();
+            }
+
+            public byte[] read(long position, int length) throws IOException {
+                byte[] bytes = new byte[length];
+                raf.seek(position);
+                raf.readFully(bytes);
+                return bytes;
+            }
+        };
+    }
+
+    /**
+     * @param buffer The bytes of a zip file, between the position and the limit of the buffer, which are left as
+     *               they are
+     * @return A source reading the buffer
+     */
+    static Source source(ByteBuffer buffer) {
+        final ByteBuffer bytes = buffer.slice();
+        return new Source() {
+            public long length() {
+                return bytes.remaining();
+            }
+
+            public byte[] read(long position, int length) throws IOException {
+                if (position < 0 || position + length > bytes.remaining()) {
+                    throw new EOFException("Read past the end of the archive");
+                }
+                byte[] read = new byte[length];
+                ByteBuffer view = bytes.duplicate();
+                view.position((int) position);
+                view.get(read);
+                return read;
+            }
+        };
+    }
+
+    /**
+     * @param channel A zip file, which is read from position 0 to its size.  Its position is changed.
+     * @return A source reading the channel
+     */
+    static Source source(final SeekableByteChannel channel) {
+        return new Source() {
+            public long length() throws IOException {
+                return channel.size();
+            }
+
+            public byte[] read(long position, int length) throws IOException {
+                ByteBuffer read = ByteBuffer.allocate(length);
+                channel.position(position);
+                while (read.hasRemaining()) {
+                    if (channel.read(read) < 0) {
+                        throw new EOFException("Read past the end of the archive");
+                    }
+                }
+                return read.array();
+            }
+        };
+    }
+
+    /**
+     * Finds the central directory from the end of a zip file
+     * @param tail The last bytes of the file, ideally {@link #MAX_END_RECORD_SIZE} of them or the whole file
+     * @param archiveLength The length of the whole file
+     * @return The offset of the central directory in the file, its size, its number of entries and the length of
+     *         the data in front of the archive
+     * @throws IOException If the tail doesn't hold an end of central directory record
+     */
+    static long[] locate(byte[] tail, long archiveLength) throws IOException {
+        // the record ends with a comment of unknown length, so look for its signature from the end
+        for (int pos = tail.length - END_RECORD_SIZE; pos >= 0; pos--) {
+            if (readInt(tail, pos) == END_SIGNATURE
+                    && pos + END_RECORD_SIZE + readUnsignedShort(tail, pos + 20) == tail.length) {
+                long entries = readUnsignedShort(tail, pos + 10);
+                long size = readInt(tail, pos + 12) & 0xffffffffL;
+                long offset = readInt(tail, pos + 16) & 0xffffffffL;
+                if (entries == 0xffff || size == 0xffffffffL || offset == 0xffffffffL) {
+                    throw new IOException("Zip64 archives are not supported");
+                }
+                // the directory ends where the record starts, so anything before the recorded offset precedes the
+                // archive
+                long start = archiveLength - (tail.length - pos) - size;
+                if (start < offset) {
+                    throw new IOException("Corrupt end of central directory record");
+                }
+                return new long[] {start, size, entries, start - offset};
+            }
+        }
+        throw new IOException("No end of central directory record");
+    }
+
+    /**
+     * @return The number of entries
+     */
+    int getEntryCount() {
+        return entryCount;
+    }
+
+    /**
+     * @return The size of the directory in bytes, which is what listing the entries of the zip file reads
+     */
+    int getSize() {
+        return data.length;
+    }
+
+    /**
+     * @return The names of the entries, in the order of the directory
+     * @throws IOException If the directory is malformed
+     */
+    List<String> getNames() throws IOException {
+        List<String> names = new ArrayList<String>(entryCount);
+        for (Entry entry : getEntries()) {
+            names.add(entry.getName());
+        }
+        return names;
+    }
+
+    /**
+     * @return The entries, in the order of the directory
+     * @throws IOException If the directory is malformed
+     */
+    List<Entry> getEntries() throws IOException {
+        List<Entry> entries = new ArrayList<Entry>(entryCount);
+        int pos = 0;
+        for (int x = 0; x < entryCount; x++) {
+            if (pos + ENTRY_HEADER_SIZE > data.length || readInt(data, pos) != ENTRY_SIGNATURE) {
+                throw new IOException("Corrupt central directory entry " + x);
+            }
+            int nameLength = readUnsignedShort(data, pos + 28);
+            int extraLength = readUnsignedShort(data, pos + 30);
+            int commentLength = readUnsignedShort(data, pos + 32);
+            if (pos + ENTRY_HEADER_SIZE + nameLength > data.length) {
+                throw new IOException("Corrupt central directory entry " + x);
+            }
+            entries.add(new Entry(new String(data, pos + ENTRY_HEADER_SIZE, nameLength, UTF8),
+                    readUnsignedShort(data, pos + 10),
+                    readInt(data, pos + 20) & 0xffffffffL,
+                    readInt(data, pos + 24) & 0xffffffffL,
+                    prefixLength + (readInt(data, pos + 42) & 0xffffffffL)));
+            pos += ENTRY_HEADER_SIZE + nameLength + extraLength + commentLength;
+        }
+        return entries;
+    }
+
+    /**
+     * A 64-bit hash of the directory and the length of the archive.  The directory holds the name, CRC, sizes and
+     * offset of every entry, so copies of a jar have the same fingerprint wherever they are, and a jar whose
+     * content changes gets another one.
+     * @return The fingerprint, never 0
+     */
+    long fingerprint() {
+        long hash = new Fingerprint().add(data).add(archiveLength).get();
+        return hash == 0 ? 1 : hash;
+    }
+
+    /**
+     * Random access to the bytes of a zip file, wherever they are
+     */
+    interface Source {
+        long length() throws IOException;
+
+        /**
+         * @return Exactly the bytes asked for
+         * @throws IOException If they can't be read
+         */
+        byte[] read(long position, int length) throws IOException;
+    }
+
+    static int readUnsignedShort(byte[] bytes, int pos) {
+        return (bytes[pos] & 0xff) | ((bytes[pos + 1] & 0xff) << 8);
+    }
+
+    static int readInt(byte[] bytes, int pos) {
+        return (bytes[pos] & 0xff) | ((bytes[pos + 1] & 0xff) << 8)
+                | ((bytes[pos + 2] & 0xff) << 16) | ((bytes[pos + 3] & 0xff) << 24);
+    }
+
+    /**
+     * An entry of the directory
+     */
+    static final class Entry {
+        private final String name;
+        private final int method;
+        private final long compressedSize;
+        private final long size;
+        private final long localHeaderOffset;
+
+        private Entry(String name, int method, long compressedSize, long size, long localHeaderOffset) {
+            this.name = name;
+            this.method = method;
+            this.compressedSize = compressedSize;
+            this.size = size;
+            this.localHeaderOffset = localHeaderOffset;
+        }
+
+        String getName() {
+            return name;
+        }
+
+        boolean isDirectory() {
+            return name.endsWith("/");
+        }
+
+        /**
+         * @return The compression method, 0 for stored or 8 for deflated
+         */
+        int getMethod() {
+            return method;
+        }
+
+        long getCompressedSize() {
+            return compressedSize;
+        }
+
+        long getSize() {
+            return size;
+        }
+
+        /**
+         * @return The offset in the file of the local header that precedes the data of the entry, counting what
+         *         precedes the archive
+         */
+        long getLocalHeaderOffset() {
+            return localHeaderOffset;
+        }
+    }
+}
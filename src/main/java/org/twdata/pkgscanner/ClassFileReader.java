@@ -0,0 +1,408 @@
+package org.twdata.pkgscanner;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Reads the packages a class refers to straight from its class file, without loading it.  The referenced classes
+ * are taken from the constant pool (class entries, and the descriptors of member references and method types)
+ * and from the descriptors of the declared fields and methods.  Generic signatures and
+ * annotations are not looked at.
+ * <p/>
+ * It also reads the module name, version and packages from a {@code module-info.class}, as
+ * {@code java.lang.module.ModuleDescriptor} would on Java 9 and later.
+ * <p/>
+ * A reader keeps its buffers between class files, and decoded package names are kept in a small cache keyed by
+ * their bytes, so reading many classes allocates little.  Readers are not thread-safe; use one per thread.
+ */
+class ClassFileReader {
+    private static final int MAGIC = 0xCAFEBABE;
+    private static final int NAME_CACHE_SIZE = 256;
+
+    private static final int CONSTANT_UTF8 = 1;
+    private static final int CONSTANT_INTEGER = 3;
+    private static final int CONSTANT_FLOAT = 4;
+    private static final int CONSTANT_LONG = 5;
+    private static final int CONSTANT_DOUBLE = 6;
+    private static final int CONSTANT_CLASS = 7;
+    private static final int CONSTANT_STRING = 8;
+    private static final int CONSTANT_FIELDREF = 9;
+    private static final int CONSTANT_METHODREF = 10;
+    private static final int CONSTANT_INTERFACE_METHODREF = 11;
+    private static final int CONSTANT_NAME_AND_TYPE = 12;
+    private static final int CONSTANT_METHOD_HANDLE = 15;
+    private static final int CONSTANT_METHOD_TYPE = 16;
+    private static final int CONSTANT_DYNAMIC = 17;
+    private static final int CONSTANT_INVOKE_DYNAMIC = 18;
+    private static final int CONSTANT_MODULE = 19;
+    private static final int CONSTANT_PACKAGE = 20;
+
+    private byte[] data = new byte[8192];
+    private int length;
+    private int constantCount;
+    private int[] offsets = new int[256];
+    private byte[] tags = new byte[256];
+    private char[] chars = new char[128];
+
+    private final byte[][] cachedNameBytes = new byte[NAME_CACHE_SIZE][];
+    private final String[] cachedNames = new String[NAME_CACHE_SIZE];
+
+    /**
+     * Reads a class file into the reader's buffer
+     * @param in The class file content, which is not closed
+     */
+    void read(InputStream in) throws IOException {
+        length = 0;
+        int read;
+        while ((read = in.read(data, length, data.length - length)) != -1) {
+            length += read;
+            if (length == data.length) {
+                data = Arrays.copyOf(data, data.length * 2);
+            }
+        }
+    }
+
+    /**
+     * Adds the packages of every class referenced by the class file last read to the collection.  Classes in the
+     * default package are ignored.
+     *
+     * @param packages The collection to add the package names to, in dotted form
+     * @throws IOException If the class file is malformed
+     */
+    void collectReferencedPackages(Collection<String> packages) throws IOException {
+        try {
+            if (readInt(0) != MAGIC) {
+                throw new IOException("Not a class file");
+            }
+            int pos = parseConstantPool();
+
+            // access flags, this class and super class, which like the interfaces are class entries
+            pos += 6;
+            int interfaces = readUnsignedShort(pos);
+            pos += 2 + 2 * interfaces;
+
+            // fields, then methods
+            for (int members = 0; members < 2; members++) {
+                int count = readUnsignedShort(pos);
+                pos += 2;
+                for (int x = 0; x < count; x++) {
+                    addDescriptor(readUnsignedShort(pos + 4), packages);
+                    pos = skipAttributes(pos + 6);
+                }
+            }
+
+            for (int x = 1; x < constantCount; x++) {
+                int offset = offsets[x];
+                switch (tags[x]) {
+                    case CONSTANT_CLASS:
+                        addClassEntry(x, packages);
+                        break;
+                    case CONSTANT_NAME_AND_TYPE:
+                        addDescriptor(readUnsignedShort(offset + 2), packages);
+                        break;
+                    case CONSTANT_METHOD_TYPE:
+                        addDescriptor(readUnsignedShort(offset), packages);
+                        break;
+                    default:
+                        break;
+                }
+            }
+        }
+        catch (ArrayIndexOutOfBoundsException ex) {
+            throw new IOException("Truncated class file");
+        }
+    }
+
+    /**
+     * Reads the {@code Module} and {@code ModulePackages} attributes of the module descriptor last read
+     * @return The module, whose packages are null if the descriptor doesn't list them
+     * @throws IOException If the class file is malformed or isn't a module descriptor
+     */
+    ModuleInfo readModuleInfo() throws IOException {
+        try {
+            if (readInt(0) != MAGIC) {
+                throw new IOException("Not a class file");
+            }
+            int pos = parseConstantPool();
+            pos += 6;
+            pos += 2 + 2 * readUnsignedShort(pos);
+            for (int members = 0; members < 2; members++) {
+                int count = readUnsignedShort(pos);
+                pos += 2;
+                for (int x = 0; x < count; x++) {
+                    pos = skipAttributes(pos + 6);
+                }
+            }
+
+            String name = null;
+            String version = null;
+            Set<String> packages = null;
+            int count = readUnsignedShort(pos);
+            pos += 2;
+            for (int x = 0; x < count; x++) {
+                int attribute = readUnsignedShort(pos);
+                int start = pos + 6;
+                pos = start + readInt(pos + 2);
+                if (utf8Equals(attribute, "Module")) {
+                    name = utf8(readUnsignedShort(offsets[readUnsignedShort(start)]));
+                    int versionIndex = readUnsignedShort(start + 4);
+                    version = versionIndex == 0 ? null : utf8(versionIndex);
+                } else if (utf8Equals(attribute, "ModulePackages")) {
+                    int packageCount = readUnsignedShort(start);
+                    packages = new HashSet<String>(packageCount * 2);
+                    for (int p = 0; p < packageCount; p++) {
+                        // a package entry refers to the internal name of the package
+                        packages.add(utf8(readUnsignedShort(offsets[readUnsignedShort(start + 2 + 2 * p)])));
+                    }
+                }
+            }
+            if (name == null) {
+                throw new IOException("Not a module descriptor");
+            }
+            return new ModuleInfo(name, version, packages);
+        }
+        catch (ArrayIndexOutOfBoundsException ex) {
+            throw new IOException("Truncated class file");
+        }
+    }
+
+    /**
+     * Decodes a UTF-8 constant, turning the '/' of internal names into '.'
+     */
+    private String utf8(int index) throws IOException {
+        if (index <= 0 || index >= constantCount || tags[index] != CONSTANT_UTF8) {
+            throw new IOException("Bad constant pool reference " + index);
+        }
+        int utf8 = offsets[index];
+        return packageName(utf8 + 2, utf8 + 2 + readUnsignedShort(utf8));
+    }
+
+    private boolean utf8Equals(int index, String ascii) {
+        if (index <= 0 || index >= constantCount || tags[index] != CONSTANT_UTF8) {
+            return false;
+        }
+        int utf8 = offsets[index];
+        if (readUnsignedShort(utf8) != ascii.length()) {
+            return false;
+        }
+        for (int x = 0; x < ascii.length(); x++) {
+            if (data[utf8 + 2 + x] != ascii.charAt(x)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Records the offset of the data of each constant pool entry
+     * @return The offset just after the constant pool
+     */
+    private int parseConstantPool() throws IOException {
+        constantCount = readUnsignedShort(8);
+        if (offsets.length < constantCount) {
+            offsets = new int[constantCount];
+            tags = new byte[constantCount];
+        }
+        int pos = 10;
+        for (int x = 1; x < constantCount; x++) {
+            if (pos >= length) {
+                throw new IOException("Truncated constant pool");
+            }
+            int tag = data[pos++];
+            tags[x] = (byte) tag;
+            offsets[x] = pos;
+            switch (tag) {
+                case CONSTANT_UTF8:
+                    pos += 2 + readUnsignedShort(pos);
+                    break;
+                case CONSTANT_CLASS:
+                case CONSTANT_STRING:
+                case CONSTANT_METHOD_TYPE:
+                case CONSTANT_MODULE:
+                case CONSTANT_PACKAGE:
+                    pos += 2;
+                    break;
+                case CONSTANT_METHOD_HANDLE:
+                    pos += 3;
+                    break;
+                case CONSTANT_INTEGER:
+                case CONSTANT_FLOAT:
+                case CONSTANT_FIELDREF:
+                case CONSTANT_METHODREF:
+                case CONSTANT_INTERFACE_METHODREF:
+                case CONSTANT_NAME_AND_TYPE:
+                case CONSTANT_DYNAMIC:
+                case CONSTANT_INVOKE_DYNAMIC:
+                    pos += 4;
+                    break;
+                case CONSTANT_LONG:
+                case CONSTANT_DOUBLE:
+                    pos += 8;
+                    // takes two slots
+                    x++;
+                    if (x < constantCount) {
+                        tags[x] = 0;
+                    }
+                    break;
+                default:
+                    throw new IOException("Unknown constant pool tag " + tag);
+            }
+        }
+        return pos;
+    }
+
+    private int skipAttributes(int pos) {
+        int count = readUnsignedShort(pos);
+        pos += 2;
+        for (int x = 0; x < count; x++) {
+            pos += 6 + readInt(pos + 2);
+        }
+        return pos;
+    }
+
+    /**
+     * Adds the package of a class entry, which is either an internal name or, for arrays, a descriptor
+     */
+    private void addClassEntry(int index, Collection<String> packages) {
+        int utf8 = offsets[readUnsignedShort(offsets[index])];
+        int start = utf8 + 2;
+        int end = start + readUnsignedShort(utf8);
+        if (start < end && data[start] == '[') {
+            addDescriptor(start, end, packages);
+        } else {
+            addInternalName(start, end, packages);
+        }
+    }
+
+    private void addDescriptor(int index, Collection<String> packages) {
+        int utf8 = offsets[index];
+        int start = utf8 + 2;
+        addDescriptor(start, start + readUnsignedShort(utf8), packages);
+    }
+
+    /**
+     * Adds the package of every {@code Lsome/Class;} type in a field or method descriptor
+     */
+    private void addDescriptor(int start, int end, Collection<String> packages) {
+        for (int x = start; x < end; x++) {
+            if (data[x] == 'L') {
+                int semicolon = x + 1;
+                while (semicolon < end && data[semicolon] != ';') {
+                    semicolon++;
+                }
+                addInternalName(x + 1, semicolon, packages);
+                x = semicolon;
+            }
+        }
+    }
+
+    private void addInternalName(int start, int end, Collection<String> packages) {
+        int lastSlash = -1;
+        for (int x = end - 1; x >= start; x--) {
+            if (data[x] == '/') {
+                lastSlash = x;
+                break;
+            }
+        }
+        if (lastSlash > start) {
+            packages.add(packageName(start, lastSlash));
+        }
+    }
+
+    /**
+     * Decodes a package name from modified UTF-8, reusing the string decoded last time the same bytes were seen
+     */
+    private String packageName(int start, int end) {
+        int hash = 1;
+        for (int x = start; x < end; x++) {
+            hash = 31 * hash + data[x];
+        }
+        int slot = (hash ^ (hash >>> 16)) & (NAME_CACHE_SIZE - 1);
+        byte[] cached = cachedNameBytes[slot];
+        if (cached != null && cached.length == end - start && regionEquals(cached, start)) {
+            return cachedNames[slot];
+        }
+
+        if (chars.length < end - start) {
+            chars = new char[end - start];
+        }
+        int len = 0;
+        for (int x = start; x < end; ) {
+            int b = data[x++] & 0xff;
+            char c;
+            if (b < 0x80) {
+                c = (char) b;
+            } else if ((b & 0xe0) == 0xc0) {
+                c = (char) (((b & 0x1f) << 6) | (data[x++] & 0x3f));
+            } else {
+                c = (char) (((b & 0x0f) << 12) | ((data[x++] & 0x3f) << 6) | (data[x++] & 0x3f));
+            }
+            chars[len++] = c == '/' ? '.' : c;
+        }
+        String name = new String(chars, 0, len);
+        cachedNameBytes[slot] = Arrays.copyOfRange(data, start, end);
+        cachedNames[slot] = name;
+        return name;
+    }
+
+    private boolean regionEquals(byte[] bytes, int start) {
+        for (int x = 0; x < bytes.length; x++) {
+            if (bytes[x] != data[start + x]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int readUnsignedShort(int pos) {
+        if (pos + 1 >= length) {
+            throw new ArrayIndexOutOfBoundsException(pos);
+        }
+        return ((data[pos] & 0xff) << 8) | (data[pos + 1] & 0xff);
+    }
+
+    private int readInt(int pos) {
+        if (pos + 3 >= length) {
+            throw new ArrayIndexOutOfBoundsException(pos);
+        }
+        return ((data[pos] & 0xff) << 24) | ((data[pos + 1] & 0xff) << 16)
+                | ((data[pos + 2] & 0xff) << 8) | (data[pos + 3] & 0xff);
+    }
+
+    /**
+     * What a module descriptor declares
+     */
+    static final class ModuleInfo {
+        private final String name;
+        private final String version;
+        private final Set<String> packages;
+
+        ModuleInfo(String name, String version, Set<String> packages) {
+            this.name = name;
+            this.version = version;
+            this.packages = packages;
+        }
+
+        String getName() {
+            return name;
+        }
+
+        /**
+         * @return The version of the module, or null if it has none
+         */
+        String getVersion() {
+            return version;
+        }
+
+        /**
+         * @return Every package of the module in dotted form, or null if the descriptor doesn't list them
+         */
+        Set<String> getPackages() {
+            return packages;
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package org.twdata.pkgscanner;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+/**
+ * Holds the scan results of each classloader in a hierarchy, so that scans of sibling classloaders sharing the
+ * same ancestors only need to scan the ancestors once.  Results are keyed by the classloader and the scan
+ * configuration, and the classloaders are weakly referenced, so discarded classloaders drop out of the cache.
+ * <p/>
+ * Only ancestors of the scanned classloader are cached.  The classloader passed to
+ * {@link PackageScanner#useClassLoader(ClassLoader)} itself is always scanned.  A cached level is scanned again when
+ * one of its jars or directories changes size or modification time; files changed deeper inside a directory, and
+ * urls added to an ancestor later, aren't noticed, so such classloaders should be {@link #evict(ClassLoader) evicted}.
+ * <p/>
+ * Instances are thread-safe and are meant to be shared between many {@link PackageScanner}s.
+ */
+public class ClassLoaderHierarchyCache {
+    private final Map<ClassLoader, Map<String, Level>> levels = new WeakHashMap<ClassLoader, Map<String, Level>>();
+
+    /**
+     * Drops the cached results for a classloader, e.g. after its jars have been replaced
+     * @param classLoader The classloader
+     */
+    public synchronized void evict(ClassLoader classLoader) {
+        levels.remove(classLoader);
+    }
+
+    /**
+     * Drops all cached results
+     */
+    public synchronized void clear() {
+        levels.clear();
+    }
+
+    /**
+     * @return The number of classloaders that have cached results
+     */
+    public synchronized int size() {
+        return levels.size();
+    }
+
+    synchronized Level get(ClassLoader classLoader, String key) {
+        Map<String, Level> byKey = levels.get(classLoader);
+        return byKey == null ? null : byKey.get(key);
+    }
+
+    synchronized void put(ClassLoader classLoader, String key, Level level) {
+        Map<String, Level> byKey = levels.get(classLoader);
+        if (byKey == null) {
+            byKey = new HashMap<String, Level>();
+            levels.put(classLoader, byKey);
+        }
+        byKey.put(key, level);
+    }
+
+    /**
+     * The result of scanning a single classloader of the hierarchy, excluding anything its ancestors provide
+     */
+    static class Level {
+        private final Set<String> urls;
+        private final List<Element> elements;
+
+        /**
+         * @param urls The external forms of the resource urls that this classloader added to its ancestors'
+         * @param elements The classpath elements found in those urls, with their packages
+         */
+        Level(Set<String> urls, List<Element> elements) {
+            this.urls = Collections.unmodifiableSet(urls);
+            this.elements = Collections.unmodifiableList(elements);
+        }
+
+        Set<String> getUrls() {
+            return urls;
+        }
+
+        List<Element> getElements() {
+            return elements;
+        }
+
+        List<ExportPackage> getExports() {
+            List<ExportPackage> exports = new ArrayList<ExportPackage>();
+            for (Element element : elements) {
+                exports.addAll(element.getExports());
+            }
+            return exports;
+        }
+
+        /**
+         * @return True if a jar or directory of the level changed size or modification time since it was scanned
+         */
+        boolean isStale() {
+            for (Element element : elements) {
+                if (element.isStale()) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * A jar or directory of a level, with the size and modification time it had when scanned
+     */
+    static class Element {
+        private final File file;
+        private final long length;
+        private final long lastModified;
+        private final List<ExportPackage> exports;
+
+        Element(File file, List<ExportPackage> exports) {
+            this.file = file;
+            this.length = file.length();
+            this.lastModified = file.lastModified();
+            this.exports = Collections.unmodifiableList(exports);
+        }
+
+        File getFile() {
+            return file;
+        }
+
+        List<ExportPackage> getExports() {
+            return exports;
+        }
+
+        boolean isStale() {
+            return file.length() != length || file.lastModified() != lastModified;
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package org.twdata.pkgscanner;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.jar.Manifest;
+
+/**
+ * Reads the packages a jar declares, rather than listing its entries: the {@code Export-Package} header of an OSGi
+ * bundle, which also gives a version per package, or else the {@code META-INF/INDEX.LIST} of an indexed jar.
+ * A bundle only declares the packages it exports, so its private packages are not found this way.
+ */
+final class DeclaredPackages {
+    static final String INDEX_LIST = "META-INF/INDEX.LIST";
+
+    private DeclaredPackages() {
+    }
+
+    /**
+     * @param manifest The manifest of an archive, or null
+     * @param index The contents of its {@code INDEX.LIST}, closed once read, or null
+     * @return The declared package names with their versions, null where no version is declared, or null if the
+     *         archive declares no packages
+     * @throws IOException If the index can't be read
+     */
+    static Map<String, String> read(Manifest manifest, InputStream index) throws IOException {
+        Map<String, String> exports = readExportPackage(manifest);
+        if (exports != null) {
+            if (index != null) {
+                index.close();
+            }
+            return exports;
+        }
+        return index == null ? null : readIndexList(index);
+    }
+
+    private static Map<String, String> readExportPackage(Manifest manifest) {
+        String exports = manifest == null ? null : manifest.getMainAttributes().getValue("Export-Package");
+        return exports != null && exports.trim().length() > 0 ? parseExportPackage(exports) : null;
+    }
+
+    private static Map<String, String> readIndexList(InputStream index) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(index, "UTF-8"));
+        try {
+            return parseIndexList(reader);
+        }
+        finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Parses an {@code Export-Package} header, e.g. {@code org.foo;org.foo.api;version="1.2",org.bar;uses:="org.foo"}
+     * @param header The header value
+     * @return The package names with their version, or null for those without one
+     */
+    static Map<String, String> parseExportPackage(String header) {
+        Map<String, String> packages = new LinkedHashMap<String, String>();
+        for (String clause : split(header, ',')) {
+            List<String> names = new ArrayList<String>();
+            String version = null;
+            for (String part : split(clause, ';')) {
+                int eq = part.indexOf('=');
+                if (eq < 0) {
+                    names.add(part);
+                } else if ("version".equals(part.substring(0, eq).trim())) {
+                    version = unquote(part.substring(eq + 1).trim());
+                }
+            }
+            for (String name : names) {
+                packages.put(name, version);
+            }
+        }
+        return packages;
+    }
+
+    /**
+     * Parses the section of an {@code INDEX.LIST} describing the jar itself, which is the first one.  As when
+     * listing the jar, files at the root count as packages of their own; {@code META-INF} is left out.
+     * @param reader The index
+     * @return The package names, without versions
+     */
+    static Map<String, String> parseIndexList(BufferedReader reader) throws IOException {
+        Map<String, String> packages = new LinkedHashMap<String, String>();
+        boolean header = true;
+        String jarName = null;
+        String line;
+        while ((line = reader.readLine()) != null) {
+            line = line.trim();
+            if (line.length() == 0) {
+                if (jarName != null) {
+                    break;
+                }
+                header = false;
+            } else if (header) {
+                continue;
+            } else if (jarName == null) {
+                jarName = line;
+            } else if (!line.startsWith("META-INF")) {
+                packages.put(line.replace('/', '.'), null);
+            }
+        }
+        return packages;
+    }
+
+    /**
+     * Splits on a separator outside of double quotes, trimming the parts and dropping empty ones
+     */
+    private static List<String> split(String value, char separator) {
+        List<String> parts = new ArrayList<String>();
+        boolean quoted = false;
+        int start = 0;
+        for (int x = 0; x <= value.length(); x++) {
+            char c = x < value.length() ? value.charAt(x) : separator;
+            if (c == '"') {
+                quoted = !quoted;
+            } else if (c == separator && (!quoted || x == value.length())) {
+                String part = value.substring(start, x).trim();
+                if (part.length() > 0) {
+                    parts.add(part);
+                }
+                start = x + 1;
+            }
+        }
+        return parts;
+    }
+
+    private static String unquote(String value) {
+        return value.length() >= 2 && value.startsWith("\"") && value.endsWith("\"")
+                ? value.substring(1, value.length() - 1) : value;
+    }
+}
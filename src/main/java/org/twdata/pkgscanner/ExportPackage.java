@@ -1,6 +1,7 @@
 package org.twdata.pkgscanner;
 
 import java.io.File;
+import java.util.function.Supplier;
 
 /**
  * Represents an export consisting of a package name and version
@@ -9,7 +10,8 @@ import java.io.File;
  */
 public class ExportPackage implements Comparable<ExportPackage> {
     private final String packageName;
-    private final String version;
+    private volatile String version;
+    private volatile Supplier<String> versionSupplier;
     private final File location;
 
     /**
@@ -32,14 +34,43 @@ public class ExportPackage implements Comparable<ExportPackage> {
         this.packageName = packageName;
     }
 
+    /**
+     * Constructs an ExportPackage object whose version is only worked out when first asked for.
+     *
+     * @param packageName name of the package. Cannot be null.
+     * @param versionSupplier Works out the version, which may be null for "unknown"
+     * @param location The file where this package was found. Cannot be null.
+     */
+    static ExportPackage lazy(String packageName, Supplier<String> versionSupplier, File location) {
+        ExportPackage export = new ExportPackage(packageName, null, location);
+        export.versionSupplier = versionSupplier;
+        return export;
+    }
+
     public String getPackageName() {
         return packageName;
     }
 
     public String getVersion() {
+        if (versionSupplier != null) {
+            synchronized (this) {
+                Supplier<String> supplier = versionSupplier;
+                if (supplier != null) {
+                    version = supplier.get();
+                    versionSupplier = null;
+                }
+            }
+        }
         return version;
     }
 
+    /**
+     * @return True if the version has been worked out
+     */
+    boolean isVersionResolved() {
+        return versionSupplier == null;
+    }
+
     public File getLocation() {
         return location;
     }
@@ -56,7 +87,9 @@ public class ExportPackage implements Comparable<ExportPackage> {
         ExportPackage that = (ExportPackage) o;
 
         if (!packageName.equals(that.packageName)) return false;
-        if (version != null ? !version.equals(that.version) : that.version != null) return false;
+        String version = getVersion();
+        String thatVersion = that.getVersion();
+        if (version != null ? !version.equals(thatVersion) : thatVersion != null) return false;
 
         return true;
     }
@@ -65,6 +98,7 @@ public class ExportPackage implements Comparable<ExportPackage> {
     {
         int result;
         result = packageName.hashCode();
+        String version = getVersion();
         result = 31 * result + (version != null ? version.hashCode() : 0);
         return result;
     }
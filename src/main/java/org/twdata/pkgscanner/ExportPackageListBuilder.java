@@ -14,6 +14,9 @@ import java.util.Collections;
  * <p/>
  * Explicit version numbers are always preferred over "unknown".
  * When duplicate jars are found with different versions associated, a warning will be logged.
+ * <p/>
+ * A builder that keeps the first package found instead never looks at versions, so packages with lazily resolved
+ * versions stay unresolved until they are read, and duplicates are dropped without ever being resolved.
  *
  * @since 0.7.11
  */
@@ -21,6 +24,23 @@ public class ExportPackageListBuilder {
     private final static Logger log = LoggerFactory.getLogger(ExportPackageListBuilder.class);
 
     private Map<String, ExportPackage> packageMap = new HashMap<String, ExportPackage>();
+    private final boolean firstWins;
+
+    /**
+     * Constructs a builder that prefers packages with a version, and of those the last found
+     */
+    public ExportPackageListBuilder() {
+        this(false);
+    }
+
+    /**
+     * Constructs a builder
+     * @param firstWins True to keep the first package found for each name, as a classloader would, whatever the
+     *                  versions
+     */
+    public ExportPackageListBuilder(boolean firstWins) {
+        this.firstWins = firstWins;
+    }
 
     public void add(final ExportPackage exportPackage) {
         // Get the current ExportPackage for this package name
@@ -29,6 +49,11 @@ public class ExportPackageListBuilder {
         if (currentExportPackage == null) {
             // Too Easy - this is the first copy
             packageMap.put(packageName, exportPackage);
+        } else if (firstWins) {
+            if (log.isDebugEnabled()) {
+                log.debug("Package Scanner found duplicates for package '" + packageName + "' - keeping the first in "
+                        + currentExportPackage.getLocation() + " over " + exportPackage.getLocation());
+            }
         } else {
             // Duplicate places were found with the same package.
             // Note that this may be legitimate eg if two jars contain different different classes from the same package.
@@ -0,0 +1,71 @@
+package org.twdata.pkgscanner;
+
+import java.io.File;
+import java.util.Arrays;
+
+/**
+ * Accumulates a cheap 64-bit FNV-1a hash, used to detect whether the inputs of a scan have changed
+ */
+class Fingerprint {
+    private static final long OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long PRIME = 0x100000001b3L;
+
+    private long hash = OFFSET_BASIS;
+
+    Fingerprint add(long value) {
+        for (int x = 0; x < 8; x++) {
+            hash ^= (value >>> (x * 8)) & 0xff;
+            hash *= PRIME;
+        }
+        return this;
+    }
+
+    Fingerprint add(String value) {
+        if (value == null) {
+            return add(-1L);
+        }
+        for (int x = 0; x < value.length(); x++) {
+            char c = value.charAt(x);
+            hash ^= c & 0xff;
+            hash *= PRIME;
+            hash ^= c >>> 8;
+            hash *= PRIME;
+        }
+        // terminate the string so "ab"+"c" and "a"+"bc" differ
+        return add((long) value.length());
+    }
+
+    Fingerprint add(byte[] bytes) {
+        for (byte b : bytes) {
+            hash ^= b & 0xff;
+            hash *= PRIME;
+        }
+        return this;
+    }
+
+    /**
+     * Adds the path, size and modification time of a file.  Directories are walked recursively, as adding or
+     * touching a class file deep inside does not change the directory's own modification time.
+     *
+     * @param file The jar or directory
+     */
+    Fingerprint addFile(File file) {
+        add(file.getPath());
+        add(file.length());
+        add(file.lastModified());
+        if (file.isDirectory()) {
+            File[] children = file.listFiles();
+            if (children != null) {
+                Arrays.sort(children);
+                for (File child : children) {
+                    addFile(child);
+                }
+            }
+        }
+        return this;
+    }
+
+    long get() {
+        return hash;
+    }
+}
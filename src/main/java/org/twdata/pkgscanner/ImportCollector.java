@@ -0,0 +1,242 @@
+package org.twdata.pkgscanner;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+/**
+ * Computes the packages imported by the classes of each location, by reading the constant pool of the class
+ * files in the selected packages while the scan lists them.  No class is loaded.  The class files are parsed on
+ * a pool of threads, and the referenced packages are filtered through the package patterns of the scan once the
+ * scan is over.
+ * <p/>
+ * Pass an instance to {@link PackageScanner#collectImports(ImportCollector)} and read the imports after the scan.
+ * The imports of successive scans accumulate until {@link #clear()} is called.
+ */
+public class ImportCollector {
+    private static final Logger log = LoggerFactory.getLogger(ImportCollector.class);
+
+    private final int threads;
+    private final ThreadLocal<ClassFileReader> readers = new ThreadLocal<ClassFileReader>() {
+        @Override
+        protected ClassFileReader initialValue() {
+            return new ClassFileReader();
+        }
+    };
+    private final Map<File, Set<String>> referenced = new ConcurrentHashMap<File, Set<String>>();
+    private final SortedMap<File, SortedSet<String>> imports = new TreeMap<File, SortedSet<String>>();
+    private final List<Future<?>> pending = new ArrayList<Future<?>>();
+    private ExecutorService executor;
+
+    /**
+     * Constructs a collector that parses classes on as many threads as there are processors
+     */
+    public ImportCollector() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Constructs a collector
+     * @param threads The number of threads to parse classes with
+     */
+    public ImportCollector(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads must be at least 1");
+        }
+        this.threads = threads;
+    }
+
+    /**
+     * @return The imported packages of each location, ordered by location
+     */
+    public synchronized SortedMap<File, SortedSet<String>> getImports() {
+        return Collections.unmodifiableSortedMap(new TreeMap<File, SortedSet<String>>(imports));
+    }
+
+    /**
+     * @param location The jar or directory the classes were found in
+     * @return The imported packages of the location, in alphabetical order, or an empty set if there are none
+     */
+    public synchronized SortedSet<String> getImports(File location) {
+        SortedSet<String> packages = imports.get(location);
+        return packages == null ? Collections.<String>emptySortedSet() : packages;
+    }
+
+    /**
+     * Forgets the imports of previous scans
+     */
+    public synchronized void clear() {
+        imports.clear();
+    }
+
+    /**
+     * Queues the parsing of a class in a jar.  The jar is taken from the pool when the class is parsed, so the
+     * scan can go on to other jars meanwhile.
+     */
+    void submit(final File location, final JarFilePool pool, final JarEntry entry) {
+        submit(new Runnable() {
+            public void run() {
+                InputStream in = null;
+                JarFile jarFile = null;
+                try {
+                    jarFile = pool.acquire(location);
+                    in = jarFile.getInputStream(entry);
+                    parse(location, in);
+                }
+                catch (IOException ex) {
+                    log.debug("Unable to read class " + entry.getName() + " in " + location, ex);
+                }
+                finally {
+                    close(in);
+                    if (jarFile != null) {
+                        pool.release(location);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Queues the parsing of a class file in a directory
+     */
+    void submit(final File location, final File classFile) {
+        submit(new Runnable() {
+            public void run() {
+                InputStream in = null;
+                try {
+                    in = new FileInputStream(classFile);
+                    parse(location, in);
+                }
+                catch (IOException ex) {
+                    log.debug("Unable to read class " + classFile, ex);
+                }
+                finally {
+                    close(in);
+                }
+            }
+        });
+    }
+
+    private synchronized void submit(Runnable task) {
+        if (executor == null) {
+            executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "pkgscanner-imports");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        pending.add(executor.submit(task));
+    }
+
+    private void parse(File location, InputStream in) throws IOException {
+        Set<String> packages = referenced.get(location);
+        if (packages == null) {
+            synchronized (referenced) {
+                packages = referenced.get(location);
+                if (packages == null) {
+                    packages = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+                    referenced.put(location, packages);
+                }
+            }
+        }
+        ClassFileReader reader = readers.get();
+        reader.read(in);
+        reader.collectReferencedPackages(packages);
+    }
+
+    /**
+     * Waits for the queued classes to be parsed, then keeps the referenced packages that match the scan's patterns
+     * @param test The test of the scan
+     */
+    void finish(InternalScanner.Test test) {
+        List<Future<?>> tasks;
+        synchronized (this) {
+            tasks = new ArrayList<Future<?>>(pending);
+            pending.clear();
+        }
+        for (Future<?> task : tasks) {
+            try {
+                task.get();
+            }
+            catch (ExecutionException ex) {
+                log.warn("Unable to parse class", ex.getCause());
+            }
+            catch (InterruptedException ex) {
+                log.warn("Interrupted while computing imports, they will be incomplete");
+                Thread.currentThread().interrupt();
+                abort();
+                return;
+            }
+        }
+        shutdown();
+
+        synchronized (this) {
+            for (Map.Entry<File, Set<String>> entry : referenced.entrySet()) {
+                SortedSet<String> packages = imports.get(entry.getKey());
+                if (packages == null) {
+                    packages = new TreeSet<String>();
+                    imports.put(entry.getKey(), packages);
+                }
+                for (String pkg : entry.getValue()) {
+                    if (test.matchesPackage(pkg)) {
+                        packages.add(pkg);
+                    }
+                }
+            }
+            referenced.clear();
+        }
+    }
+
+    /**
+     * Drops the queued classes, e.g. when the scan fails or is cancelled
+     */
+    synchronized void abort() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+        pending.clear();
+        referenced.clear();
+    }
+
+    private synchronized void shutdown() {
+        if (executor != null) {
+            executor.shutdown();
+            executor = null;
+        }
+    }
+
+    private static void close(InputStream in) {
+        if (in != null) {
+            try {
+                in.close();
+            }
+            catch (IOException ex) {
+                // ignore
+            }
+        }
+    }
+}
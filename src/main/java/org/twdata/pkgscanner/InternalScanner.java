@@ -1,14 +1,15 @@
 package org.twdata.pkgscanner;
 
-import java.io.InputStream;
 import java.net.URL;
 import java.net.URISyntaxException;
+import java.nio.charset.Charset;
 import java.util.*;
+import java.util.concurrent.CancellationException;
 import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.File;
-import java.util.jar.Manifest;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -18,39 +19,397 @@ import org.slf4j.LoggerFactory;
  */
 class InternalScanner {
     private final Logger log = LoggerFactory.getLogger(InternalScanner.class);
-    private Map<String,Set<String>> jarContentCache = new HashMap<String,Set<String>>();
-    private Map<File, String> guessedJarVersionCache = new HashMap<File, String>();
+    private static final int UNKNOWN = 0;
+    private static final int SELECTED = 1;
+    private static final int NOT_SELECTED = 2;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final String WORKING_DIRECTORY = new File("").getAbsolutePath() + File.separator;
+    private JarContentCache jarContentCache = new JarContentCache();
     private ClassLoader classloader;
-    private PackageScanner.VersionMapping[] versionMappings;
+    private final ScanPlan.Mapping[] versionMappings;
     private OsgiVersionConverter versionConverter = new DefaultOsgiVersionConverter();
+    private List<VersionResolver> versionResolvers = VersionResolvers.defaults();
+    private ClassLoaderHierarchyCache hierarchyCache;
+    private String configurationKey;
+    private ScanListener listener;
+    private ImportCollector importCollector;
+    private volatile boolean cancelled;
+    private boolean lazyVersions;
+    private boolean firstWins;
+    private PackageVersions packageVersions;
+    private PackageIndex packageIndex;
+    private PackageSummaryStore summaryStore;
+    private int shard;
+    private int shardCount = 1;
+    private PartialScanResult shardResult;
+    private int rootIndex;
+    private boolean elementInShard = true;
+    private long directoryPosition;
+    private boolean checkModuleDescriptors;
+    private boolean useDeclaredPackages;
+    private ClassFileReader classFileReader;
+    private JarFilePool jarFilePool = new JarFilePool();
+    private boolean sharedJarFilePool;
+    private ScanBudget budget = ScanBudget.unlimited();
+    private ScanThrottle throttle;
+    private RemoteJarCache remoteJars;
+    private final Map<String, File> remoteStubs = new HashMap<String, File>();
+    private long deadline;
+    private int jarsRead;
+    private long bytesRead;
+    private boolean exhausted;
+    private final EnumSet<ScanResult.Limit> limitsReached = EnumSet.noneOf(ScanResult.Limit.class);
+    private final Set<File> skipped = new LinkedHashSet<File>();
+    /** Charges the metadata entries of a jar, read when first asked for, see {@link ArchiveContents} */
+    private final ArchiveContents.ByteBudget byteBudget = new ArchiveContents.ByteBudget() {
+        public boolean reserve(long bytes) {
+            return reserveBytes(bytes);
+        }
+    };
     private final boolean debug;
 
     static interface Test {
         boolean matchesPackage(String pkg);
 
         boolean matchesJar(String name);
+
+        /**
+         * @return False if no package starting with the prefix can match, true if one may
+         */
+        default boolean mayMatchPackageWithPrefix(String prefix) {
+            return true;
+        }
     }
 
-    InternalScanner(ClassLoader cl, PackageScanner.VersionMapping[] versionMappings, boolean debug) {
+    InternalScanner(ClassLoader cl, ScanPlan.Mapping[] versionMappings, boolean debug) {
         this.classloader = cl;
-        for (PackageScanner.VersionMapping mapping : versionMappings)
-        {
-            mapping.toVersion(versionConverter.getVersion(mapping.getVersion()));
-        }
         this.versionMappings = versionMappings;
         this.debug = debug;
     }
 
     void setOsgiVersionConverter(OsgiVersionConverter converter) {
         this.versionConverter = converter;
+        this.packageVersions = null;
+    }
+
+    /**
+     * Sets the chain of resolvers that work out the version of a jar
+     * @param resolvers The resolvers, cheapest first
+     */
+    void setVersionResolvers(List<VersionResolver> resolvers) {
+        this.versionResolvers = resolvers;
+        this.packageVersions = null;
+    }
+
+    /**
+     * Makes the scan leave the versions of the packages it finds to be worked out when first asked for
+     * @param lazyVersions True for lazy versions
+     */
+    void setLazyVersions(boolean lazyVersions) {
+        this.lazyVersions = lazyVersions;
+    }
+
+    /**
+     * Makes the scan keep the first of duplicate packages rather than the last found with a version, so the
+     * versions of duplicates are never compared
+     * @param firstWins True to keep the first
+     */
+    void setFirstWins(boolean firstWins) {
+        this.firstWins = firstWins;
+    }
+
+    /**
+     * Makes the scan add every package it finds to an index, including the duplicates it drops from its result
+     * @param index The index
+     */
+    void setPackageIndex(PackageIndex index) {
+        this.packageIndex = index;
+    }
+
+    /**
+     * Makes the scan skip the jars whose package summary shows they can't hold a selected package, and summarize
+     * the jars it lists
+     * @param store The summaries, shared between scanners
+     */
+    void setPackageSummaries(PackageSummaryStore store) {
+        this.summaryStore = store;
+    }
+
+    /**
+     * Makes the scan only read the jars and directories of one shard, adding what it finds to a partial result.  Each
+     * jar belongs to a shard of its own, including the jars of a directory element, and the classes of a directory
+     * element to the shard of the directory, see {@link #shardOf(String, int)}.  The hierarchy cache isn't used, as
+     * it holds the results of all shards.
+     * @param shard The shard, from 0
+     * @param shardCount The number of shards
+     * @param result The partial result
+     */
+    void setShard(int shard, int shardCount, PartialScanResult result) {
+        this.shard = shard;
+        this.shardCount = shardCount;
+        this.shardResult = result;
+        this.hierarchyCache = null;
+    }
+
+    private boolean inShard(String key) {
+        return shardCount == 1 || shardOf(key, shardCount) == shard;
+    }
+
+    /**
+     * @param key The key of a jar or directory, see {@link #shardKey(File)}
+     * @param shardCount The number of shards
+     * @return The shard the jar or directory belongs to
+     */
+    static int shardOf(String key, int shardCount) {
+        return (key.hashCode() & Integer.MAX_VALUE) % shardCount;
+    }
+
+    /**
+     * The key a jar or directory is sharded by: its path relative to the working directory when it is under it, and
+     * its absolute path otherwise, so the same file falls in the same shard for every root and for every process
+     * scanning the same classpath from the same directory, while files of the same name in different places don't
+     * all fall in one shard
+     * @param file The jar or directory
+     * @return The key
+     */
+    static String shardKey(File file) {
+        String path = file.getAbsolutePath();
+        if (path.startsWith(WORKING_DIRECTORY)) {
+            path = path.substring(WORKING_DIRECTORY.length());
+        }
+        return path.replace(File.separatorChar, '/');
+    }
+
+    /**
+     * @return The key of the classpath element a resource url was found in, see {@link #shardKey(File)}.  Remote
+     * jars are keyed by their url rather than where their stub is kept, and the directory of a package is keyed
+     * by the directory of the classpath element.
+     */
+    private String shardKey(URL url, File file, String packageName) {
+        if (remoteJars != null && RemoteJarCache.isRemote(url)) {
+            return RemoteJarCache.jarUrlOf(url).toExternalForm();
+        }
+        if (file.isDirectory() && packageName.length() > 0) {
+            File root = file;
+            for (int x = packageName.split("/").length; x > 0 && root.getParentFile() != null; x--) {
+                root = root.getParentFile();
+            }
+            return shardKey(root);
+        }
+        return shardKey(file);
+    }
+
+    private void addToShard(long position, List<ExportPackage> exports) {
+        if (shardResult != null) {
+            for (ExportPackage export : exports) {
+                shardResult.add(position, export);
+            }
+        }
+    }
+
+    /**
+     * Makes the scan check the packages declared by the module descriptor of each modular jar against those found
+     * by listing the jar, failing with an {@link IllegalStateException} when they differ
+     * @param check True to check
+     */
+    void setCheckModuleDescriptors(boolean check) {
+        this.checkModuleDescriptors = check;
+    }
+
+    /**
+     * Makes the scan take the packages of a jar, and their versions, from its {@code Export-Package} header or
+     * {@code META-INF/INDEX.LIST} when it has one, instead of listing it
+     * @param useDeclaredPackages True to use the declared packages
+     */
+    void setUseDeclaredPackages(boolean useDeclaredPackages) {
+        this.useDeclaredPackages = useDeclaredPackages;
+    }
+
+    /**
+     * Replaces the scanner's own pool of open jars with one shared between scanners, which
+     * {@link #closeJarFiles()} leaves open
+     * @param pool The pool
+     */
+    void setJarFilePool(JarFilePool pool) {
+        this.jarFilePool = pool;
+        this.sharedJarFilePool = true;
+        this.packageVersions = null;
+    }
+
+    /**
+     * Closes the jars the scan left open, unless its pool is shared
+     */
+    void closeJarFiles() {
+        if (!sharedJarFilePool) {
+            jarFilePool.close();
+        }
+    }
+
+    /**
+     * Replaces the scanner's own jar content cache, e.g. with one shared between scanners
+     * @param cache The cache
+     */
+    void setJarContentCache(JarContentCache cache) {
+        this.jarContentCache = cache;
+        this.packageVersions = null;
+    }
+
+    /**
+     * Makes the scan queue the class files of the selected packages for import computation
+     * @param collector The collector that parses the classes
+     */
+    void setImportCollector(ImportCollector collector) {
+        this.importCollector = collector;
+    }
+
+    /**
+     * Limits the time the scan may take and what it may read
+     * @param budget The budget
+     */
+    void setBudget(ScanBudget budget) {
+        this.budget = budget;
+    }
+
+    /**
+     * Starts the clock of the budget, so the time spent before the scan, e.g. waiting for an executor, isn't counted
+     */
+    void startBudget() {
+        deadline = budget.getTimeoutNanos() == 0 ? 0 : System.nanoTime() + budget.getTimeoutNanos();
+    }
+
+    /**
+     * @return True if no budget limit was reached
+     */
+    boolean isComplete() {
+        return limitsReached.isEmpty();
+    }
+
+    /**
+     * @return The jars and directories that weren't read, or only partly
+     */
+    List<File> getSkipped() {
+        return new ArrayList<File>(skipped);
+    }
+
+    Set<ScanResult.Limit> getLimitsReached() {
+        return limitsReached.clone();
+    }
+
+    /**
+     * @return True if a limit was reached that stops the whole scan, rather than just the current jar
+     */
+    private boolean budgetExhausted() {
+        if (!exhausted && deadline != 0 && System.nanoTime() - deadline > 0) {
+            limitReached(ScanResult.Limit.DEADLINE);
+        }
+        return exhausted;
+    }
+
+    private void limitReached(ScanResult.Limit limit) {
+        if (limitsReached.add(limit)) {
+            log.debug("Scan budget limit reached: " + limit);
+        }
+        if (limit != ScanResult.Limit.ENTRIES_PER_JAR) {
+            exhausted = true;
+        }
+    }
+
+    /**
+     * Counts bytes about to be read against the budget
+     * @return False if reading them would go over the budget
+     */
+    private boolean reserveBytes(long bytes) {
+        if (budget.getMaxBytes() > 0 && bytesRead + bytes > budget.getMaxBytes()) {
+            limitReached(ScanResult.Limit.BYTES);
+            return false;
+        }
+        bytesRead += bytes;
+        throttle(bytes);
+        return true;
+    }
+
+    /**
+     * Lets the scan read jars served over HTTP
+     * @param remoteJars The cache of their stubs, or null to skip them
+     */
+    void setRemoteJars(RemoteJarCache remoteJars) {
+        this.remoteJars = remoteJars;
+    }
+
+    /**
+     * Slows the scan down with a throttle
+     * @param throttle The throttle, or null to scan at full speed
+     */
+    void setThrottle(ScanThrottle throttle) {
+        this.throttle = throttle;
+    }
+
+    /**
+     * Waits until the throttle allows reading, then counts bytes against it.  Without bytes to count, the wait is
+     * for a pause to end or the rate to catch up, and the thread is then yielded to other work.
+     */
+    private void throttle(long bytes) {
+        if (throttle == null) {
+            return;
+        }
+        try {
+            // wait in short steps, so a cancelled scan stops while paused
+            while (!throttle.tryAcquire(bytes, 100)) {
+                checkCancelled();
+            }
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new CancellationException("Package scan interrupted while throttled");
+        }
+        if (bytes == 0) {
+            Thread.yield();
+        }
+    }
+
+    void setScanListener(ScanListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Asks the scan to stop.  The scanning thread gives up at the next jar entry, file or classpath element by
+     * throwing a {@link CancellationException}.
+     */
+    void cancel() {
+        this.cancelled = true;
+    }
+
+    boolean isCancelled() {
+        return cancelled;
+    }
+
+    private void checkCancelled() {
+        if (cancelled) {
+            throw new CancellationException("Package scan cancelled");
+        }
+    }
+
+    /**
+     * Makes {@link #findInPackage(Test, String)} scan the classloader hierarchy one level at a time, reusing the
+     * results of ancestor classloaders from the cache
+     *
+     * @param cache The cache shared between scanners
+     * @param configurationKey Identifies the patterns and mappings in effect, as cached results depend on them
+     */
+    void setHierarchyCache(ClassLoaderHierarchyCache cache, String configurationKey) {
+        this.hierarchyCache = cache;
+        this.configurationKey = configurationKey;
     }
 
     Collection<ExportPackage> findInPackages(Test test, String... roots) {
         // ExportPackageListBuilder weans out duplicates with some smarts
-        ExportPackageListBuilder exportPackageListBuilder = new ExportPackageListBuilder();
-        for (String pkg : roots) {
-            for (ExportPackage export : findInPackage(test, pkg)) {
+        ExportPackageListBuilder exportPackageListBuilder = new ExportPackageListBuilder(firstWins);
+        for (rootIndex = 0; rootIndex < roots.length; rootIndex++) {
+            for (ExportPackage export : findInPackage(test, roots[rootIndex])) {
                 exportPackageListBuilder.add(export);
+                if (packageIndex != null) {
+                    packageIndex.add(export);
+                }
             }
         }
 
@@ -60,10 +419,26 @@ class InternalScanner {
 
     Collection<ExportPackage> findInUrls(Test test, URL... urls) {
         // ExportPackageListBuilder weans out duplicates with some smarts
-        ExportPackageListBuilder exportPackageListBuilder = new ExportPackageListBuilder();
+        ExportPackageListBuilder exportPackageListBuilder = new ExportPackageListBuilder(firstWins);
         Vector<URL> list = new Vector<URL>(Arrays.asList(urls));
         for (ExportPackage export : findInPackageWithUrls(test, "", list.elements())) {
             exportPackageListBuilder.add(export);
+            if (packageIndex != null) {
+                packageIndex.add(export);
+            }
+        }
+
+        // returns the packages sorted by name
+        return exportPackageListBuilder.getPackageList();
+    }
+
+    Collection<ExportPackage> findInArchive(Test test, File location, ArchiveContents archive) {
+        ExportPackageListBuilder exportPackageListBuilder = new ExportPackageListBuilder(firstWins);
+        for (ExportPackage export : loadImplementationsInArchive(test, location, archive)) {
+            exportPackageListBuilder.add(export);
+            if (packageIndex != null) {
+                packageIndex.add(export);
+            }
         }
 
         // returns the packages sorted by name
@@ -84,6 +459,9 @@ class InternalScanner {
         List<ExportPackage> localExports = new ArrayList<ExportPackage>();
 
         packageName = packageName.replace('.', '/');
+        if (hierarchyCache != null) {
+            return findInPackageHierarchy(test, packageName);
+        }
         Enumeration<URL> urls;
 
         try {
@@ -102,47 +480,124 @@ class InternalScanner {
         return findInPackageWithUrls(test, packageName, urls);
     }
 
-    List<ExportPackage> findInPackageWithUrls(Test test, String packageName, Enumeration<URL> urls)
-    {
+    /**
+     * Scans each classloader from the root of the hierarchy down to the configured classloader, only looking at the
+     * resources that a classloader adds to those of its ancestors.  The results of the ancestors are taken from, or
+     * stored in, the hierarchy cache.
+     *
+     * @param test        an instance of {@link Test} that will be used to filter classes
+     * @param packageName the resource path of the package from which to start scanning, e.g. {@code org/apache}
+     * @return List of packages to export, ordered from the root classloader down.
+     */
+    List<ExportPackage> findInPackageHierarchy(Test test, String packageName) {
+        LinkedList<ClassLoader> chain = new LinkedList<ClassLoader>();
+        for (ClassLoader cl = classloader; cl != null; cl = cl.getParent()) {
+            chain.addFirst(cl);
+        }
+
+        String key = configurationKey + "|" + packageName;
+        List<ExportPackage> localExports = new ArrayList<ExportPackage>();
+        Set<String> inherited = new HashSet<String>();
+        for (ClassLoader level : chain) {
+            checkCancelled();
+            boolean ancestor = level != classloader;
+            ClassLoaderHierarchyCache.Level result = ancestor ? hierarchyCache.get(level, key) : null;
+            if (result != null && result.isStale()) {
+                log.debug("Scanning classloader " + level + " again as its jars or directories changed");
+                result = null;
+            }
+            if (result == null) {
+                Vector<URL> ownUrls = new Vector<URL>();
+                Set<String> ownForms = new HashSet<String>();
+                try {
+                    for (Enumeration<URL> e = level.getResources(packageName); e.hasMoreElements(); ) {
+                        URL url = e.nextElement();
+                        String form = url.toExternalForm();
+                        if (!inherited.contains(form) && ownForms.add(form)) {
+                            ownUrls.add(url);
+                        }
+                    }
+                }
+                catch (IOException ioe) {
+                    log.warn("Could not read package: " + packageName + " from classloader " + level);
+                    continue;
+                }
+                List<ClassLoaderHierarchyCache.Element> elements = new ArrayList<ClassLoaderHierarchyCache.Element>();
+                findInPackageWithUrls(test, packageName, ownUrls.elements(), elements);
+                result = new ClassLoaderHierarchyCache.Level(ownForms, elements);
+                // an incomplete level must be scanned again by the next scan
+                if (ancestor && isComplete()) {
+                    hierarchyCache.put(level, key, result);
+                }
+            } else {
+                log.debug("Reusing " + result.getExports().size() + " cached packages of classloader " + level);
+                if (listener != null) {
+                    for (ClassLoaderHierarchyCache.Element element : result.getElements()) {
+                        listener.elementScanned(element.getFile(), element.getExports());
+                    }
+                }
+            }
+            inherited.addAll(result.getUrls());
+            localExports.addAll(result.getExports());
+        }
+
+        if (inherited.isEmpty()) {
+            log.warn("Unable to find any resources for package '" + packageName + "'");
+        }
+        return localExports;
+    }
+
+    List<ExportPackage> findInPackageWithUrls(Test test, String packageName, Enumeration<URL> urls) {
+        return findInPackageWithUrls(test, packageName, urls, null);
+    }
+
+    /**
+     * @param scanned Receives each jar or directory scanned with its packages, or null
+     */
+    private List<ExportPackage> findInPackageWithUrls(Test test, String packageName, Enumeration<URL> urls,
+                                                      List<ClassLoaderHierarchyCache.Element> scanned) {
         List<ExportPackage> localExports = new ArrayList<ExportPackage>();
+        int element = -1;
         while (urls.hasMoreElements()) {
+            checkCancelled();
+            throttle(0);
+            element++;
             try {
                 URL url = urls.nextElement();
-                String urlPath = url.getPath();
-
-                // it's in a JAR, grab the path to the jar
-                if (urlPath.lastIndexOf('!') > 0) {
-                    urlPath = urlPath.substring(0, urlPath.lastIndexOf('!'));
-                    if (urlPath.startsWith("/"))
-                    {
-                        urlPath = "file:" + urlPath;
+                File file = toFile(url);
+                if (file != null && shardCount > 1) {
+                    elementInShard = inShard(shardKey(url, file, packageName));
+                    // the jars of a directory element fall in shards of their own
+                    if (!elementInShard && !(file.isDirectory() && packageName.length() == 0)) {
+                        continue;
                     }
-                } else if (!urlPath.startsWith("file:")) {
-                    urlPath = "file:"+urlPath;
                 }
-
-                log.debug("Scanning for packages in [" + urlPath + "].");
-                File file = null;
-                try
-                {
-                    URL fileURL = new URL(urlPath);
-                    // only scan elements in the classpath that are local files
-                    if("file".equals(fileURL.getProtocol().toLowerCase()))
-                        file = new File(fileURL.toURI());
-                    else
-                        log.info("Skipping non file classpath element [ "+urlPath+ " ]");
-                }
-                catch (URISyntaxException e)
-                {
-                    //Yugh, this is necessary as the URL might not be convertible to a URI, so resolve it by the file path
-                    file = new File(urlPath.substring("file:".length()));
+                if (file != null && budgetExhausted()) {
+                    skipped.add(file);
+                    continue;
                 }
+                log.debug("Scanning for packages in [" + file + "].");
 
+                // the position orders what every shard finds as a scan of all of them would: by root, by element,
+                // then by file of a directory element
+                long position = ((long) rootIndex << 48) | ((long) element << 24);
+                List<ExportPackage> found = null;
                 if (file!=null && file.isDirectory()) {
-                    localExports.addAll(loadImplementationsInDirectory(test, packageName, file));
+                    // the directory adds what it finds to the shard, as its jars each have a position of their own
+                    found = loadImplementationsInDirectory(test, packageName, file, position);
                 } else if (file!=null) {
                     if (test.matchesJar(file.getName())) {
-                        localExports.addAll(loadImplementationsInJar(test, file));
+                        found = loadImplementationsInJar(test, file);
+                        addToShard(position, found);
+                    }
+                }
+                if (found != null) {
+                    localExports.addAll(found);
+                    if (scanned != null) {
+                        scanned.add(new ClassLoaderHierarchyCache.Element(file, found));
+                    }
+                    if (listener != null) {
+                        listener.elementScanned(file, Collections.unmodifiableList(found));
                     }
                 }
             }
@@ -153,6 +608,107 @@ class InternalScanner {
         return localExports;
     }
 
+    /**
+     * Resolves a resource url to the jar or directory on the local filesystem that contains it
+     *
+     * @param url The resource url, e.g. {@code jar:file:/lib/foo.jar!/org/foo}
+     * @return The jar or directory, or null if the url doesn't point to a local file
+     */
+    File toFile(URL url) throws IOException {
+        if (remoteJars != null && RemoteJarCache.isRemote(url)) {
+            // each jar is revalidated once per scan, however many package roots it holds
+            String jarUrl = RemoteJarCache.jarUrlOf(url).toExternalForm();
+            File stub = remoteStubs.get(jarUrl);
+            if (stub == null) {
+                stub = remoteJars.getStub(url);
+                remoteStubs.put(jarUrl, stub);
+            }
+            return stub;
+        }
+        String urlPath = url.getPath();
+
+        // it's in a JAR, grab the path to the jar
+        if (urlPath.lastIndexOf('!') > 0) {
+            urlPath = urlPath.substring(0, urlPath.lastIndexOf('!'));
+            if (urlPath.startsWith("/"))
+            {
+                urlPath = "file:" + urlPath;
+            }
+        } else if (!urlPath.startsWith("file:")) {
+            urlPath = "file:"+urlPath;
+        }
+
+        File file = null;
+        try
+        {
+            URL fileURL = new URL(urlPath);
+            // only scan elements in the classpath that are local files
+            if("file".equals(fileURL.getProtocol().toLowerCase()))
+                file = new File(fileURL.toURI());
+            else
+                log.info("Skipping non file classpath element [ "+urlPath+ " ]");
+        }
+        catch (URISyntaxException e)
+        {
+            //Yugh, this is necessary as the URL might not be convertible to a URI, so resolve it by the file path
+            file = new File(urlPath.substring("file:".length()));
+        }
+        return file;
+    }
+
+    /**
+     * Computes a fingerprint of everything a scan of the given package roots would read: the paths, sizes and
+     * modification times of the classpath elements, plus the scan configuration.  No jar is opened.
+     *
+     * @param configurationKey Identifies the patterns and mappings in effect
+     * @param roots The package roots that would be scanned
+     * @return The fingerprint
+     */
+    long fingerprintPackages(String configurationKey, String... roots) {
+        Fingerprint fingerprint = new Fingerprint().add(configurationKey);
+        for (String root : roots) {
+            String packageName = root.replace('.', '/');
+            fingerprint.add(packageName);
+            try {
+                addToFingerprint(fingerprint, classloader.getResources(packageName));
+            }
+            catch (IOException ioe) {
+                log.warn("Could not read package: " + packageName);
+            }
+        }
+        return fingerprint.get();
+    }
+
+    /**
+     * Computes a fingerprint of the given urls and scan configuration, see {@link #fingerprintPackages}
+     *
+     * @param configurationKey Identifies the patterns and mappings in effect
+     * @param urls The urls that would be scanned
+     * @return The fingerprint
+     */
+    long fingerprintUrls(String configurationKey, URL... urls) {
+        Fingerprint fingerprint = new Fingerprint().add(configurationKey).add("urls");
+        addToFingerprint(fingerprint, new Vector<URL>(Arrays.asList(urls)).elements());
+        return fingerprint.get();
+    }
+
+    private void addToFingerprint(Fingerprint fingerprint, Enumeration<URL> urls) {
+        while (urls.hasMoreElements()) {
+            URL url = urls.nextElement();
+            try {
+                File file = toFile(url);
+                if (file != null) {
+                    fingerprint.addFile(file);
+                } else {
+                    fingerprint.add(url.toExternalForm());
+                }
+            }
+            catch (IOException ioe) {
+                fingerprint.add(url.toExternalForm());
+            }
+        }
+    }
+
 
     /**
      * Finds matches in a physical directory on a filesystem.  Examines all
@@ -168,12 +724,35 @@ class InternalScanner {
      * @return List of packages to export.
      */
     List<ExportPackage> loadImplementationsInDirectory(Test test, String parent, File location) {
+        return loadImplementationsInDirectory(test, parent, location, -1);
+    }
+
+    /**
+     * @param position The position of the classpath element in a sharded scan, for the directory of the element,
+     *                 whose files each take the next position; -1 for the directories below it
+     */
+    private List<ExportPackage> loadImplementationsInDirectory(Test test, String parent, File location,
+                                                               long position) {
         log.debug("Scanning directory " + location.getAbsolutePath() + " parent: '" + parent + "'.");
         File[] files = location.listFiles();
         List<ExportPackage> localExports = new ArrayList<ExportPackage>();
         Set<String> scanned = new HashSet<String>();
+        Set<String> selected = new HashSet<String>();
 
-        for (File file : files) {
+        for (int x = 0; x < files.length; x++) {
+            File file = files[x];
+            checkCancelled();
+            if (budgetExhausted()) {
+                skipped.add(location);
+                break;
+            }
+            if (position >= 0) {
+                directoryPosition = position + x;
+            }
+            boolean rootJar = "".equals(parent) && file.getName().endsWith(".jar") && test.matchesJar(file.getName());
+            if (!rootJar && !elementInShard) {
+                continue;
+            }
             final String packageOrClass;
             if (parent == null || parent.length() == 0)
             {
@@ -185,25 +764,37 @@ class InternalScanner {
             }
 
             if (file.isDirectory()) {
-                localExports.addAll(loadImplementationsInDirectory(test, packageOrClass, file));
+                localExports.addAll(loadImplementationsInDirectory(test, packageOrClass, file, -1));
 
             // If the parent is empty, then assume the directory's jars should be searched
-            } else if ("".equals(parent) && file.getName().endsWith(".jar") && test.matchesJar(file.getName())) {
-                localExports.addAll(loadImplementationsInJar(test, file));
-            } else {
-                String pkg = packageOrClass;
-                int lastSlash = pkg.lastIndexOf('/');
-                if (lastSlash > 0) {
-                    pkg = pkg.substring(0, lastSlash);
+            } else if (rootJar) {
+                if (shardCount == 1 || inShard(shardKey(file))) {
+                    List<ExportPackage> found = loadImplementationsInJar(test, file);
+                    addToShard(directoryPosition, found);
+                    localExports.addAll(found);
                 }
-                pkg = pkg.replace('/', '.');
+            } else {
+                int lastSlash = packageOrClass.lastIndexOf('/');
+                String pkg = lastSlash > 0 ? PackageNames.fromPath(packageOrClass, lastSlash)
+                        : packageOrClass.replace('/', '.');
                 if (!scanned.contains(pkg)) {
                     if (test.matchesPackage(pkg)) {
                         log.debug(String.format("loadImplementationsInDirectory: [%s] %s", pkg, file));
-                        localExports.add(new ExportPackage(pkg, determinePackageVersion(null, pkg), location));
+                        ExportPackage export = createExportPackage(null, pkg, location, null);
+                        localExports.add(export);
+                        addToShard(directoryPosition, Collections.singletonList(export));
+                        selected.add(pkg);
                     }
                     scanned.add(pkg);
                 }
+                if (importCollector != null && lastSlash > 0 && file.getName().endsWith(".class")
+                        && selected.contains(pkg)) {
+                    if (!reserveBytes(file.length())) {
+                        skipped.add(location);
+                        break;
+                    }
+                    importCollector.submit(location, file);
+                }
             }
         }
         return localExports;
@@ -221,162 +812,467 @@ class InternalScanner {
     List<ExportPackage> loadImplementationsInJar(Test test, File file) {
 
         List<ExportPackage> localExports = new ArrayList<ExportPackage>();
-        Set<String> packages = jarContentCache.get(file.getPath());
+        // the classes of a remote jar aren't fetched, so its imports can't be collected
+        boolean collectImports = importCollector != null && !remoteStubs.containsValue(file);
+        // the central directory is only read when the jar isn't known by its path, and then only once, for both
+        // the content fingerprint and the bytes charged for listing the jar
+        CentralDirectory directory = null;
+        boolean directoryRead = false;
+        long fingerprint = 0;
+        String[] summary = null;
+        if (summaryStore != null) {
+            summary = summaryStore.get(file, useDeclaredPackages);
+            if (summary == null) {
+                directory = readCentralDirectory(file);
+                directoryRead = true;
+                fingerprint = directory == null ? 0 : directory.fingerprint();
+                summary = fingerprint == 0 ? null : summaryStore.getCopy(file, fingerprint, useDeclaredPackages);
+            }
+        }
+        if (summary != null && !mayHoldSelectedPackage(test, summary)) {
+            log.debug("Skipping jar file [" + file + "] as its summary holds no selected package");
+            return localExports;
+        }
+        if (budget.getMaxJars() > 0 && ++jarsRead > budget.getMaxJars()) {
+            limitReached(ScanResult.Limit.JARS);
+        }
+        if (budgetExhausted()) {
+            skipped.add(file);
+            return localExports;
+        }
+        // the class files have to be listed when imports are computed, so the cache is of no use
+        Collection<String> packages = null;
+        // the packages the jar declares, which replace those it holds when declared packages are used.  Only the
+        // packages it holds are cached as its packages, so scanners without the option can share the cache.
+        Collection<String> declared = null;
+        Map<String, String> declaredVersions = null;
+        if (!collectImports) {
+            packages = jarContentCache.get(file);
+            if (packages == null) {
+                if (!directoryRead) {
+                    directory = readCentralDirectory(file);
+                    directoryRead = true;
+                    fingerprint = directory == null ? 0 : directory.fingerprint();
+                }
+                if (fingerprint != 0 && jarContentCache.putCopy(file, fingerprint)) {
+                    log.debug("Sharing the packages of an identical copy of jar file [" + file + "]");
+                    packages = jarContentCache.get(file);
+                }
+            }
+            if (packages != null && useDeclaredPackages) {
+                declared = jarContentCache.getDeclaredPackages(file);
+                if (declared == null) {
+                    // cached by a scanner that didn't read the declarations, so the jar is listed again
+                    packages = null;
+                } else {
+                    declaredVersions = jarContentCache.getDeclaredVersions(file);
+                }
+            }
+        }
+        ArchiveContents archive = null;
         if (packages == null)
         {
-            packages = new HashSet<String>();
+            // on a cold scan the directory read for the fingerprint lists the jar, so it is only opened to parse
+            // classes for imports, or when its directory can't be read or parsed here
+            if (!directoryRead && !collectImports) {
+                directory = readCentralDirectory(file);
+            }
+            ArchiveContents listed = directory != null && !collectImports ? listDirectory(file, directory) : null;
+            boolean partial = false;
+            int entries = 0;
+            Set<String> found = new HashSet<String>();
+            packages = found;
+            // entries of a package are usually listed together, so the package is only worked out when the
+            // directory of the entry changes
+            String lastName = null;
+            int lastPos = -1;
+            String pkg = null;
+            int selected = UNKNOWN;
+            boolean acquired = false;
             try {
-                JarFile jarFile = new JarFile(file);
-
+                JarFile jarFile = null;
+                if (listed == null) {
+                    jarFile = jarFilePool.acquire(file);
+                    acquired = true;
+                }
+                // listing a jar reads its central directory rather than the whole jar; a jar whose directory can't be
+                // read here, e.g. a Zip64 one, is charged in full
+                if (!reserveBytes(listed != null ? directory.getSize()
+                        : collectImports ? centralDirectorySize(jarFile) : file.length())) {
+                    skipped.add(file);
+                    return localExports;
+                }
+                List<String> names;
+                Set<String> modulePackages = null;
+                if (collectImports) {
+                    // the class files have to be listed when imports are computed
+                    names = namesOf(jarFile);
+                } else {
+                    ArchiveContents contents = listed != null ? listed : ArchiveContents.read(jarFile, byteBudget);
+                    names = contents.getNames();
+                    modulePackages = readModulePackages(file, contents);
+                    if (useDeclaredPackages) {
+                        // the descriptor of a module already gives the packages it holds
+                        Map<String, String> exported = modulePackages == null
+                                ? readDeclaredPackages(file, contents) : null;
+                        declared = exported == null ? Collections.<String>emptySet() : exported.keySet();
+                        declaredVersions = exported == null ? null : convertVersions(exported);
+                    }
+                    // the contents of an opened jar can't be read once it is released, so versions open it again
+                    archive = listed;
+                }
+                if (modulePackages != null) {
+                    found.addAll(modulePackages);
+                }
 
-                for (Enumeration<JarEntry> e = jarFile.entries(); e.hasMoreElements(); ) {
-                    JarEntry entry = e.nextElement();
-                    String name = entry.getName();
-                    if (!entry.isDirectory()) {
-                        String pkg = name;
-                        int pos = pkg.lastIndexOf('/');
-                        if (pos > -1) {
-                            pkg = pkg.substring(0, pos);
+                for (Iterator<String> e = modulePackages == null ? names.iterator()
+                        : Collections.<String>emptyIterator(); e.hasNext(); ) {
+                    checkCancelled();
+                    if (budgetExhausted() || (budget.getMaxEntriesPerJar() > 0
+                            && entries++ == budget.getMaxEntriesPerJar())) {
+                        if (!exhausted) {
+                            limitReached(ScanResult.Limit.ENTRIES_PER_JAR);
+                        }
+                        partial = true;
+                        break;
+                    }
+                    String name = e.next();
+                    if (!name.endsWith("/")) {
+                        int pos = name.lastIndexOf('/');
+                        if (pos < 0) {
+                            // entries at the root count as packages of their own
+                            pkg = name;
+                            lastName = null;
+                            selected = UNKNOWN;
+                            found.add(pkg);
+                        } else if (!PackageNames.samePackage(name, pos, lastName, lastPos)) {
+                            pkg = PackageNames.fromPath(name, pos);
+                            lastName = name;
+                            lastPos = pos;
+                            selected = UNKNOWN;
+                            if (found.add(pkg) && log.isDebugEnabled()) {
+                                // only log the first time, as a package can be split across the jar
+                                log.debug(String.format("Found package '%s' in jar file [%s]", pkg, file));
+                            }
                         }
-                        pkg = pkg.replace('/', '.');
-                        boolean newlyAdded = packages.add(pkg);
-                        if (newlyAdded && log.isDebugEnabled())
-                        {
-                            // Use newlyAdded as we don't want to log duplicates
-                            log.debug(String.format("Found package '%s' in jar file [%s]", pkg, file));
+                        if (collectImports && pos > -1 && name.endsWith(".class")) {
+                            if (selected == UNKNOWN) {
+                                selected = test.matchesPackage(pkg) ? SELECTED : NOT_SELECTED;
+                            }
+                            JarEntry entry = selected == SELECTED ? jarFile.getJarEntry(name) : null;
+                            if (entry != null) {
+                                if (!reserveBytes(entry.getCompressedSize())) {
+                                    partial = true;
+                                    break;
+                                }
+                                importCollector.submit(file, jarFilePool, entry);
+                            }
                         }
-                     }
+                    }
+                }
+                if (partial) {
+                    // the packages found so far are used, but only a complete listing is cached
+                    skipped.add(file);
+                } else {
+                    jarContentCache.put(file, packages, declared, declaredVersions, fingerprint);
                 }
             }
             catch (IOException ioe) {
                 log.error("Could not search jar file '" + file + "' for classes matching criteria: " +
                         test + " due to an IOException" + ioe);
+                // set the cache, even if the scan produced an error, but not if it was cancelled
+                jarContentCache.put(file, packages);
                 return Collections.emptyList();
             }
-            finally
-            {
-                // set the cache, even if the scan produced an error
-                jarContentCache.put(file.getPath(), packages);
+            finally {
+                if (acquired) {
+                    jarFilePool.release(file);
+                }
             }
         }
 
-        Set<String> scanned = new HashSet<String>();
-        for (String pkg : packages)
+        // a partly read jar can't be summarized
+        if (summary == null && summaryStore != null && !skipped.contains(file)) {
+            summaryStore.put(file, withDeclared(packages, declared), fingerprint, useDeclaredPackages);
+        }
+
+        // the packages are distinct, whether they come from the set or the cache
+        for (String pkg : declared != null && !declared.isEmpty() ? declared : packages)
         {
-            if (!scanned.contains(pkg)) {
-                if (test.matchesPackage(pkg)) {
-                    localExports.add(new ExportPackage(pkg, determinePackageVersion(file, pkg), file));
-                }
-                scanned.add(pkg);
+            if (test.matchesPackage(pkg)) {
+                localExports.add(createExportPackage(file, pkg, file,
+                        declaredVersions == null ? null : declaredVersions.get(pkg), archive));
             }
         }
 
         return localExports;
     }
 
-    String determinePackageVersion(File jar, String pkg) {
-        // Look for an explicit mapping
-        String version = null;
-        for (PackageScanner.VersionMapping mapping : versionMappings) {
-            if (mapping.matches(pkg)) {
-                version = mapping.getVersion();
+    /**
+     * Finds the packages of an archive held by the caller rather than in a file.  The jar patterns don't apply, and
+     * as the classes aren't read, imports aren't collected.  The version of the archive comes from the version
+     * resolvers that don't need a jar, given the location, and from the manifest and {@code pom.properties}
+     * resolvers, which read the archive contents; other resolvers are skipped.
+     *
+     * @param test a Test used to filter the packages
+     * @param location The location the packages are reported against
+     * @param archive The contents of the archive
+     * @return List of packages to export.
+     */
+    List<ExportPackage> loadImplementationsInArchive(Test test, File location, ArchiveContents archive) {
+        checkCancelled();
+        Map<String, String> declaredVersions = null;
+        Collection<String> packages = null;
+        if (useDeclaredPackages) {
+            try {
+                Map<String, String> exported = DeclaredPackages.read(archive.getManifest(), archive.getIndexList());
+                if (exported != null) {
+                    packages = exported.keySet();
+                    declaredVersions = convertVersions(exported);
+                }
+            }
+            catch (IOException ex) {
+                log.warn("Unable to read the packages declared by archive [" + location + "], listing it instead", ex);
             }
         }
+        if (packages == null) {
+            packages = archive.getPackages();
+        }
 
-        if (version == null) {
-            version = guessedJarVersionCache.get(jar);
+        String version = resolveVersion(location, archive);
+        List<ExportPackage> localExports = new ArrayList<ExportPackage>();
+        for (String pkg : packages) {
+            if (test.matchesPackage(pkg)) {
+                String declaredVersion = declaredVersions == null ? null : declaredVersions.get(pkg);
+                localExports.add(new ExportPackage(pkg,
+                        packageVersions().determine(null, pkg, declaredVersion == null ? version : declaredVersion),
+                        location));
+            }
+        }
+        if (listener != null) {
+            listener.elementScanned(location, Collections.unmodifiableList(localExports));
         }
+        return localExports;
+    }
 
-        if (version == null && jar != null) {
-            JarFile jarFile = null;
+    /**
+     * Runs the version resolvers on an archive that isn't a file, see
+     * {@link #loadImplementationsInArchive(Test, File, ArchiveContents)}
+     */
+    private String resolveVersion(File location, ArchiveContents archive) {
+        for (VersionResolver resolver : versionResolvers) {
             try {
-                jarFile = new JarFile(jar);
-                Manifest mf = jarFile.getManifest();
-                if (mf != null && mf.getMainAttributes() != null) {
-                    version = mf.getMainAttributes().getValue("Bundle-Version");
-
-                    if (version == null) {
-                        version = mf.getMainAttributes().getValue("Specification-Version");
-                    }
-
-                    if (version == null) {
-                        version = mf.getMainAttributes().getValue("Implementation-Version");
-                    }
-
-                    if (version == null) {
-                        version = determineVersionFromMavenProperties(jarFile);
-                    }
+                String version = null;
+                if (resolver == VersionResolvers.manifest() || resolver == VersionResolvers.pomProperties()) {
+                    version = PackageVersions.resolveVersion(resolver, archive);
+                } else if (!resolver.requiresJar()) {
+                    version = resolver.resolveVersion(location, null, versionConverter);
                 }
-            }
-            catch (IOException ex) {
-                log.debug("Cannot turn file into jar file", ex);
-            }
-            finally {
-                if (jarFile != null)
-                {
-                    try {
-                        jarFile.close();
-                    }
-                    catch (IOException e) {
-                        // ignore
-                    }
+                if (version != null) {
+                    return version;
                 }
             }
-
-            // give up and try the jar name
-            if (version == null) {
-                // Try to guess the version from the jar name
-                String name = jar.getName();
-                version = extractVersion(name);
+            catch (IOException ex) {
+                log.debug("Version resolver " + resolver + " cannot read " + location, ex);
             }
+        }
+        return null;
+    }
 
-            if (version != null) {
-                guessedJarVersionCache.put(jar, version);
+    /**
+     * @param versions Versions by package name, null for packages without one
+     * @return The versions converted to OSGi versions, leaving out the missing ones
+     */
+    private Map<String, String> convertVersions(Map<String, String> versions) {
+        Map<String, String> converted = new HashMap<String, String>();
+        for (Map.Entry<String, String> version : versions.entrySet()) {
+            if (version.getValue() != null) {
+                converted.put(version.getKey(), versionConverter.getVersion(version.getValue()));
             }
         }
+        return converted;
+    }
 
-        if (version == null && debug)
-        {
-            if (jar != null)
-            {
-                log.warn("Unable to determine version for '" + pkg + "' in jar '" + jar.getPath() + "'");
+    /**
+     * Reads the packages of a modular jar from its module descriptor, which also gives the version of the jar when
+     * the module has one
+     * @return The packages, or null if the jar has no descriptor or it doesn't list its packages
+     */
+    private Set<String> readModulePackages(File file, ArchiveContents archive) {
+        ClassFileReader.ModuleInfo module;
+        try {
+            InputStream in = archive.getModuleDescriptor();
+            if (in == null) {
+                return null;
             }
-            else
-            {
-                log.warn("Unable to determine version for '" + pkg + "'");
+            if (classFileReader == null) {
+                classFileReader = new ClassFileReader();
             }
+            try {
+                classFileReader.read(in);
+            }
+            finally {
+                in.close();
+            }
+            module = classFileReader.readModuleInfo();
+        }
+        catch (IOException ex) {
+            log.warn("Unable to read the module descriptor of jar file [" + file + "], listing the jar instead", ex);
+            return null;
         }
+        if (module.getPackages() == null) {
+            return null;
+        }
+        if (module.getVersion() != null && jarContentCache.getVersion(file) == null) {
+            jarContentCache.putVersion(file, versionConverter.getVersion(module.getVersion()), true);
+        }
+        if (checkModuleDescriptors) {
+            checkModulePackages(file, archive.getNames(), module.getPackages());
+        }
+        log.debug("Read the packages of module '" + module.getName() + "' from its descriptor in [" + file + "]");
+        return module.getPackages();
+    }
 
-        return version;
+    /**
+     * Compares the packages declared by a module with the directories of the files in its jar, leaving out the
+     * files at the root and under {@code META-INF}, which aren't in packages
+     */
+    private void checkModulePackages(File file, List<String> names, Set<String> declared) {
+        Set<String> listed = new TreeSet<String>();
+        for (String name : names) {
+            int pos = name.lastIndexOf('/');
+            if (!name.endsWith("/") && pos > 0 && !name.startsWith("META-INF/")) {
+                listed.add(name.substring(0, pos).replace('/', '.'));
+            }
+        }
+        if (!listed.equals(new TreeSet<String>(declared))) {
+            throw new IllegalStateException("The module descriptor of jar file [" + file + "] declares the packages "
+                    + new TreeSet<String>(declared) + " but the jar holds " + listed);
+        }
     }
 
-    private String determineVersionFromMavenProperties(JarFile jarFile)
-    {
+    /**
+     * @return The size of the central directory an opened jar was read from, worked out from its entries
+     */
+    private static long centralDirectorySize(JarFile jarFile) {
+        long size = 0;
         for (Enumeration<JarEntry> e = jarFile.entries(); e.hasMoreElements(); ) {
             JarEntry entry = e.nextElement();
-            if (entry.getName().endsWith("/pom.properties")) {
-                InputStream in = null;
-                try {
-                    in = jarFile.getInputStream(entry);
-                    Properties props = new Properties();
-                    props.load(in);
-                    return props.getProperty("version");
-                }
-                catch (IOException ex) {
-                    log.debug("Exception reading maven properties file", ex);
-                }
-                finally {
-                    if (in != null) {
-                        try {
-                            in.close();
-                        } catch (IOException ex) {
-                            // ignore
-                        }
-                    }
-                }
+            // the fixed size of a directory entry, then its name, extra field and comment
+            size += 46 + entry.getName().getBytes(UTF8).length
+                    + (entry.getExtra() == null ? 0 : entry.getExtra().length)
+                    + (entry.getComment() == null ? 0 : entry.getComment().getBytes(UTF8).length);
+        }
+        return size;
+    }
+
+    private static List<String> namesOf(JarFile jarFile) {
+        List<String> names = new ArrayList<String>(jarFile.size());
+        for (Enumeration<JarEntry> e = jarFile.entries(); e.hasMoreElements(); ) {
+            names.add(e.nextElement().getName());
+        }
+        return names;
+    }
+
+    /**
+     * @return The packages a jar holds and those it declares, which may be elsewhere, e.g. in a jar it embeds
+     */
+    private static Collection<String> withDeclared(Collection<String> packages, Collection<String> declared) {
+        if (declared == null || declared.isEmpty()) {
+            return packages;
+        }
+        Set<String> all = new HashSet<String>(packages);
+        all.addAll(declared);
+        return all;
+    }
+
+    /**
+     * Lists a jar from its central directory, without opening it
+     * @return The contents, or null if they can't be read that way, e.g. the directory is malformed, so the jar is
+     *         opened instead
+     */
+    private ArchiveContents listDirectory(File file, CentralDirectory directory) {
+        try {
+            return ArchiveContents.read(file, directory, byteBudget);
+        }
+        catch (IOException ex) {
+            log.debug("Unable to list jar file [" + file + "] from its central directory, opening it instead", ex);
+            return null;
+        }
+    }
+
+    /**
+     * Reads the central directory of a jar, whose fingerprint identifies the jar by its content, so copies of the
+     * jar can share what was learnt about it
+     * @return The central directory, or null if it can't be read
+     */
+    private CentralDirectory readCentralDirectory(File file) {
+        try {
+            return CentralDirectory.read(file);
+        }
+        catch (IOException ex) {
+            log.debug("Unable to read the central directory of jar file [" + file + "]", ex);
+            return null;
+        }
+    }
+
+    private static boolean mayHoldSelectedPackage(Test test, String[] summary) {
+        for (String prefix : summary) {
+            if (test.mayMatchPackageWithPrefix(prefix)) {
+                return true;
             }
         }
-        return null;
+        return false;
+    }
+
+    private ExportPackage createExportPackage(File jar, String pkg, File location, String declaredVersion) {
+        return createExportPackage(jar, pkg, location, declaredVersion, null);
+    }
+
+    /**
+     * @param archive The contents of the jar if it was just listed, which eager versions are read from rather than
+     *                opening the jar; lazy versions don't keep it, and open the jar if they need to
+     */
+    private ExportPackage createExportPackage(File jar, String pkg, File location, String declaredVersion,
+                                              ArchiveContents archive) {
+        if (!lazyVersions) {
+            return new ExportPackage(pkg, packageVersions().determine(jar, pkg, declaredVersion, archive), location);
+        }
+        return ExportPackage.lazy(pkg, packageVersions().lazily(jar, pkg, declaredVersion), location);
+    }
+
+    /**
+     * @return What works out the versions of packages, created once the scanner is set up, as the packages whose
+     * versions are lazy hold it rather than the scanner
+     */
+    private PackageVersions packageVersions() {
+        if (packageVersions == null) {
+            packageVersions = new PackageVersions(versionMappings, versionResolvers, versionConverter,
+                    jarContentCache, jarFilePool, debug);
+        }
+        return packageVersions;
+    }
+
+    /**
+     * Reads the packages a jar declares
+     * @return The packages with their versions, or null if the jar declares none or they can't be read
+     */
+    private Map<String, String> readDeclaredPackages(File file, ArchiveContents archive) {
+        try {
+            Map<String, String> declared = DeclaredPackages.read(archive.getManifest(), archive.getIndexList());
+            if (declared != null) {
+                log.debug("Read the " + declared.size() + " packages declared by jar file [" + file + "]");
+            }
+            return declared;
+        }
+        catch (IOException ex) {
+            log.warn("Unable to read the packages declared by jar file [" + file + "], listing the jar instead", ex);
+            return null;
+        }
+    }
+
+    String determinePackageVersion(File jar, String pkg) {
+        return packageVersions().determine(jar, pkg, null);
     }
 
     /**
@@ -387,30 +1283,6 @@ class InternalScanner {
      */
     String extractVersion(String filename)
     {
-        StringBuilder version = null;
-        boolean lastWasSeparator = false;
-        for (int x=0; x<filename.length(); x++)
-        {
-            char c = filename.charAt(x);
-            if (c == '-' || c == '_')
-                lastWasSeparator = true;
-            else
-            {
-                if (Character.isDigit(c) && lastWasSeparator && version == null)
-                    version = new StringBuilder();
-                lastWasSeparator = false;
-            }
-
-            if (version != null)
-                version.append(c);
-        }
-
-        if (version != null)
-        {
-            if (".jar".equals(version.substring(version.length() - 4)))
-                version.delete(version.length() - 4, version.length());
-            return versionConverter.getVersion(version.toString());
-        } else
-            return null;
+        return VersionResolvers.versionFromFileName(filename, versionConverter);
     }
 }
@@ -0,0 +1,429 @@
+package org.twdata.pkgscanner;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Remembers the packages found in each jar, the version guessed for it and the packages and versions it declares,
+ * so a jar is only read once.  The packages found are always those the jar holds, whatever the scanner caching them
+ * does with them, so scanners with other options can share a cache: one that uses the declared packages, see
+ * {@link PackageScanner#useDeclaredPackages()}, applies them on top.  The
+ * package names of a jar are sorted and front-coded into a single byte array: each name is stored as the length of
+ * the prefix it shares with the previous name, followed by the rest of its UTF-8 bytes.  As package names in a jar
+ * share long prefixes, this takes a fraction of the memory of a set of strings.
+ * <p/>
+ * The cache never grows beyond its byte budget.  When adding a jar would exceed it, the least recently used jars
+ * are evicted.  Jars looked up by {@link File} are revalidated against the size and modification time they had
+ * when cached, so a long-lived cache notices replaced jars.  Instances are thread-safe, so one cache can be shared
+ * by many {@link PackageScanner}s.
+ * <p/>
+ * The same jar is often found at several paths, e.g. copied into many web applications.  A jar cached with the
+ * fingerprint of its content, see {@link CentralDirectory#fingerprint()}, can be shared with the copies found later,
+ * which then get its packages without being read.  Its version is only shared when it was read from the content of
+ * the jar, e.g. its manifest, as one worked out from the path, e.g. the file name, may not hold for a copy.  The
+ * budget counts the packages of each copy, though they share one array.
+ */
+public class JarContentCache {
+    /** The default byte budget, 8MB */
+    public static final long DEFAULT_MAX_BYTES = 8L * 1024 * 1024;
+
+    /** A rough estimate of the fixed cost of an entry: the map entry, the key, the entry and the array header */
+    private static final int ENTRY_OVERHEAD = 128;
+    private static final long UNKNOWN = -1;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final long maxBytes;
+    private long usedBytes;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    /** The path of a cached jar for each content fingerprint */
+    private final Map<Long, String> copies = new HashMap<Long, String>();
+
+    /**
+     * Constructs a cache with the default budget
+     */
+    public JarContentCache() {
+        this(DEFAULT_MAX_BYTES);
+    }
+
+    /**
+     * Constructs a cache
+     * @param maxBytes The maximum number of bytes the cached packages may take
+     */
+    public JarContentCache(long maxBytes) {
+        if (maxBytes < 0) {
+            throw new IllegalArgumentException("maxBytes must not be negative");
+        }
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Looks up the packages of a jar, without checking whether the jar has changed
+     * @param path The path of the jar
+     * @return The package names in alphabetical order, or null if the jar isn't cached
+     */
+    public synchronized List<String> get(String path) {
+        Entry entry = entries.get(path);
+        return entry == null || entry.packages == null ? null : decode(entry.packages);
+    }
+
+    /**
+     * Looks up the packages of a jar, dropping the jar from the cache if its size or modification time changed
+     * @param jar The jar
+     * @return The package names in alphabetical order, or null if the jar isn't cached
+     */
+    public synchronized List<String> get(File jar) {
+        Entry entry = getValid(jar);
+        return entry == null || entry.packages == null ? null : decode(entry.packages);
+    }
+
+    /**
+     * Caches the packages of a jar, evicting the least recently used jars if the budget is exceeded.  A jar that
+     * doesn't fit in the budget by itself isn't cached.
+     *
+     * @param path The path of the jar
+     * @param packages The package names
+     */
+    public synchronized void put(String path, Collection<String> packages) {
+        Entry entry = entries.get(path);
+        store(path, new Entry(UNKNOWN, UNKNOWN, encode(packages), entry == null ? null : entry.version,
+                entry != null && entry.versionFromContent, null, null, 0));
+    }
+
+    /**
+     * Caches the packages of a jar along with its current size and modification time
+     *
+     * @param jar The jar
+     * @param packages The package names
+     */
+    public synchronized void put(File jar, Collection<String> packages) {
+        put(jar, packages, null);
+    }
+
+    /**
+     * Caches the packages of a jar with the versions it declares for them, e.g. in its {@code Export-Package}
+     * header
+     *
+     * @param jar The jar
+     * @param packages The package names
+     * @param declaredVersions The versions of the packages that declare one, or null
+     */
+    public synchronized void put(File jar, Collection<String> packages, Map<String, String> declaredVersions) {
+        put(jar, packages, null, declaredVersions, 0);
+    }
+
+    /**
+     * Caches the packages of a jar with the fingerprint of its content, so they can be shared with its copies
+     *
+     * @param jar The jar
+     * @param packages The package names the jar holds
+     * @param declared The package names the jar declares, empty if it declares none, or null if its declarations
+     *                 weren't read
+     * @param declaredVersions The versions of the packages that declare one, or null
+     * @param fingerprint The content fingerprint, or 0 if it isn't known
+     */
+    synchronized void put(File jar, Collection<String> packages, Collection<String> declared,
+                          Map<String, String> declaredVersions, long fingerprint) {
+        Entry entry = getValid(jar);
+        store(jar.getPath(), new Entry(jar.length(), jar.lastModified(), encode(packages),
+                entry == null ? null : entry.version, entry != null && entry.versionFromContent,
+                declared == null ? null : encode(declared),
+                declaredVersions == null || declaredVersions.isEmpty()
+                        ? null : Collections.unmodifiableMap(new HashMap<String, String>(declaredVersions)),
+                fingerprint));
+    }
+
+    /**
+     * Caches a jar as a copy of a cached jar with the same content, sharing its packages, declared packages and
+     * versions, and version, if that was read from the content
+     *
+     * @param jar The jar
+     * @param fingerprint The content fingerprint of the jar
+     * @return True if a copy was cached, so the jar is now cached too
+     */
+    synchronized boolean putCopy(File jar, long fingerprint) {
+        Entry copy = getCopy(fingerprint);
+        if (copy == null || copy.packages == null) {
+            return false;
+        }
+        store(jar.getPath(), new Entry(jar.length(), jar.lastModified(), copy.packages,
+                copy.versionFromContent ? copy.version : null, copy.versionFromContent, copy.declaredPackages,
+                copy.declaredVersions, fingerprint));
+        return entries.containsKey(jar.getPath());
+    }
+
+    /**
+     * Looks up the packages a jar declares, dropping the jar from the cache if it changed
+     * @param jar The jar
+     * @return The package names in alphabetical order, empty if the jar declares none, or null if the jar isn't
+     *         cached or its declarations weren't read
+     */
+    synchronized List<String> getDeclaredPackages(File jar) {
+        Entry entry = getValid(jar);
+        return entry == null || entry.declaredPackages == null ? null : decode(entry.declaredPackages);
+    }
+
+    /**
+     * Looks up the package versions a jar declares, dropping the jar from the cache if it changed
+     * @param jar The jar
+     * @return The versions by package name, or null if the jar declares none or isn't cached
+     */
+    public synchronized Map<String, String> getDeclaredVersions(File jar) {
+        Entry entry = getValid(jar);
+        return entry == null ? null : entry.declaredVersions;
+    }
+
+    /**
+     * Looks up the version guessed for a jar, dropping the jar from the cache if it changed
+     * @param jar The jar
+     * @return The version, or null if it isn't known
+     */
+    public synchronized String getVersion(File jar) {
+        Entry entry = getValid(jar);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.version == null && entry.fingerprint != 0) {
+            // a copy may have been given its version since this jar was cached
+            Entry copy = getCopy(entry.fingerprint);
+            return copy == null || !copy.versionFromContent ? null : copy.version;
+        }
+        return entry.version;
+    }
+
+    /**
+     * Caches the version guessed for a jar, which isn't shared with its copies
+     * @param jar The jar
+     * @param version The version
+     */
+    public synchronized void putVersion(File jar, String version) {
+        putVersion(jar, version, false);
+    }
+
+    /**
+     * Caches the version of a jar
+     * @param jar The jar
+     * @param version The version
+     * @param fromContent True if the version was read from the content of the jar, so it is shared with its copies
+     */
+    synchronized void putVersion(File jar, String version, boolean fromContent) {
+        Entry entry = getValid(jar);
+        store(jar.getPath(), entry == null
+                ? new Entry(jar.length(), jar.lastModified(), null, version, fromContent, null, null, 0)
+                : new Entry(entry.length, entry.lastModified, entry.packages, version, fromContent,
+                        entry.declaredPackages, entry.declaredVersions, entry.fingerprint));
+        if (fromContent && entry != null && entry.fingerprint != 0) {
+            String path = copies.get(entry.fingerprint);
+            Entry copy = getCopy(entry.fingerprint);
+            if (copy != null && copy.version == null) {
+                // through store, so the version is counted against the budget
+                store(path, new Entry(copy.length, copy.lastModified, copy.packages, version, true,
+                        copy.declaredPackages, copy.declaredVersions, copy.fingerprint));
+            }
+        }
+    }
+
+    /**
+     * Drops a jar from the cache
+     * @param path The path of the jar
+     */
+    public synchronized void remove(String path) {
+        Entry entry = entries.remove(path);
+        if (entry != null) {
+            usedBytes -= sizeOf(path, entry);
+            forgetCopy(path, entry);
+        }
+    }
+
+    /**
+     * Drops all jars from the cache
+     */
+    public synchronized void clear() {
+        entries.clear();
+        copies.clear();
+        usedBytes = 0;
+    }
+
+    /**
+     * @return The number of cached jars
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * @return The estimated number of bytes taken by the cached jars
+     */
+    public synchronized long getUsedBytes() {
+        return usedBytes;
+    }
+
+    /**
+     * @return The maximum number of bytes the cached jars may take
+     */
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    private Entry getValid(File jar) {
+        Entry entry = entries.get(jar.getPath());
+        if (entry != null && entry.length != UNKNOWN
+                && (entry.length != jar.length() || entry.lastModified != jar.lastModified())) {
+            remove(jar.getPath());
+            return null;
+        }
+        return entry;
+    }
+
+    /**
+     * @return The cached jar with the given content, or null if there is none
+     */
+    private Entry getCopy(long fingerprint) {
+        String path = copies.get(fingerprint);
+        Entry copy = path == null ? null : entries.get(path);
+        return copy != null && copy.fingerprint == fingerprint ? copy : null;
+    }
+
+    private void forgetCopy(String path, Entry entry) {
+        if (entry.fingerprint != 0 && path.equals(copies.get(entry.fingerprint))) {
+            copies.remove(entry.fingerprint);
+        }
+    }
+
+    private void store(String path, Entry entry) {
+        remove(path);
+        long size = sizeOf(path, entry);
+        if (size > maxBytes) {
+            return;
+        }
+        for (Iterator<Map.Entry<String, Entry>> i = entries.entrySet().iterator();
+             usedBytes + size > maxBytes && i.hasNext(); ) {
+            Map.Entry<String, Entry> eldest = i.next();
+            usedBytes -= sizeOf(eldest.getKey(), eldest.getValue());
+            forgetCopy(eldest.getKey(), eldest.getValue());
+            i.remove();
+        }
+        entries.put(path, entry);
+        usedBytes += size;
+        if (entry.fingerprint != 0 && getCopy(entry.fingerprint) == null) {
+            copies.put(entry.fingerprint, path);
+        }
+    }
+
+    private static long sizeOf(String path, Entry entry) {
+        return ENTRY_OVERHEAD + 2L * path.length()
+                + (entry.packages == null ? 0 : entry.packages.length)
+                + (entry.version == null ? 0 : 2L * entry.version.length())
+                + (entry.declaredPackages == null ? 0 : entry.declaredPackages.length)
+                + (entry.declaredVersions == null ? 0 : sizeOf(entry.declaredVersions));
+    }
+
+    private static long sizeOf(Map<String, String> versions) {
+        long size = 0;
+        for (Map.Entry<String, String> version : versions.entrySet()) {
+            size += 64 + 2L * version.getKey().length() + 2L * version.getValue().length();
+        }
+        return size;
+    }
+
+    static byte[] encode(Collection<String> packages) {
+        String[] sorted = packages.toArray(new String[packages.size()]);
+        Arrays.sort(sorted);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeVarInt(out, sorted.length);
+        byte[] previous = new byte[0];
+        for (String pkg : sorted) {
+            ByteBuffer buffer = UTF8.encode(pkg);
+            byte[] current = new byte[buffer.remaining()];
+            buffer.get(current);
+
+            int shared = 0;
+            int max = Math.min(previous.length, current.length);
+            while (shared < max && previous[shared] == current[shared]) {
+                shared++;
+            }
+            writeVarInt(out, shared);
+            writeVarInt(out, current.length - shared);
+            out.write(current, shared, current.length - shared);
+            previous = current;
+        }
+        return out.toByteArray();
+    }
+
+    static List<String> decode(byte[] encoded) {
+        int[] pos = new int[1];
+        int count = readVarInt(encoded, pos);
+        if (count == 0) {
+            return Collections.emptyList();
+        }
+        List<String> packages = new ArrayList<String>(count);
+        byte[] name = new byte[64];
+        for (int x = 0; x < count; x++) {
+            int shared = readVarInt(encoded, pos);
+            int suffix = readVarInt(encoded, pos);
+            if (shared + suffix > name.length) {
+                name = Arrays.copyOf(name, Math.max(name.length * 2, shared + suffix));
+            }
+            System.arraycopy(encoded, pos[0], name, shared, suffix);
+            pos[0] += suffix;
+            packages.add(UTF8.decode(ByteBuffer.wrap(name, 0, shared + suffix)).toString());
+        }
+        return packages;
+    }
+
+    private static void writeVarInt(ByteArrayOutputStream out, int value) {
+        while ((value & ~0x7f) != 0) {
+            out.write((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    private static int readVarInt(byte[] in, int[] pos) {
+        int value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = in[pos[0]++];
+            value |= (b & 0x7f) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+
+    private static class Entry {
+        private final long length;
+        private final long lastModified;
+        private final byte[] packages;
+        private final String version;
+        /** True if the version was read from the content of the jar, so it holds for its copies too */
+        private final boolean versionFromContent;
+        /** The packages the jar declares, null if its declarations weren't read */
+        private final byte[] declaredPackages;
+        private final Map<String, String> declaredVersions;
+        private final long fingerprint;
+
+        private Entry(long length, long lastModified, byte[] packages, String version, boolean versionFromContent,
+                      byte[] declaredPackages, Map<String, String> declaredVersions, long fingerprint) {
+            this.length = length;
+            this.lastModified = lastModified;
+            this.packages = packages;
+            this.version = version;
+            this.versionFromContent = versionFromContent;
+            this.declaredPackages = declaredPackages;
+            this.declaredVersions = declaredVersions;
+            this.fingerprint = fingerprint;
+        }
+    }
+}
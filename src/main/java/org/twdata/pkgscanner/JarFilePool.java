@@ -0,0 +1,162 @@
+package org.twdata.pkgscanner;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.jar.JarFile;
+
+/**
+ * Keeps jars open between the phases of a scan, so listing a jar, reading its version and parsing its classes for
+ * imports share one handle, while never holding more than a fixed number of jars open.  Each use of a jar is
+ * bracketed by {@link #acquire(File)} and {@link #release(File)}.  Jars not in use stay open until a handle is
+ * needed for another jar, when the least recently used is closed, or until the pool is closed.  When every open
+ * jar is in use, acquiring another waits for one to be released, so a thread must not hold two jars at once.
+ * <p/>
+ * Each scan has its own pool, closed when the scan ends, unless it is given one to share with other scans.
+ * Instances are thread-safe.
+ */
+public class JarFilePool {
+    private static final Logger log = LoggerFactory.getLogger(JarFilePool.class);
+
+    /** The default number of jars held open at once */
+    public static final int DEFAULT_MAX_OPEN = 32;
+
+    private final int maxOpen;
+    private final LinkedHashMap<String, Handle> handles = new LinkedHashMap<String, Handle>(16, 0.75f, true);
+    private boolean closed;
+
+    /**
+     * Constructs a pool holding at most {@link #DEFAULT_MAX_OPEN} jars open
+     */
+    public JarFilePool() {
+        this(DEFAULT_MAX_OPEN);
+    }
+
+    /**
+     * Constructs a pool
+     * @param maxOpen The maximum number of jars held open at once
+     */
+    public JarFilePool(int maxOpen) {
+        if (maxOpen < 1) {
+            throw new IllegalArgumentException("maxOpen must be positive");
+        }
+        this.maxOpen = maxOpen;
+    }
+
+    /**
+     * Gets an open handle on a jar, reusing the one already open unless the jar changed since
+     * @param jar The jar
+     * @return The handle, to be given back with {@link #release(File)}
+     * @throws IOException If the jar can't be opened
+     */
+    synchronized JarFile acquire(File jar) throws IOException {
+        String path = jar.getPath();
+        Handle handle = handles.get(path);
+        if (handle != null && handle.users == 0
+                && (handle.length != jar.length() || handle.lastModified != jar.lastModified())) {
+            handles.remove(path);
+            close(handle);
+            handle = null;
+        }
+        if (handle == null) {
+            while (handles.size() >= maxOpen && !closeLeastRecentlyUsed()) {
+                try {
+                    wait();
+                }
+                catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while waiting to open " + jar);
+                }
+            }
+            // another thread may have opened it while this one waited
+            handle = handles.get(path);
+            if (handle == null) {
+                handle = new Handle(new JarFile(jar), jar.length(), jar.lastModified());
+                handles.put(path, handle);
+            }
+        }
+        handle.users++;
+        return handle.jarFile;
+    }
+
+    /**
+     * Gives back a handle got from {@link #acquire(File)}.  The jar stays open for later uses unless the pool is
+     * closed.
+     * @param jar The jar
+     */
+    synchronized void release(File jar) {
+        Handle handle = handles.get(jar.getPath());
+        if (handle == null || handle.users == 0) {
+            return;
+        }
+        handle.users--;
+        if (handle.users == 0) {
+            if (closed) {
+                handles.remove(jar.getPath());
+                close(handle);
+            }
+            notifyAll();
+        }
+    }
+
+    /**
+     * @return The number of open jars
+     */
+    public synchronized int getOpenCount() {
+        return handles.size();
+    }
+
+    /**
+     * Closes the jars not in use.  Jars in use are closed when released, and jars acquired afterwards are closed as
+     * soon as they are released.
+     */
+    public synchronized void close() {
+        closed = true;
+        for (Iterator<Handle> i = handles.values().iterator(); i.hasNext(); ) {
+            Handle handle = i.next();
+            if (handle.users == 0) {
+                i.remove();
+                close(handle);
+            }
+        }
+    }
+
+    private boolean closeLeastRecentlyUsed() {
+        for (Iterator<Map.Entry<String, Handle>> i = handles.entrySet().iterator(); i.hasNext(); ) {
+            Handle handle = i.next().getValue();
+            if (handle.users == 0) {
+                i.remove();
+                close(handle);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void close(Handle handle) {
+        try {
+            handle.jarFile.close();
+        }
+        catch (IOException ex) {
+            log.debug("Unable to close " + handle.jarFile.getName(), ex);
+        }
+    }
+
+    private static class Handle {
+        private final JarFile jarFile;
+        private final long length;
+        private final long lastModified;
+        private int users;
+
+        private Handle(JarFile jarFile, long length, long lastModified) {
+            this.jarFile = jarFile;
+            this.length = length;
+            this.lastModified = lastModified;
+        }
+    }
+}
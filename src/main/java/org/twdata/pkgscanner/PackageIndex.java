@@ -0,0 +1,172 @@
+package org.twdata.pkgscanner;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Every package found by a scan with every location that provides it, not just the one kept by
+ * {@link ExportPackageListBuilder}.  Packages are kept in a trie of their dot-separated segments, so looking up a
+ * package takes time proportional to the length of its name, and the packages under a prefix are found without
+ * looking at the others.  The index holds the {@link ExportPackage}s of the scan itself rather than copies.
+ * <p/>
+ * Build an index with {@link ScanPlan#scanIndex()}.  Once returned, an index is not modified and can be read from
+ * any thread.
+ */
+public class PackageIndex {
+    private final Node root = new Node();
+    private final boolean firstWins;
+    private int size;
+
+    PackageIndex(boolean firstWins) {
+        this.firstWins = firstWins;
+    }
+
+    /**
+     * Adds a location providing a package
+     */
+    void add(ExportPackage export) {
+        String name = export.getPackageName();
+        Node node = root;
+        int start = 0;
+        while (start <= name.length()) {
+            int end = name.indexOf('.', start);
+            if (end < 0) {
+                end = name.length();
+            }
+            String segment = name.substring(start, end);
+            if (node.children == null) {
+                node.children = new HashMap<String, Node>(4);
+            }
+            Node child = node.children.get(segment);
+            if (child == null) {
+                child = new Node();
+                node.children.put(segment, child);
+            }
+            node = child;
+            start = end + 1;
+        }
+        if (node.providers == null) {
+            node.providers = new ArrayList<ExportPackage>(1);
+            size++;
+        }
+        node.providers.add(export);
+    }
+
+    /**
+     * @return The number of distinct packages
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @param packageName The package name
+     * @return True if some location provides the package
+     */
+    public boolean contains(String packageName) {
+        Node node = find(packageName);
+        return node != null && node.providers != null;
+    }
+
+    /**
+     * @param packageName The package name
+     * @return Every location providing the package, in the order they were found, or an empty list
+     */
+    public List<ExportPackage> getProviders(String packageName) {
+        Node node = find(packageName);
+        return node == null || node.providers == null
+                ? Collections.<ExportPackage>emptyList() : Collections.unmodifiableList(node.providers);
+    }
+
+    /**
+     * @param packageName The package name
+     * @return The distinct known versions of the package, in the order they were found
+     */
+    public Set<String> getVersions(String packageName) {
+        Set<String> versions = new LinkedHashSet<String>();
+        for (ExportPackage export : getProviders(packageName)) {
+            if (export.getVersion() != null) {
+                versions.add(export.getVersion());
+            }
+        }
+        return versions;
+    }
+
+    /**
+     * @param prefix A package name, or the empty string for all packages
+     * @return The package and the packages under it, e.g. {@code org.foo} and {@code org.foo.bar} for the prefix
+     *         {@code org.foo}, in alphabetical order of their segments
+     */
+    public List<String> getPackages(String prefix) {
+        List<String> packages = new ArrayList<String>();
+        Node node = prefix.length() == 0 ? root : find(prefix);
+        if (node != null) {
+            collect(node, prefix, packages);
+        }
+        return packages;
+    }
+
+    /**
+     * @return The packages provided with more than one known version, with all their providers, in alphabetical
+     *         order of package
+     */
+    public SortedMap<String, List<ExportPackage>> getConflicts() {
+        SortedMap<String, List<ExportPackage>> conflicts = new TreeMap<String, List<ExportPackage>>();
+        for (String pkg : getPackages("")) {
+            if (getVersions(pkg).size() > 1) {
+                conflicts.put(pkg, getProviders(pkg));
+            }
+        }
+        return conflicts;
+    }
+
+    /**
+     * @return One location per package, chosen as the scan would, in alphabetical order of package
+     */
+    public List<ExportPackage> getExports() {
+        ExportPackageListBuilder builder = new ExportPackageListBuilder(firstWins);
+        for (String pkg : getPackages("")) {
+            for (ExportPackage export : getProviders(pkg)) {
+                builder.add(export);
+            }
+        }
+        return builder.getPackageList();
+    }
+
+    private Node find(String packageName) {
+        Node node = root;
+        int start = 0;
+        while (node != null && start <= packageName.length()) {
+            int end = packageName.indexOf('.', start);
+            if (end < 0) {
+                end = packageName.length();
+            }
+            node = node.children == null ? null : node.children.get(packageName.substring(start, end));
+            start = end + 1;
+        }
+        return node;
+    }
+
+    private static void collect(Node node, String name, List<String> packages) {
+        if (node.providers != null) {
+            packages.add(name);
+        }
+        if (node.children != null) {
+            for (Map.Entry<String, Node> child : new TreeMap<String, Node>(node.children).entrySet()) {
+                collect(child.getValue(), name.length() == 0 ? child.getKey() : name + "." + child.getKey(), packages);
+            }
+        }
+    }
+
+    private static class Node {
+        private Map<String, Node> children;
+        private List<ExportPackage> providers;
+    }
+}
@@ -0,0 +1,61 @@
+package org.twdata.pkgscanner;
+
+/**
+ * A pool of package names shared by all scans, so the many jars that hold the same packages share one string per
+ * package, and a name is only built when it isn't already pooled.  Names are looked up straight from the path of a
+ * jar entry or file, without building the dotted name first.
+ * <p/>
+ * The pool is a fixed-size table where a new name replaces whatever name was in its slot, so it never grows.
+ * Strings are immutable, so threads racing on a slot at worst build a name twice.
+ */
+final class PackageNames {
+    private static final int POOL_SIZE = 4096;
+    private static final String[] pool = new String[POOL_SIZE];
+
+    private PackageNames() {
+    }
+
+    /**
+     * Gets the dotted package name of a path
+     * @param path A path using '/' as separator, e.g. {@code org/foo/Bar.class}
+     * @param end Where the package part of the path ends, e.g. the position of its last '/'
+     * @return The pooled package name, e.g. {@code org.foo}
+     */
+    static String fromPath(String path, int end) {
+        int hash = 0;
+        for (int x = 0; x < end; x++) {
+            char c = path.charAt(x);
+            hash = 31 * hash + (c == '/' ? '.' : c);
+        }
+        int slot = (hash ^ (hash >>> 12)) & (POOL_SIZE - 1);
+        String pooled = pool[slot];
+        if (pooled != null && pooled.length() == end && dottedEquals(pooled, path)) {
+            return pooled;
+        }
+        String name = path.substring(0, end).replace('/', '.');
+        pool[slot] = name;
+        return name;
+    }
+
+    /**
+     * Tells whether two paths have the same package part, without building either package name
+     * @param path The path
+     * @param end Where the package part of the path ends
+     * @param previous The previous path
+     * @param previousEnd Where the package part of the previous path ends
+     * @return True if the package parts are the same
+     */
+    static boolean samePackage(String path, int end, String previous, int previousEnd) {
+        return previous != null && end == previousEnd && path.regionMatches(0, previous, 0, end);
+    }
+
+    private static boolean dottedEquals(String name, String path) {
+        for (int x = name.length() - 1; x >= 0; x--) {
+            char c = path.charAt(x);
+            if (name.charAt(x) != (c == '/' ? '.' : c)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -5,58 +5,46 @@ import org.twdata.pkgscanner.pattern.PatternFactory;
 import org.twdata.pkgscanner.pattern.SimpleWildcardPatternFactory;
 
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
 
 /**
  * Scans the classpath for packages and tries to determine their versions
  */
 public class PackageScanner {
-    private Patterns packagePatterns;
-    private Patterns jarPatterns;
-    private ClassLoader classLoader;
-    private VersionMapping[] versionMappings;
-    private PatternFactory patternFactory;
-    private boolean debug = false;
+    // package-private, as ScanPlan copies the settings when compiled
+    Patterns packagePatterns;
+    Patterns jarPatterns;
+    ClassLoader classLoader;
+    VersionMapping[] versionMappings;
+    PatternFactory patternFactory;
+    ClassLoaderHierarchyCache hierarchyCache;
+    File snapshotFile;
+    ScanListener scanListener;
+    JarContentCache jarContentCache;
+    JarFilePool jarFilePool;
+    RemoteJarCache remoteJars;
+    ImportCollector importCollector;
+    List<VersionResolver> versionResolvers = VersionResolvers.defaults();
+    boolean lazyVersions = false;
+    boolean firstWins = false;
+    ScanBudget budget = ScanBudget.unlimited();
+    PackageSummaryStore packageSummaries;
+    boolean checkModuleDescriptors = false;
+    boolean useDeclaredPackages = false;
+    boolean debug = false;
 
     /**
-     * Example application that uses this class to generate an OSGi Export-Package header
+     * Runs the command-line scanner, see {@link ScannerCommand}
      */
     public static void main(String[] args) {
-        Collection<ExportPackage> exports = new PackageScanner()
-                .select(
-                    jars(
-                            include(
-                                    "*.jar",
-                                    "bar-*.jar"),
-                            exclude(
-                                    "*dira*.jar")),
-                    packages(
-                            include(
-                                    "org.*",
-                                    "com.*",
-                                    "javax.*",
-                                    "org.twdata.pkgscanner.*"),
-
-                            exclude(
-                                    "com.intellij.*")))
-                .withMappings(
-                        mapPackage("org.twdata.pkgscanner.foo").toVersion("2.0.4"))
-                .scan();
-
-        StringBuilder sb = new StringBuilder();
-        sb.append("Export-Package: \n");
-        for (Iterator<ExportPackage> i = exports.iterator(); i.hasNext(); ) {
-            ExportPackage pkg = i.next();
-            sb.append("\t");
-            sb.append(pkg.getPackageName());
-            if (pkg.getVersion() != null) {
-                sb.append(";version=").append(pkg.getVersion());
-            }
-            if (i.hasNext()) {
-                sb.append(", \n");
-            }
-        }
-        System.out.println(sb.toString());
+        ScannerCommand.main(args);
     }
 
     /**
@@ -85,17 +73,19 @@ public class PackageScanner {
      * @return A list of discovered packages and their guessed version
      */
     public Collection<ExportPackage> scan() {
-        // Initialize the pattern factories
-        initPatterns();
-
-        // Determine which packages to start from
-        List<String> roots = packagePatterns.getRoots();
-        InternalScanner scanner = new InternalScanner(getClassLoader(), versionMappings, debug);
-
-        // Kick off the scanning
-        Collection<ExportPackage> exports = scanner.findInPackages(new PatternTest(), roots.toArray(new String[roots.size()]));
+        return compile().scan();
+    }
 
-        return exports;
+    /**
+     * Scans the classloader as configured on a thread of the executor.  Cancelling the returned future stops the
+     * scan at the next jar entry or file; the scanning thread is not interrupted.  Progress can be followed with
+     * {@link #withScanListener(ScanListener)}.
+     *
+     * @param executor The executor to scan with
+     * @return The future list of discovered packages and their guessed version
+     */
+    public CompletableFuture<Collection<ExportPackage>> scanAsync(Executor executor) {
+        return compile().scanAsync(executor);
     }
 
     /**
@@ -104,23 +94,146 @@ public class PackageScanner {
      * @return A list of discovered packages and their guessed version
      */
     public Collection<ExportPackage> scan(URL... urls) {
-        // Initialize the pattern factories
-        initPatterns();
+        return compile().scan(urls);
+    }
 
-        // Kick off the scanning
-        InternalScanner scanner = new InternalScanner(getClassLoader(), versionMappings, debug);
-        Collection<ExportPackage> exports = scanner.findInUrls(new PatternTest(), urls);
+    /**
+     * Scans the classloader as configured, telling whether the scan finished within its budget
+     * @return The discovered packages, and the classpath elements skipped if the budget ran out
+     */
+    public ScanResult scanResult() {
+        return compile().scanResult();
+    }
 
-        return exports;
+    /**
+     * Scans the passed set of URLs, telling whether the scan finished within its budget
+     * @param urls A list of urls that should be scanned
+     * @return The discovered packages, and the classpath elements skipped if the budget ran out
+     */
+    public ScanResult scanResult(URL... urls) {
+        return compile().scanResult(urls);
     }
 
-    private void initPatterns()
-    {
-        this.jarPatterns.setPatternFactory(patternFactory);
-        this.packagePatterns.setPatternFactory(patternFactory);
-        for (VersionMapping mapping : versionMappings) {
-            mapping.setPatternFactory(patternFactory);
+    /**
+     * Scans a jar held in memory, see {@link ScanPlan#scanArchive(String, ByteBuffer)}
+     * @param location The label the packages are reported against
+     * @param jar The bytes of the jar
+     * @return A list of discovered packages and their guessed version
+     * @throws IOException If the jar isn't a zip file
+     */
+    public Collection<ExportPackage> scanArchive(String location, ByteBuffer jar) throws IOException {
+        return compile().scanArchive(location, jar);
+    }
+
+    /**
+     * Scans a jar held in memory, see {@link ScanPlan#scanArchive(String, ByteBuffer)}
+     * @param location The label the packages are reported against
+     * @param jar The bytes of the jar
+     * @return A list of discovered packages and their guessed version
+     * @throws IOException If the jar isn't a zip file
+     */
+    public Collection<ExportPackage> scanArchive(String location, byte[] jar) throws IOException {
+        return compile().scanArchive(location, jar);
+    }
+
+    /**
+     * Scans a jar read through a channel, see {@link ScanPlan#scanArchive(String, SeekableByteChannel)}
+     * @param location The label the packages are reported against
+     * @param jar The jar, which isn't closed
+     * @return A list of discovered packages and their guessed version
+     * @throws IOException If the jar can't be read or isn't a zip file
+     */
+    public Collection<ExportPackage> scanArchive(String location, SeekableByteChannel jar) throws IOException {
+        return compile().scanArchive(location, jar);
+    }
+
+    /**
+     * Scans a jar that can only be read forward, see {@link ScanPlan#scanArchive(String, InputStream)}
+     * @param location The label the packages are reported against
+     * @param jar The jar, which is read to the end but not closed
+     * @return A list of discovered packages and their guessed version
+     * @throws IOException If the jar can't be read or isn't a zip file
+     */
+    public Collection<ExportPackage> scanArchive(String location, InputStream jar) throws IOException {
+        return compile().scanArchive(location, jar);
+    }
+
+    /**
+     * Scans one shard of the classpath elements of the classloader as configured, see
+     * {@link ScanPlan#scanShard(int, int)}
+     * @param shard The shard to scan, from 0
+     * @param shardCount The number of shards
+     * @return The packages found in the shard
+     */
+    public PartialScanResult scanShard(int shard, int shardCount) {
+        return compile().scanShard(shard, shardCount);
+    }
+
+    /**
+     * Scans one shard of the passed set of URLs, see {@link ScanPlan#scanShard(int, int)}
+     * @param shard The shard to scan, from 0
+     * @param shardCount The number of shards
+     * @param urls A list of urls, the same for every shard
+     * @return The packages found in the shard
+     */
+    public PartialScanResult scanShard(int shard, int shardCount, URL... urls) {
+        return compile().scanShard(shard, shardCount, urls);
+    }
+
+    /**
+     * Scans the classloader as configured into an index of every location providing each package
+     * @return The index
+     */
+    public PackageIndex scanIndex() {
+        return compile().scanIndex();
+    }
+
+    /**
+     * Scans the passed set of URLs into an index of every location providing each package
+     * @param urls A list of urls that should be scanned
+     * @return The index
+     */
+    public PackageIndex scanIndex(URL... urls) {
+        return compile().scanIndex(urls);
+    }
+
+    /**
+     * Compiles the current configuration into a plan that can run any number of scans, from any number of
+     * threads, without compiling the patterns and mappings again.  Changing this scanner afterwards doesn't change
+     * the plan.
+     * @return The scan plan
+     */
+    public ScanPlan compile() {
+        return new ScanPlan(this);
+    }
+
+    /**
+     * @return A key that identifies the patterns, mappings and options used, as scan results depend on them
+     */
+    String configurationKey() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("jars ").append(jarPatterns);
+        sb.append(" packages ").append(packagePatterns);
+        sb.append(" mappings ").append(Arrays.asList(versionMappings));
+        sb.append(" resolvers");
+        for (VersionResolver resolver : versionResolvers) {
+            sb.append(' ').append(resolver.getClass().getName());
+        }
+        sb.append(" factory ").append(patternFactory.getClass().getName());
+        if (lazyVersions) {
+            sb.append(" lazy");
+        }
+        if (firstWins) {
+            sb.append(" first-wins");
+        }
+        if (useDeclaredPackages) {
+            sb.append(" declared");
+        }
+        if (remoteJars != null) {
+            // without a cache, remote classpath elements are skipped
+            sb.append(" remote");
         }
+        return sb.toString();
     }
 
     // DSL methods and classes
@@ -133,6 +246,89 @@ public class PackageScanner {
         return this;
     }
 
+    /**
+     * Scans the classloader hierarchy one classloader at a time, sharing the results of ancestor classloaders
+     * with every other scanner using the same cache
+     * @param cache The cache of ancestor classloader results
+     */
+    public PackageScanner useHierarchyCache(ClassLoaderHierarchyCache cache) {
+        this.hierarchyCache = cache;
+        return this;
+    }
+
+    /**
+     * Keeps a snapshot of the scan result in a file.  When the classpath elements (their paths, sizes and
+     * modification times) and the configuration are the same as when the snapshot was written, the snapshot is
+     * returned instead of scanning.
+     * @param snapshotFile The snapshot file, which doesn't need to exist yet
+     */
+    public PackageScanner withSnapshot(File snapshotFile) {
+        this.snapshotFile = snapshotFile;
+        return this;
+    }
+
+    /**
+     * Keeps the packages of scanned jars in the given cache, which can be shared with other scanners.  By default
+     * each scan has its own cache with the default budget of {@link JarContentCache#DEFAULT_MAX_BYTES}.
+     * @param cache The jar content cache
+     */
+    public PackageScanner useJarContentCache(JarContentCache cache) {
+        this.jarContentCache = cache;
+        return this;
+    }
+
+    /**
+     * Skips the jars whose summary in the store shows they hold no package the package patterns could select,
+     * without opening them.  Jars without a summary are listed and summarized.  Only patterns of the default
+     * {@link SimpleWildcardPatternFactory} can rule jars out.
+     * @param store The package summaries, which can be shared with other scanners
+     */
+    public PackageScanner withPackageSummaries(PackageSummaryStore store) {
+        this.packageSummaries = store;
+        return this;
+    }
+
+    /**
+     * Keeps the jars read by scans open in the given pool, which can be shared with other scanners, so later scans
+     * reuse the handles.  By default each scan has its own pool of {@link JarFilePool#DEFAULT_MAX_OPEN} jars, which
+     * is closed when the scan ends.  A shared pool is left open; close it when it is no longer needed.
+     * @param pool The pool
+     */
+    public PackageScanner useJarFilePool(JarFilePool pool) {
+        this.jarFilePool = pool;
+        return this;
+    }
+
+    /**
+     * Scans jars served over HTTP, such as {@code http:} classpath elements and the {@code jar:http:} resources of
+     * classloaders loading from an artifact store, through stubs kept in the given cache.  By default they are
+     * skipped.
+     * @param cache The cache, which can be shared with other scanners
+     */
+    public PackageScanner useRemoteJars(RemoteJarCache cache) {
+        this.remoteJars = cache;
+        return this;
+    }
+
+    /**
+     * Computes the packages imported by the classes of the selected packages during the scan, by parsing their
+     * class files.  Snapshots are not used while imports are collected.
+     * @param collector The collector that receives the imports of each location
+     */
+    public PackageScanner collectImports(ImportCollector collector) {
+        this.importCollector = collector;
+        return this;
+    }
+
+    /**
+     * Reports each classpath element as soon as it has been scanned
+     * @param listener The listener
+     */
+    public PackageScanner withScanListener(ScanListener listener) {
+        this.scanListener = listener;
+        return this;
+    }
+
     /**
      * Sets the explicit package-version mappings
      * @param mappings The package-version mappings
@@ -157,6 +353,71 @@ public class PackageScanner {
         return withMappings(versions.toArray(new VersionMapping[versions.size()]));
     }
 
+    /**
+     * Sets the chain of resolvers that work out the version of a jar when no mapping applies, replacing
+     * {@link VersionResolvers#defaults()}.  Put the resolvers that don't {@link VersionResolver#requiresJar() open the
+     * jar} first, so the jar is only opened when they fail.
+     * @param resolvers The resolvers, tried in order
+     */
+    public PackageScanner withVersionResolvers(VersionResolver... resolvers) {
+        this.versionResolvers = Collections.unmodifiableList(new ArrayList<VersionResolver>(Arrays.asList(resolvers)));
+        return this;
+    }
+
+    /**
+     * Leaves the version of each package to be worked out when {@link ExportPackage#getVersion()} is first called,
+     * so a caller that only needs package names never reads a manifest.  Duplicates are still dropped as usual, so
+     * the versions of duplicate packages are worked out during the scan; combine with
+     * {@link #keepFirstDuplicates()} to leave those unresolved too.
+     */
+    public PackageScanner resolveVersionsLazily() {
+        this.lazyVersions = true;
+        return this;
+    }
+
+    /**
+     * Keeps the first package found of duplicates, as a classloader would, rather than the last found with a
+     * version.  The versions of duplicates are then never compared, so with {@link #resolveVersionsLazily()} they
+     * are never worked out.
+     */
+    public PackageScanner keepFirstDuplicates() {
+        this.firstWins = true;
+        return this;
+    }
+
+    /**
+     * Limits the time each scan may take and what it may read.  A scan that runs out of budget returns the packages
+     * found so far; use {@link #scanResult()} to find out whether it did and what it skipped.  Incomplete scans are
+     * not kept in the snapshot or caches.
+     * @param budget The budget
+     */
+    public PackageScanner withBudget(ScanBudget budget) {
+        this.budget = budget;
+        return this;
+    }
+
+    /**
+     * Takes the packages of a jar from its {@code Export-Package} header, with the version given to each package,
+     * or from its {@code META-INF/INDEX.LIST}, when it has either, instead of the packages listed in it.  Mappings
+     * still override the declared versions.  A bundle only declares the packages it exports, so its private packages
+     * are not found.  The listed packages are still what a {@link JarContentCache} keeps for the jar, so the cache,
+     * and a {@link PackageSummaryStore}, can be shared with scanners that don't use declared packages.
+     */
+    public PackageScanner useDeclaredPackages() {
+        this.useDeclaredPackages = true;
+        return this;
+    }
+
+    /**
+     * Checks that the packages a modular jar declares in its {@code module-info.class}, which are used instead of
+     * listing the jar, are the packages the jar holds, failing the scan with an {@link IllegalStateException} when
+     * they aren't.  This lists every modular jar, so it is meant for tests.
+     */
+    public PackageScanner checkModuleDescriptors() {
+        this.checkModuleDescriptors = true;
+        return this;
+    }
+
     /**
      * Enables debugging output
      * @return this
@@ -242,10 +503,8 @@ public class PackageScanner {
      * Maps a package pattern to an explicit version
      */
     public static class VersionMapping {
-        private CompiledPattern compiledPattern;
         private String packagePattern;
         private String toVersion;
-        private PatternFactory factory;
 
         /**
          * Constructs a mapping for a given package pattern
@@ -260,10 +519,6 @@ public class PackageScanner {
             this.toVersion = version;
         }
 
-        void setPatternFactory(PatternFactory factory) {
-            this.factory = factory;
-        }
-
         /**
          * Sets the version to map the packages to
          * @param toVersion The version
@@ -281,11 +536,13 @@ public class PackageScanner {
             return packagePattern;
         }
 
-        boolean matches(String pkg) {
-            if (compiledPattern == null) {
-                compiledPattern = factory.compile(packagePattern);
-            }
-            return compiledPattern.matches(pkg);
+        ScanPlan.Mapping compile(PatternFactory factory, OsgiVersionConverter converter) {
+            return new ScanPlan.Mapping(factory.compile(packagePattern), converter.getVersion(toVersion));
+        }
+
+        @Override
+        public String toString() {
+            return packagePattern + "=" + toVersion;
         }
     }
 
@@ -294,12 +551,8 @@ public class PackageScanner {
      */
     public static class Patterns {
 
-        private String[] origIncludes;
-        private String[] origExcludes;
-
-        private List<CompiledPattern> includes;
-        private List<CompiledPattern> excludes;
-        private PatternFactory factory;
+        private final String[] origIncludes;
+        private final String[] origExcludes;
 
         /**
          * Constructs a set of patterns
@@ -311,63 +564,87 @@ public class PackageScanner {
             this.origExcludes = excludes;
         }
 
-        void setPatternFactory(PatternFactory factory) {
-            this.factory = factory;
-        }
+        ScanPlan.Matcher compile(PatternFactory factory) {
+            if (factory.getClass() == SimpleWildcardPatternFactory.class && isPlain(origIncludes)
+                    && isPlain(origExcludes)) {
+                PatternAutomaton automaton = PatternAutomaton.build(origIncludes, origExcludes);
+                if (automaton != null) {
+                    return new ScanPlan.Matcher(automaton);
+                }
+            }
 
-        boolean match(String val) {
-            if (includes == null) {
-                compilePatterns();
+            List<CompiledPattern> includes = new ArrayList<CompiledPattern>();
+            for (String ptn : origIncludes) {
+                includes.add(factory.compile(ptn));
             }
-            for (CompiledPattern ptn : includes) {
-                if (ptn.matches(val)) {
-                    for (CompiledPattern exptn : excludes) {
-                        if (exptn.matches(val)) {
-                            return false;
-                        }
-                    }
-                    return true;
-                }
+
+            List<CompiledPattern> excludes = new ArrayList<CompiledPattern>();
+            for (String ptn : origExcludes) {
+                excludes.add(factory.compile(ptn));
             }
-            return false;
+            return new ScanPlan.Matcher(includes, excludes);
         }
 
+        /**
+         * Works out the packages to start scanning from: the segments of each include pattern before its first
+         * wildcard.  Roots under another root, and roots that an exclude pattern rules out entirely, are dropped,
+         * so no package is scanned twice.
+         * @return The roots in alphabetical order, with the empty root standing for everything
+         */
         List<String> getRoots() {
-            List<String> roots = new ArrayList<String>();
+            TreeSet<String> candidates = new TreeSet<String>();
             for (String inc : origIncludes) {
+                int starPos = inc.indexOf('*');
                 String root = inc;
-                int starPos = root.indexOf("*");
                 if (starPos > -1) {
-                    int dotPos = root.lastIndexOf(".", starPos);
-                    if (dotPos > -1) {
-                        root = root.substring(0, dotPos);
-                    }
+                    int dotPos = inc.lastIndexOf('.', starPos);
+                    root = dotPos > -1 ? inc.substring(0, dotPos) : "";
+                }
+                if (!isExcluded(root)) {
+                    candidates.add(root);
                 }
-                roots.add(root);
             }
-            return roots;
-        }
 
-        private void compilePatterns() {
-            this.includes = new ArrayList<CompiledPattern>();
-            for (String ptn : origIncludes) {
-                this.includes.add(factory.compile(ptn));
+            List<String> roots = new ArrayList<String>();
+            String last = null;
+            for (String root : candidates) {
+                // sorted order puts a root right before the roots under it
+                if (last == null || !(last.length() == 0 || root.equals(last) || root.startsWith(last + "."))) {
+                    roots.add(root);
+                    last = root;
+                }
             }
+            return roots;
+        }
 
-            this.excludes = new ArrayList<CompiledPattern>();
-            for (String ptn : origExcludes) {
-                this.excludes.add(factory.compile(ptn));
+        /**
+         * @return True if an exclude pattern of the form {@code prefix*} rules out the root and everything under it
+         */
+        private boolean isExcluded(String root) {
+            for (String exc : origExcludes) {
+                int starPos = exc.indexOf('*');
+                if (starPos == exc.length() - 1 && root.startsWith(exc.substring(0, starPos))) {
+                    return true;
+                }
             }
+            return false;
         }
-    }
 
-    private class PatternTest implements InternalScanner.Test {
-        public boolean matchesPackage(String pkg) {
-            return packagePatterns.match(pkg);
+        private static boolean isPlain(String[] patterns) {
+            for (String ptn : patterns) {
+                for (int x = 0; x < ptn.length(); x++) {
+                    // anything SimpleWildcardPattern would hand to the regex engine unescaped
+                    if ("\\[](){}?+^$|".indexOf(ptn.charAt(x)) > -1) {
+                        return false;
+                    }
+                }
+            }
+            return true;
         }
 
-        public boolean matchesJar(String name) {
-            return jarPatterns.match(name);
+        @Override
+        public String toString() {
+            return "include " + Arrays.asList(origIncludes) + " exclude " + Arrays.asList(origExcludes);
         }
     }
 }
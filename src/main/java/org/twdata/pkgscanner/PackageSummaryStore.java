@@ -0,0 +1,318 @@
+package org.twdata.pkgscanner;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * Remembers, for each jar, the package prefixes it contains down to a fixed depth, e.g. {@code org.apache.commons}
+ * for a jar holding {@code org.apache.commons.lang} at a depth of 3.  When none of the prefixes of a jar can start a
+ * selected package, the scan skips the jar without opening it.  Summaries are built the first time a jar is fully
+ * listed and are dropped when the size or modification time of the jar changes.  Each summary also records the
+ * content fingerprint of its jar, see {@link CentralDirectory#fingerprint()}, so a copy of the jar at another path
+ * gets the same summary without being listed.
+ * <p/>
+ * A store can be kept in a file, so summaries outlive the JVM.  The file is only read when the store is first used,
+ * and written by {@link #save()} when summaries were added.  Layout, all integers big-endian:
+ * <pre>
+ * header:  int magic, int format version, int depth, int jar count
+ * jars:    UTF path, long size, long modification time, long content fingerprint, boolean declarations,
+ *          int prefix count, UTF[prefix count] prefixes
+ * </pre>
+ * A summary made by a scanner using declared packages, see {@link PackageScanner#useDeclaredPackages()}, also holds
+ * the packages the jar declares, as they may not be in the jar.  It serves every scanner, while one made by listing
+ * the jar only serves scanners that don't use declared packages.
+ * Files of another format version are ignored, and rebuilt.
+ * Instances are thread-safe, so one store can be shared by many {@link PackageScanner}s.
+ */
+public class PackageSummaryStore {
+    private static final Logger log = LoggerFactory.getLogger(PackageSummaryStore.class);
+
+    /** The default depth of the package prefixes */
+    public static final int DEFAULT_DEPTH = 3;
+
+    private static final int MAGIC = 0x504b5355;
+    private static final int FORMAT_VERSION = 3;
+
+    private final File file;
+    private final int depth;
+    private final Map<String, Summary> summaries = new HashMap<String, Summary>();
+    /** The path of a summarized jar for each content fingerprint */
+    private final Map<Long, String> copies = new HashMap<Long, String>();
+    private boolean loaded;
+    private boolean dirty;
+
+    /**
+     * Constructs a store kept in memory only, with the default depth
+     */
+    public PackageSummaryStore() {
+        this(null, DEFAULT_DEPTH);
+    }
+
+    /**
+     * Constructs a store kept in a file, with the default depth
+     * @param file The file, which doesn't need to exist yet
+     */
+    public PackageSummaryStore(File file) {
+        this(file, DEFAULT_DEPTH);
+    }
+
+    /**
+     * Constructs a store
+     * @param file The file, or null to keep the store in memory only
+     * @param depth How many segments of each package name are kept.  Deeper prefixes skip more jars for narrow
+     *              patterns, but make larger summaries.
+     */
+    public PackageSummaryStore(File file, int depth) {
+        if (depth < 1) {
+            throw new IllegalArgumentException("depth must be positive");
+        }
+        this.file = file;
+        this.depth = depth;
+        this.loaded = file == null;
+    }
+
+    /**
+     * Looks up the summary of a jar, dropping it if the size or modification time of the jar changed
+     * @param jar The jar
+     * @return The package prefixes of the jar, or null if the jar has no summary
+     */
+    synchronized String[] get(File jar) {
+        return get(jar, false);
+    }
+
+    /**
+     * Looks up the summary of a jar, dropping it if the size or modification time of the jar changed
+     * @param jar The jar
+     * @param declarations True if the summary must hold the packages the jar declares
+     * @return The package prefixes of the jar, or null if the jar has no such summary
+     */
+    synchronized String[] get(File jar, boolean declarations) {
+        load();
+        Summary summary = summaries.get(jar.getPath());
+        if (summary == null) {
+            return null;
+        }
+        if (summary.length != jar.length() || summary.lastModified != jar.lastModified()) {
+            summaries.remove(jar.getPath());
+            dirty = true;
+            return null;
+        }
+        return declarations && !summary.declarations ? null : summary.prefixes;
+    }
+
+    /**
+     * Looks up the summary of a copy of a jar at another path, and if there is one, keeps it for this jar too
+     * @param jar The jar, which has no summary
+     * @param fingerprint The content fingerprint of the jar
+     * @return The package prefixes of the jar, or null if no copy is summarized
+     */
+    synchronized String[] getCopy(File jar, long fingerprint) {
+        return getCopy(jar, fingerprint, false);
+    }
+
+    /**
+     * Looks up the summary of a copy of a jar at another path, and if there is one, keeps it for this jar too
+     * @param jar The jar, which has no summary
+     * @param fingerprint The content fingerprint of the jar
+     * @param declarations True if the summary must hold the packages the jar declares
+     * @return The package prefixes of the jar, or null if no copy has such a summary
+     */
+    synchronized String[] getCopy(File jar, long fingerprint, boolean declarations) {
+        load();
+        String path = copies.get(fingerprint);
+        Summary copy = path == null ? null : summaries.get(path);
+        if (copy == null || copy.fingerprint != fingerprint || declarations && !copy.declarations) {
+            return null;
+        }
+        summaries.put(jar.getPath(), new Summary(jar.length(), jar.lastModified(), fingerprint, copy.declarations,
+                copy.prefixes));
+        dirty = true;
+        return copy.prefixes;
+    }
+
+    /**
+     * Summarizes the packages of a fully listed jar
+     * @param jar The jar
+     * @param packages All the packages of the jar
+     */
+    synchronized void put(File jar, Collection<String> packages) {
+        put(jar, packages, 0);
+    }
+
+    /**
+     * Summarizes the packages of a fully listed jar, so they can be shared with its copies
+     * @param jar The jar
+     * @param packages All the packages of the jar
+     * @param fingerprint The content fingerprint of the jar, or 0 if it isn't known
+     */
+    synchronized void put(File jar, Collection<String> packages, long fingerprint) {
+        put(jar, packages, fingerprint, false);
+    }
+
+    /**
+     * Summarizes the packages of a fully listed jar, so they can be shared with its copies
+     * @param jar The jar
+     * @param packages All the packages of the jar
+     * @param fingerprint The content fingerprint of the jar, or 0 if it isn't known
+     * @param declarations True if the packages include those the jar declares
+     */
+    synchronized void put(File jar, Collection<String> packages, long fingerprint, boolean declarations) {
+        load();
+        add(jar.getPath(), new Summary(jar.length(), jar.lastModified(), fingerprint, declarations,
+                summarize(packages, depth)));
+        dirty = true;
+    }
+
+    private void add(String path, Summary summary) {
+        summaries.put(path, summary);
+        if (summary.fingerprint != 0) {
+            copies.put(summary.fingerprint, path);
+        }
+    }
+
+    /**
+     * @return The number of summarized jars
+     */
+    public synchronized int size() {
+        load();
+        return summaries.size();
+    }
+
+    /**
+     * Writes the store to its file if summaries were added or dropped since it was read.  The file is written next
+     * to its final location first, then renamed, so readers never see a partially written store.
+     * @throws IOException If the file can't be written
+     */
+    public synchronized void save() throws IOException {
+        if (file == null || !dirty) {
+            return;
+        }
+        File tmp = File.createTempFile(file.getName(), ".tmp", file.getAbsoluteFile().getParentFile());
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeInt(depth);
+            out.writeInt(summaries.size());
+            for (Map.Entry<String, Summary> entry : summaries.entrySet()) {
+                Summary summary = entry.getValue();
+                out.writeUTF(entry.getKey());
+                out.writeLong(summary.length);
+                out.writeLong(summary.lastModified);
+                out.writeLong(summary.fingerprint);
+                out.writeBoolean(summary.declarations);
+                out.writeInt(summary.prefixes.length);
+                for (String prefix : summary.prefixes) {
+                    out.writeUTF(prefix);
+                }
+            }
+        }
+        finally {
+            out.close();
+        }
+
+        if (!tmp.renameTo(file)) {
+            // some platforms won't rename over an existing file
+            file.delete();
+            if (!tmp.renameTo(file)) {
+                tmp.delete();
+                throw new IOException("Unable to replace package summary file " + file);
+            }
+        }
+        dirty = false;
+    }
+
+    /**
+     * @param packages The package names
+     * @param depth How many segments of each name to keep
+     * @return The distinct prefixes, in alphabetical order
+     */
+    static String[] summarize(Collection<String> packages, int depth) {
+        TreeSet<String> prefixes = new TreeSet<String>();
+        for (String pkg : packages) {
+            int end = -1;
+            for (int x = 0; x < depth && end < pkg.length(); x++) {
+                end = pkg.indexOf('.', end + 1);
+                if (end < 0) {
+                    end = pkg.length();
+                }
+            }
+            prefixes.add(pkg.substring(0, end));
+        }
+        return prefixes.toArray(new String[prefixes.size()]);
+    }
+
+    private void load() {
+        if (loaded) {
+            return;
+        }
+        loaded = true;
+        if (!file.exists()) {
+            return;
+        }
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            try {
+                if (in.readInt() != MAGIC) {
+                    throw new IOException("Not a package summary file");
+                }
+                if (in.readInt() != FORMAT_VERSION) {
+                    throw new IOException("Unsupported package summary file format");
+                }
+                if (in.readInt() != depth) {
+                    log.debug("Ignoring the package summaries in " + file + " as they were made at another depth");
+                    return;
+                }
+                for (int count = in.readInt(); count > 0; count--) {
+                    String path = in.readUTF();
+                    long length = in.readLong();
+                    long lastModified = in.readLong();
+                    long fingerprint = in.readLong();
+                    boolean declarations = in.readBoolean();
+                    String[] prefixes = new String[in.readInt()];
+                    for (int x = 0; x < prefixes.length; x++) {
+                        prefixes[x] = in.readUTF();
+                    }
+                    add(path, new Summary(length, lastModified, fingerprint, declarations, prefixes));
+                }
+            }
+            finally {
+                in.close();
+            }
+        }
+        catch (IOException ex) {
+            log.warn("Unable to read the package summaries in " + file + ", rebuilding them", ex);
+            summaries.clear();
+            copies.clear();
+        }
+    }
+
+    private static class Summary {
+        private final long length;
+        private final long lastModified;
+        private final long fingerprint;
+        private final boolean declarations;
+        private final String[] prefixes;
+
+        private Summary(long length, long lastModified, long fingerprint, boolean declarations, String[] prefixes) {
+            this.length = length;
+            this.lastModified = lastModified;
+            this.fingerprint = fingerprint;
+            this.declarations = declarations;
+            this.prefixes = prefixes;
+        }
+    }
+}
@@ -0,0 +1,195 @@
+package org.twdata.pkgscanner;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.function.Supplier;
+import java.util.jar.JarFile;
+
+/**
+ * Works out the version of a package found in a jar, from the version mappings, the version the jar declares for
+ * the package, and otherwise the version of the jar, which the resolvers work out once per jar and the
+ * {@link JarContentCache} keeps.  Versions read from the manifest or {@code pom.properties} are shared with the
+ * copies of the jar; those worked out from its path, or by other resolvers, aren't.
+ * <p/>
+ * Only what resolution needs is held, and not the scanner, so the packages of a scan whose versions are left to be
+ * worked out lazily don't keep the scanner, and the classloader it scanned, reachable.  Instances are thread-safe
+ * as long as the resolvers are.
+ */
+final class PackageVersions {
+    private static final Logger log = LoggerFactory.getLogger(PackageVersions.class);
+
+    private final ScanPlan.Mapping[] mappings;
+    private final List<VersionResolver> resolvers;
+    private final OsgiVersionConverter converter;
+    private final JarContentCache jarContentCache;
+    private final JarFilePool jarFilePool;
+    private final boolean debug;
+
+    PackageVersions(ScanPlan.Mapping[] mappings, List<VersionResolver> resolvers, OsgiVersionConverter converter,
+                    JarContentCache jarContentCache, JarFilePool jarFilePool, boolean debug) {
+        this.mappings = mappings;
+        this.resolvers = resolvers;
+        this.converter = converter;
+        this.jarContentCache = jarContentCache;
+        this.jarFilePool = jarFilePool;
+        this.debug = debug;
+    }
+
+    /**
+     * @param jar The jar the package was found in, or null if it wasn't found in a jar
+     * @param pkg The package
+     * @param declaredVersion The version the jar declares for the package, used unless a mapping applies
+     * @return The version, or null if it can't be determined
+     */
+    String determine(File jar, String pkg, String declaredVersion) {
+        return determine(jar, pkg, declaredVersion, null);
+    }
+
+    /**
+     * @param archive The contents of the jar listed from its central directory, whose manifest and
+     *                {@code pom.properties} the resolvers read, only if they get to them, rather than opening the
+     *                jar, or null
+     * @see #determine(File, String, String)
+     */
+    String determine(File jar, String pkg, String declaredVersion, ArchiveContents archive) {
+        // Look for an explicit mapping
+        String version = null;
+        for (ScanPlan.Mapping mapping : mappings) {
+            if (mapping.matches(pkg)) {
+                version = mapping.getVersion();
+            }
+        }
+
+        if (version == null) {
+            version = declaredVersion;
+        }
+
+        if (version == null) {
+            version = jar == null ? null : jarContentCache.getVersion(jar);
+        }
+
+        if (version == null && jar != null) {
+            version = resolveVersion(jar, archive);
+        }
+
+        if (version == null && debug)
+        {
+            if (jar != null)
+            {
+                log.warn("Unable to determine version for '" + pkg + "' in jar '" + jar.getPath() + "'");
+            }
+            else
+            {
+                log.warn("Unable to determine version for '" + pkg + "'");
+            }
+        }
+
+        return version;
+    }
+
+    /**
+     * Runs the manifest or {@code pom.properties} resolver on the contents of a jar
+     */
+    static String resolveVersion(VersionResolver resolver, ArchiveContents archive) throws IOException {
+        if (resolver == VersionResolvers.manifest()) {
+            return VersionResolvers.versionFromManifest(archive.getManifest());
+        }
+        InputStream pom = archive.getPomProperties();
+        return pom == null ? null : VersionResolvers.versionFromPomProperties(pom);
+    }
+
+    /**
+     * @return A supplier that works out the version of the package when first asked for, see
+     * {@link #determine(File, String, String)}
+     */
+    Supplier<String> lazily(File jar, String pkg, String declaredVersion) {
+        return new LazyVersion(this, jar, pkg, declaredVersion);
+    }
+
+    /**
+     * Runs the version resolvers in turn, only opening the jar once a resolver requires it and can't read the
+     * contents already read, and caches the version found
+     */
+    private String resolveVersion(File jar, ArchiveContents archive) {
+        JarFile jarFile = null;
+        boolean unreadable = false;
+        try {
+            for (VersionResolver resolver : resolvers) {
+                boolean fromContent = resolver == VersionResolvers.manifest()
+                        || resolver == VersionResolvers.pomProperties();
+                if (archive != null && fromContent) {
+                    try {
+                        String version = resolveVersion(resolver, archive);
+                        if (version != null) {
+                            jarContentCache.putVersion(jar, version, true);
+                            return version;
+                        }
+                    }
+                    catch (IOException ex) {
+                        log.debug("Version resolver " + resolver + " cannot read " + jar, ex);
+                    }
+                    continue;
+                }
+                if (resolver.requiresJar()) {
+                    if (unreadable) {
+                        continue;
+                    }
+                    if (jarFile == null) {
+                        try {
+                            jarFile = jarFilePool.acquire(jar);
+                        }
+                        catch (IOException ex) {
+                            log.debug("Cannot turn file into jar file", ex);
+                            unreadable = true;
+                            continue;
+                        }
+                    }
+                }
+                try {
+                    String version = resolver.resolveVersion(jar, jarFile, converter);
+                    if (version != null) {
+                        jarContentCache.putVersion(jar, version, fromContent);
+                        return version;
+                    }
+                }
+                catch (IOException ex) {
+                    log.debug("Version resolver " + resolver + " cannot read " + jar, ex);
+                }
+            }
+            return null;
+        }
+        finally {
+            if (jarFile != null) {
+                // the jar stays in the pool, as the listing or the next package of the jar may need it.  Once the
+                // scan is over and its pool closed, the jar is closed here.
+                jarFilePool.release(jar);
+            }
+        }
+    }
+
+    /**
+     * The version of one package, worked out when first asked for
+     */
+    private static final class LazyVersion implements Supplier<String> {
+        private final PackageVersions versions;
+        private final File jar;
+        private final String pkg;
+        private final String declaredVersion;
+
+        private LazyVersion(PackageVersions versions, File jar, String pkg, String declaredVersion) {
+            this.versions = versions;
+            this.jar = jar;
+            this.pkg = pkg;
+            this.declaredVersion = declaredVersion;
+        }
+
+        public String get() {
+            return versions.determine(jar, pkg, declaredVersion);
+        }
+    }
+}
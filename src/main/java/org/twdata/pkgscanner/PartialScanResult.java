@@ -0,0 +1,311 @@
+package org.twdata.pkgscanner;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * The result of scanning one shard of the classpath elements, see {@link ScanPlan#scanShard(int, int)}, which can be
+ * written out, read back by another process and merged with the results of the other shards.  Merging gives the
+ * same packages as scanning all the elements in one go, whatever order the shards are merged in.
+ * <p/>
+ * {@link ExportPackageListBuilder} keeps, for each package, the last location found with a version, or the first if
+ * none has one, or always the first when it keeps the first found.  So a partial result keeps the first location
+ * and the last location with a version of each package, each with its position among the classpath elements, and
+ * merging keeps the earliest and the latest of those.  Each location also records the shard it was found by.
+ * <p/>
+ * Stream layout, all integers big-endian:
+ * <pre>
+ * header:    int magic, int format version, int shard count, boolean first wins, int merged shard count,
+ *            int[merged shard count] merged shards
+ * locations: int location count, UTF[location count] paths
+ * entries:   int entry count, then per entry: UTF package name, location first, boolean has last versioned,
+ *            [location last versioned], int version count, UTF[version count] versions
+ * location:  int path index, long position, int shard, boolean has version, [UTF version]
+ * </pre>
+ */
+public class PartialScanResult {
+    private static final int MAGIC = 0x504b5350;
+    private static final int FORMAT_VERSION = 1;
+
+    private final int shardCount;
+    private final boolean firstWins;
+    private final SortedSet<Integer> shards = new TreeSet<Integer>();
+    private final SortedMap<String, Entry> entries = new TreeMap<String, Entry>();
+
+    PartialScanResult(int shard, int shardCount, boolean firstWins) {
+        if (shardCount < 1 || shard < 0 || shard >= shardCount) {
+            throw new IllegalArgumentException("Invalid shard " + shard + " of " + shardCount);
+        }
+        this.shardCount = shardCount;
+        this.firstWins = firstWins;
+        shards.add(shard);
+    }
+
+    private PartialScanResult(int shardCount, boolean firstWins) {
+        this.shardCount = shardCount;
+        this.firstWins = firstWins;
+    }
+
+    /**
+     * Adds a package found by the scan of this shard
+     * @param position The position of the jar or directory it was found in, among all those of the classpath
+     * @param export The package
+     */
+    void add(long position, ExportPackage export) {
+        Provider provider = new Provider(export, position, shards.first());
+        Provider lastVersioned = null;
+        TreeSet<String> versions = new TreeSet<String>();
+        // a builder keeping the first package never looks at versions, so lazy versions stay unresolved
+        if (!firstWins && export.getVersion() != null) {
+            lastVersioned = provider;
+            versions.add(export.getVersion());
+        }
+        merge(export.getPackageName(), new Entry(provider, lastVersioned, versions));
+    }
+
+    /**
+     * Merges the results of other shards of the same scan
+     * @param other The other results, none of which may hold a shard this result holds
+     * @return A new result holding the shards of both
+     * @throws IllegalArgumentException If the results don't come from the same sharding, or share a shard
+     */
+    public PartialScanResult merge(PartialScanResult other) {
+        if (other.shardCount != shardCount || other.firstWins != firstWins) {
+            throw new IllegalArgumentException("Can't merge the results of different shardings");
+        }
+        for (Integer shard : other.shards) {
+            if (shards.contains(shard)) {
+                throw new IllegalArgumentException("Shard " + shard + " is in both results");
+            }
+        }
+        PartialScanResult merged = new PartialScanResult(shardCount, firstWins);
+        merged.shards.addAll(shards);
+        merged.shards.addAll(other.shards);
+        for (PartialScanResult result : new PartialScanResult[] {this, other}) {
+            for (Map.Entry<String, Entry> entry : result.entries.entrySet()) {
+                merged.merge(entry.getKey(), entry.getValue());
+            }
+        }
+        return merged;
+    }
+
+    private void merge(String packageName, Entry entry) {
+        Entry current = entries.get(packageName);
+        if (current == null) {
+            entries.put(packageName, entry);
+            return;
+        }
+        Provider first = current.first.position <= entry.first.position ? current.first : entry.first;
+        Provider lastVersioned = current.lastVersioned;
+        if (entry.lastVersioned != null
+                && (lastVersioned == null || entry.lastVersioned.position > lastVersioned.position)) {
+            lastVersioned = entry.lastVersioned;
+        }
+        TreeSet<String> versions = new TreeSet<String>(current.versions);
+        versions.addAll(entry.versions);
+        entries.put(packageName, new Entry(first, lastVersioned, versions));
+    }
+
+    /**
+     * @return The packages chosen as a scan of the merged shards would have, ordered by package name
+     */
+    public List<ExportPackage> getExports() {
+        ExportPackageListBuilder builder = new ExportPackageListBuilder(firstWins);
+        for (Entry entry : entries.values()) {
+            builder.add(entry.first.export);
+            if (!firstWins && entry.lastVersioned != null && entry.lastVersioned != entry.first) {
+                builder.add(entry.lastVersioned.export);
+            }
+        }
+        return builder.getPackageList();
+    }
+
+    /**
+     * @param packageName The package name
+     * @return The shard that found the location chosen for the package, or -1 if no shard found the package
+     */
+    public int getShardOf(String packageName) {
+        Entry entry = entries.get(packageName);
+        if (entry == null) {
+            return -1;
+        }
+        return firstWins || entry.lastVersioned == null ? entry.first.shard : entry.lastVersioned.shard;
+    }
+
+    /**
+     * @return The packages found with more than one version, with those versions.  Versions aren't looked at when
+     *         the first package found is kept, so there are no conflicts then.
+     */
+    public SortedMap<String, SortedSet<String>> getConflicts() {
+        SortedMap<String, SortedSet<String>> conflicts = new TreeMap<String, SortedSet<String>>();
+        for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+            if (entry.getValue().versions.size() > 1) {
+                conflicts.put(entry.getKey(), Collections.unmodifiableSortedSet(entry.getValue().versions));
+            }
+        }
+        return conflicts;
+    }
+
+    /**
+     * @return The shards this result holds
+     */
+    public SortedSet<Integer> getShards() {
+        return Collections.unmodifiableSortedSet(shards);
+    }
+
+    /**
+     * @return The number of shards the classpath elements were split into
+     */
+    public int getShardCount() {
+        return shardCount;
+    }
+
+    /**
+     * @return True if this result holds every shard
+     */
+    public boolean isComplete() {
+        return shards.size() == shardCount;
+    }
+
+    /**
+     * Writes the result.  The versions of the kept packages are worked out, as they are written.
+     * @param stream The stream, which is not closed
+     * @throws IOException If the stream can't be written
+     */
+    public void writeTo(OutputStream stream) throws IOException {
+        List<String> paths = new ArrayList<String>();
+        Map<String, Integer> pathIndexes = new HashMap<String, Integer>();
+        for (Entry entry : entries.values()) {
+            for (Provider provider : new Provider[] {entry.first, entry.lastVersioned}) {
+                if (provider != null && !pathIndexes.containsKey(provider.export.getLocation().getPath())) {
+                    pathIndexes.put(provider.export.getLocation().getPath(), paths.size());
+                    paths.add(provider.export.getLocation().getPath());
+                }
+            }
+        }
+
+        DataOutputStream out = new DataOutputStream(stream);
+        out.writeInt(MAGIC);
+        out.writeInt(FORMAT_VERSION);
+        out.writeInt(shardCount);
+        out.writeBoolean(firstWins);
+        out.writeInt(shards.size());
+        for (int shard : shards) {
+            out.writeInt(shard);
+        }
+        out.writeInt(paths.size());
+        for (String path : paths) {
+            out.writeUTF(path);
+        }
+        out.writeInt(entries.size());
+        for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+            out.writeUTF(entry.getKey());
+            writeProvider(out, entry.getValue().first, pathIndexes);
+            out.writeBoolean(entry.getValue().lastVersioned != null);
+            if (entry.getValue().lastVersioned != null) {
+                writeProvider(out, entry.getValue().lastVersioned, pathIndexes);
+            }
+            out.writeInt(entry.getValue().versions.size());
+            for (String version : entry.getValue().versions) {
+                out.writeUTF(version);
+            }
+        }
+        out.flush();
+    }
+
+    /**
+     * Reads a result written by {@link #writeTo(OutputStream)}
+     * @param stream The stream, which is not closed
+     * @return The result
+     * @throws IOException If the stream can't be read or doesn't hold a result
+     */
+    public static PartialScanResult readFrom(InputStream stream) throws IOException {
+        DataInputStream in = new DataInputStream(stream);
+        if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION) {
+            throw new IOException("Not a partial package scan result");
+        }
+        PartialScanResult result = new PartialScanResult(in.readInt(), in.readBoolean());
+        for (int count = in.readInt(); count > 0; count--) {
+            result.shards.add(in.readInt());
+        }
+        File[] locations = new File[in.readInt()];
+        for (int x = 0; x < locations.length; x++) {
+            locations[x] = new File(in.readUTF());
+        }
+        for (int count = in.readInt(); count > 0; count--) {
+            String packageName = in.readUTF();
+            Provider first = readProvider(in, packageName, locations);
+            Provider lastVersioned = in.readBoolean() ? readProvider(in, packageName, locations) : null;
+            TreeSet<String> versions = new TreeSet<String>();
+            for (int v = in.readInt(); v > 0; v--) {
+                versions.add(in.readUTF());
+            }
+            result.entries.put(packageName, new Entry(first, lastVersioned, versions));
+        }
+        return result;
+    }
+
+    private static void writeProvider(DataOutputStream out, Provider provider, Map<String, Integer> pathIndexes)
+            throws IOException {
+        out.writeInt(pathIndexes.get(provider.export.getLocation().getPath()));
+        out.writeLong(provider.position);
+        out.writeInt(provider.shard);
+        String version = provider.export.getVersion();
+        out.writeBoolean(version != null);
+        if (version != null) {
+            out.writeUTF(version);
+        }
+    }
+
+    private static Provider readProvider(DataInputStream in, String packageName, File[] locations)
+            throws IOException {
+        int location = in.readInt();
+        if (location < 0 || location >= locations.length) {
+            throw new IOException("Corrupt partial package scan result");
+        }
+        long position = in.readLong();
+        int shard = in.readInt();
+        String version = in.readBoolean() ? in.readUTF() : null;
+        return new Provider(new ExportPackage(packageName, version, locations[location]), position, shard);
+    }
+
+    /**
+     * A location of a package, with the position of its classpath element and the shard that found it
+     */
+    private static class Provider {
+        private final ExportPackage export;
+        private final long position;
+        private final int shard;
+
+        private Provider(ExportPackage export, long position, int shard) {
+            this.export = export;
+            this.position = position;
+            this.shard = shard;
+        }
+    }
+
+    private static class Entry {
+        private final Provider first;
+        private final Provider lastVersioned;
+        private final TreeSet<String> versions;
+
+        private Entry(Provider first, Provider lastVersioned, TreeSet<String> versions) {
+            this.first = first;
+            this.lastVersioned = lastVersioned;
+            this.versions = versions;
+        }
+    }
+}
@@ -0,0 +1,244 @@
+package org.twdata.pkgscanner;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * A deterministic automaton deciding include and exclude wildcard patterns together, where {@code *} matches any
+ * sequence of characters as with {@link org.twdata.pkgscanner.pattern.SimpleWildcardPattern}.  Every state knows
+ * whether the input read so far is included and not excluded, so a value is decided in a single pass over its
+ * characters, stopping early once no pattern can match any more.
+ * <p/>
+ * The automaton is built up front by subset construction over the characters used in the patterns, plus one class
+ * for every other character, so it is immutable and can be shared between threads.
+ */
+final class PatternAutomaton {
+    /** Beyond this the patterns are unusual enough that looping over them is cheaper */
+    private static final int MAX_STATES = 4096;
+    private static final int DEAD = 0;
+
+    private final char[] alphabet;
+    private final byte[] asciiClasses = new byte[128];
+    private final int classCount;
+    private final int[] transitions;
+    private final boolean[] verdicts;
+    /** Whether some value, read from a state on, can still be accepted */
+    private final boolean[] live;
+
+    private PatternAutomaton(char[] alphabet, int[] transitions, boolean[] verdicts) {
+        this.alphabet = alphabet;
+        this.classCount = alphabet.length + 1;
+        this.transitions = transitions;
+        this.verdicts = verdicts;
+        this.live = verdicts.clone();
+        for (boolean changed = true; changed; ) {
+            changed = false;
+            for (int s = 1; s < live.length; s++) {
+                for (int cls = 0; cls < classCount && !live[s]; cls++) {
+                    if (live[transitions[s * classCount + cls]]) {
+                        live[s] = changed = true;
+                    }
+                }
+            }
+        }
+        Arrays.fill(asciiClasses, (byte) -1);
+        for (int x = 0; x < alphabet.length; x++) {
+            if (alphabet[x] < 128) {
+                asciiClasses[alphabet[x]] = (byte) x;
+            }
+        }
+    }
+
+    /**
+     * Builds the automaton for a set of patterns
+     * @param includes The patterns a value must match
+     * @param excludes The patterns a value must not match
+     * @return The automaton, or null if it would have too many states
+     */
+    static PatternAutomaton build(String[] includes, String[] excludes) {
+        String[] patterns = new String[includes.length + excludes.length];
+        System.arraycopy(includes, 0, patterns, 0, includes.length);
+        System.arraycopy(excludes, 0, patterns, includes.length, excludes.length);
+
+        // every position of every pattern is a state of the nondeterministic automaton
+        int[] offsets = new int[patterns.length + 1];
+        TreeSet<Character> chars = new TreeSet<Character>();
+        for (int p = 0; p < patterns.length; p++) {
+            offsets[p + 1] = offsets[p] + patterns[p].length() + 1;
+            for (char c : patterns[p].toCharArray()) {
+                if (c != '*') {
+                    chars.add(c);
+                }
+            }
+        }
+        char[] alphabet = new char[chars.size()];
+        int i = 0;
+        for (char c : chars) {
+            alphabet[i++] = c;
+        }
+        int classCount = alphabet.length + 1;
+        Nfa nfa = new Nfa(patterns, offsets, includes.length);
+
+        // state 0 is the dead state, state 1 the start
+        List<int[]> states = new ArrayList<int[]>();
+        Map<String, Integer> index = new HashMap<String, Integer>();
+        states.add(new int[0]);
+        index.put("", DEAD);
+        int[] start = nfa.start();
+        states.add(start);
+        index.put(Arrays.toString(start), 1);
+
+        int[] transitions = new int[16 * classCount];
+        for (int s = 1; s < states.size(); s++) {
+            for (int cls = 0; cls < classCount; cls++) {
+                // the last class stands for characters no pattern mentions, which only a '*' accepts
+                int[] next = nfa.step(states.get(s), cls < alphabet.length ? alphabet[cls] : '*', cls < alphabet.length);
+                String key = Arrays.toString(next);
+                Integer target = index.get(key);
+                if (target == null) {
+                    if (states.size() == MAX_STATES) {
+                        return null;
+                    }
+                    target = states.size();
+                    states.add(next);
+                    index.put(key, target);
+                }
+                int slot = s * classCount + cls;
+                if (slot >= transitions.length) {
+                    transitions = Arrays.copyOf(transitions, Math.max(transitions.length * 2, slot + 1));
+                }
+                transitions[slot] = target;
+            }
+        }
+
+        boolean[] verdicts = new boolean[states.size()];
+        for (int s = 0; s < states.size(); s++) {
+            verdicts[s] = nfa.verdict(states.get(s));
+        }
+        return new PatternAutomaton(alphabet,
+                Arrays.copyOf(transitions, states.size() * classCount), verdicts);
+    }
+
+    /**
+     * @param value The value to test
+     * @return True if the value matches an include pattern and no exclude pattern
+     */
+    boolean matches(String value) {
+        int state = 1;
+        for (int x = 0, len = value.length(); x < len && state != DEAD; x++) {
+            state = transitions[state * classCount + classOf(value.charAt(x))];
+        }
+        return verdicts[state];
+    }
+
+    /**
+     * @param prefix The start of a value
+     * @return True if some value starting with the prefix, including the prefix itself, may be accepted
+     */
+    boolean mayMatchWithPrefix(String prefix) {
+        int state = 1;
+        for (int x = 0, len = prefix.length(); x < len && state != DEAD; x++) {
+            state = transitions[state * classCount + classOf(prefix.charAt(x))];
+        }
+        return live[state];
+    }
+
+    private int classOf(char c) {
+        if (c < 128) {
+            int cls = asciiClasses[c];
+            return cls < 0 ? alphabet.length : cls;
+        }
+        int cls = Arrays.binarySearch(alphabet, c);
+        return cls < 0 ? alphabet.length : cls;
+    }
+
+    int getStateCount() {
+        return verdicts.length;
+    }
+
+    /**
+     * The nondeterministic automaton the states are built from, each of its states being a position in a pattern
+     */
+    private static class Nfa {
+        private final String[] patterns;
+        private final int[] offsets;
+        private final int includeCount;
+
+        private Nfa(String[] patterns, int[] offsets, int includeCount) {
+            this.patterns = patterns;
+            this.offsets = offsets;
+            this.includeCount = includeCount;
+        }
+
+        int[] start() {
+            TreeSet<Integer> set = new TreeSet<Integer>();
+            for (int p = 0; p < patterns.length; p++) {
+                close(p, 0, set);
+            }
+            return toArray(set);
+        }
+
+        int[] step(int[] state, char c, boolean literal) {
+            TreeSet<Integer> set = new TreeSet<Integer>();
+            int p = 0;
+            for (int id : state) {
+                while (id >= offsets[p + 1]) {
+                    p++;
+                }
+                String pattern = patterns[p];
+                int pos = id - offsets[p];
+                if (pos < pattern.length()) {
+                    char expected = pattern.charAt(pos);
+                    if (expected == '*') {
+                        close(p, pos, set);
+                    } else if (literal && expected == c) {
+                        close(p, pos + 1, set);
+                    }
+                }
+            }
+            return toArray(set);
+        }
+
+        boolean verdict(int[] state) {
+            boolean included = false;
+            int p = 0;
+            for (int id : state) {
+                while (id >= offsets[p + 1]) {
+                    p++;
+                }
+                if (id - offsets[p] == patterns[p].length()) {
+                    if (p >= includeCount) {
+                        return false;
+                    }
+                    included = true;
+                }
+            }
+            return included;
+        }
+
+        /**
+         * Adds a position, and the positions after any '*' there as a '*' can match nothing
+         */
+        private void close(int p, int pos, TreeSet<Integer> set) {
+            String pattern = patterns[p];
+            set.add(offsets[p] + pos);
+            while (pos < pattern.length() && pattern.charAt(pos) == '*') {
+                pos++;
+                set.add(offsets[p] + pos);
+            }
+        }
+
+        private static int[] toArray(TreeSet<Integer> set) {
+            int[] ids = new int[set.size()];
+            int x = 0;
+            for (int id : set) {
+                ids[x++] = id;
+            }
+            return ids;
+        }
+    }
+}
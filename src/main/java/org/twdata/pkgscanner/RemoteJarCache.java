@@ -0,0 +1,223 @@
+package org.twdata.pkgscanner;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Lets scans read jars served over HTTP without downloading them.  Range requests fetch the end of the jar, its
+ * central directory, and the entries that versions and declared packages are read from: the manifest,
+ * {@code INDEX.LIST}, {@code module-info.class} and Maven {@code pom.properties}.  From these a stub jar is written
+ * to the cache directory, holding every entry of the remote jar but with only those entries filled in, which is
+ * scanned in place of the remote jar.  Packages found in a remote jar are reported against its stub, which has the
+ * same file name.
+ * <p/>
+ * Stubs are kept with the {@code ETag} of their jar, and revalidated with a conditional request each time they are
+ * used, so an unchanged jar costs one request without a body.  A jar served without an {@code ETag} is fetched again
+ * every time.  Servers that ignore range requests are given up on, never read in full, and so are jars that change
+ * between the requests for their parts.  Imports aren't collected from remote jars, as their classes aren't fetched.
+ * <p/>
+ * Instances are thread-safe; fetches are made one at a time.
+ */
+public class RemoteJarCache {
+    private static final Logger log = LoggerFactory.getLogger(RemoteJarCache.class);
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int TIMEOUT_MILLIS = 30000;
+
+    private final File directory;
+
+    /**
+     * Constructs a cache
+     * @param directory The directory the stubs are kept in, created when needed
+     */
+    public RemoteJarCache(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * @param url A classpath element or resource url
+     * @return True if the url is of a jar served over HTTP, e.g. {@code http://host/foo.jar} or
+     *         {@code jar:https://host/foo.jar!/org/foo}
+     */
+    static boolean isRemote(URL url) {
+        String protocol = jarUrlOf(url).getProtocol().toLowerCase();
+        return "http".equals(protocol) || "https".equals(protocol);
+    }
+
+    /**
+     * Gets the stub of a remote jar, fetching it unless the cached stub is still current
+     * @param url A classpath element or resource url, see {@link #isRemote(URL)}
+     * @return The stub
+     * @throws IOException If the jar can't be fetched
+     */
+    synchronized File getStub(URL url) throws IOException {
+        final URL jarUrl = jarUrlOf(url);
+        String name = jarUrl.getPath().substring(jarUrl.getPath().lastIndexOf('/') + 1);
+        File dir = new File(directory, Long.toHexString(new Fingerprint().add(jarUrl.toExternalForm()).get()));
+        File stub = new File(dir, name.length() == 0 ? "remote.jar" : name);
+        File etagFile = new File(dir, stub.getName() + ".etag");
+        String etag = stub.exists() && etagFile.exists()
+                ? new String(Files.readAllBytes(etagFile.toPath()), UTF8) : null;
+
+        // the end of central directory record is in the last 64KB
+        HttpURLConnection tail = open(jarUrl, "bytes=-" + CentralDirectory.MAX_END_RECORD_SIZE);
+        if (etag != null) {
+            tail.setRequestProperty("If-None-Match", etag);
+        }
+        Range tailRange = read(tail, null);
+        if (tailRange == null) {
+            log.debug("Remote jar [" + jarUrl + "] is unchanged, using its stub " + stub);
+            return stub;
+        }
+        final long length = tailRange.total;
+        final String currentEtag = tailRange.etag;
+        CentralDirectory.Source source = new CentralDirectory.Source() {
+            public long length() {
+                return length;
+            }
+
+            public byte[] read(long position, int count) throws IOException {
+                return fetch(jarUrl, position, count, currentEtag).bytes;
+            }
+        };
+        CentralDirectory centralDirectory = CentralDirectory.read(source, tailRange.bytes);
+
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Unable to create the remote jar cache directory " + dir);
+        }
+        File tmp = File.createTempFile(stub.getName(), ".tmp", dir);
+        try {
+            ZipOutputStream out = new ZipOutputStream(new FileOutputStream(tmp));
+            try {
+                for (CentralDirectory.Entry entry : centralDirectory.getEntries()) {
+                    out.putNextEntry(new ZipEntry(entry.getName()));
+                    if (!entry.isDirectory() && ArchiveContents.isMetadata(entry.getName())) {
+                        out.write(CentralDirectory.readEntry(source, entry));
+                    }
+                    out.closeEntry();
+                }
+            }
+            finally {
+                out.close();
+            }
+            if (stub.exists() && !stub.delete() || !tmp.renameTo(stub)) {
+                throw new IOException("Unable to replace the stub " + stub);
+            }
+        }
+        finally {
+            tmp.delete();
+        }
+        if (currentEtag != null) {
+            Files.write(etagFile.toPath(), currentEtag.getBytes(UTF8));
+        } else {
+            etagFile.delete();
+        }
+        log.debug("Fetched the " + centralDirectory.getEntryCount() + " entries of remote jar [" + jarUrl + "] into "
+                + stub);
+        return stub;
+    }
+
+    /**
+     * @return The url of the jar holding a resource, or the url itself if it isn't a {@code jar:} url
+     */
+    static URL jarUrlOf(URL url) {
+        if (!"jar".equals(url.getProtocol())) {
+            return url;
+        }
+        String path = url.getPath();
+        int bang = path.lastIndexOf("!/");
+        try {
+            return new URL(bang < 0 ? path : path.substring(0, bang));
+        }
+        catch (IOException ex) {
+            return url;
+        }
+    }
+
+    private static Range fetch(URL jarUrl, long start, long length, String etag) throws IOException {
+        return read(open(jarUrl, "bytes=" + start + "-" + (start + length - 1)), etag);
+    }
+
+    private static HttpURLConnection open(URL jarUrl, String range) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) jarUrl.openConnection();
+        connection.setUseCaches(false);
+        connection.setConnectTimeout(TIMEOUT_MILLIS);
+        connection.setReadTimeout(TIMEOUT_MILLIS);
+        connection.setRequestProperty("Range", range);
+        return connection;
+    }
+
+    /**
+     * Reads a partial response
+     * @param etag The ETag the jar had when its other parts were read, or null
+     * @return The range, or null if the jar wasn't modified
+     * @throws IOException If the response isn't the requested range of the same jar
+     */
+    private static Range read(HttpURLConnection connection, String etag) throws IOException {
+        try {
+            int status = connection.getResponseCode();
+            if (status == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                return null;
+            }
+            if (status != HttpURLConnection.HTTP_PARTIAL) {
+                // the body is the whole jar or an error, so it isn't read
+                throw new IOException("Expected a range of " + connection.getURL() + " but got status " + status);
+            }
+            if (etag != null && !etag.equals(connection.getHeaderField("ETag"))) {
+                throw new IOException(connection.getURL() + " changed while being read");
+            }
+            String contentRange = connection.getHeaderField("Content-Range");
+            int slash = contentRange == null ? -1 : contentRange.lastIndexOf('/');
+            long total;
+            try {
+                total = slash < 0 ? -1 : Long.parseLong(contentRange.substring(slash + 1).trim());
+            }
+            catch (NumberFormatException ex) {
+                total = -1;
+            }
+            if (total < 0) {
+                throw new IOException("No length in the Content-Range of " + connection.getURL());
+            }
+
+            InputStream in = connection.getInputStream();
+            try {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                byte[] buffer = new byte[8192];
+                for (int count; (count = in.read(buffer)) != -1; ) {
+                    bytes.write(buffer, 0, count);
+                }
+                return new Range(bytes.toByteArray(), total, connection.getHeaderField("ETag"));
+            }
+            finally {
+                in.close();
+            }
+        }
+        finally {
+            connection.disconnect();
+        }
+    }
+
+    private static class Range {
+        private final byte[] bytes;
+        private final long total;
+        private final String etag;
+
+        private Range(byte[] bytes, long total, String etag) {
+            this.bytes = bytes;
+            this.total = total;
+            this.etag = etag;
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package org.twdata.pkgscanner;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.lang.instrument.Instrumentation;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.function.Function;
+
+/**
+ * Java agent that scans the system classpath on a background thread from the start of the JVM, so the scan runs
+ * while the application starts up rather than when the packages are first needed.  The result is published by
+ * {@link #getResult()}:
+ * <pre>
+ * java -javaagent:package-scanner.jar=include=org.foo.*,exclude=org.foo.internal.*,snapshot=/tmp/exports ...
+ *
+ * CompletableFuture&lt;ScanResult&gt; precomputed = ScanAgent.getResult();
+ * Collection&lt;ExportPackage&gt; exports = precomputed != null ? precomputed.join().getExports() : scanner.scan();
+ * </pre>
+ * The agent arguments are comma-separated options, those taking a value written as {@code name=value}, and
+ * options marked repeatable may be given more than once:
+ * <ul>
+ * <li>{@code include=<pattern>} package pattern to include, repeatable (default com.*, net.*, org.*)</li>
+ * <li>{@code exclude=<pattern>} package pattern to exclude, repeatable</li>
+ * <li>{@code jar-include=<pattern>} jar name pattern to include, repeatable (default *)</li>
+ * <li>{@code jar-exclude=<pattern>} jar name pattern to exclude, repeatable</li>
+ * <li>{@code map=<pattern>=<version>} maps packages to an explicit version, repeatable</li>
+ * <li>{@code snapshot=<file>} keeps a snapshot of the result, reused while the classpath is unchanged</li>
+ * <li>{@code declared} takes packages from the Export-Package header or INDEX.LIST of the jars having one</li>
+ * <li>{@code throttle=<bytes>} limits the bytes read per second</li>
+ * <li>{@code debug} logs versions that can't be determined</li>
+ * </ul>
+ * Invalid arguments, or a failure to start such as slf4j missing from the classpath, are reported on standard
+ * error, and the agent then doesn't scan, rather than stopping the JVM.  For the same reason the agent only looks up
+ * its logger once the scan is done, rather than when the class is loaded.
+ */
+public final class ScanAgent {
+    private static volatile CompletableFuture<ScanResult> result;
+
+    private ScanAgent() {
+    }
+
+    /**
+     * Called by the JVM before the main method when the jar is given with {@code -javaagent}
+     * @param args The agent arguments, or null
+     * @param instrumentation Unused
+     */
+    public static void premain(String args, Instrumentation instrumentation) {
+        // Failures are reported on standard error rather than through slf4j: premain runs before the application
+        // has set up its logging, slf4j may be missing from the classpath altogether, and loading it here could
+        // itself throw, which would abort the JVM
+        try {
+            start(args);
+        }
+        catch (IllegalArgumentException ex) {
+            System.err.println("Invalid package scanner agent arguments, not scanning: " + ex.getMessage());
+        }
+        catch (Throwable ex) {
+            System.err.println("Package scanner agent failed to start, not scanning");
+            ex.printStackTrace();
+        }
+    }
+
+    /**
+     * @return The future result of the scan started by the agent, or null if the agent wasn't loaded or didn't scan
+     */
+    public static CompletableFuture<ScanResult> getResult() {
+        return result;
+    }
+
+    /**
+     * Starts a scan of the system classloader and publishes it
+     * @param args The agent arguments, or null
+     * @return The future result
+     * @throws IllegalArgumentException If the arguments are invalid
+     */
+    static CompletableFuture<ScanResult> start(String args) {
+        ScanThrottle throttle = null;
+        PackageScanner scanner = new PackageScanner().useClassLoader(ClassLoader.getSystemClassLoader());
+        List<String> includes = new ArrayList<String>();
+        List<String> excludes = new ArrayList<String>();
+        List<String> jarIncludes = new ArrayList<String>();
+        List<String> jarExcludes = new ArrayList<String>();
+        Map<String, String> mappings = new LinkedHashMap<String, String>();
+        for (String arg : args == null ? new String[0] : args.split(",")) {
+            arg = arg.trim();
+            if (arg.length() == 0) {
+                continue;
+            }
+            int equals = arg.indexOf('=');
+            String name = equals < 0 ? arg : arg.substring(0, equals);
+            String value = equals < 0 ? null : arg.substring(equals + 1);
+            if ("declared".equals(name)) {
+                scanner.useDeclaredPackages();
+            } else if ("debug".equals(name)) {
+                scanner.enableDebug();
+            } else if (value == null || value.length() == 0) {
+                throw new IllegalArgumentException("Expected " + name + "=<value> but got " + arg);
+            } else if ("include".equals(name)) {
+                includes.add(value);
+            } else if ("exclude".equals(name)) {
+                excludes.add(value);
+            } else if ("jar-include".equals(name)) {
+                jarIncludes.add(value);
+            } else if ("jar-exclude".equals(name)) {
+                jarExcludes.add(value);
+            } else if ("map".equals(name)) {
+                int split = value.indexOf('=');
+                if (split < 1 || split == value.length() - 1) {
+                    throw new IllegalArgumentException("Expected map=<pattern>=<version> but got " + arg);
+                }
+                mappings.put(value.substring(0, split), value.substring(split + 1));
+            } else if ("snapshot".equals(name)) {
+                scanner.withSnapshot(new File(value));
+            } else if ("throttle".equals(name)) {
+                try {
+                    throttle = new ScanThrottle(Long.parseLong(value));
+                }
+                catch (NumberFormatException ex) {
+                    throw new IllegalArgumentException("throttle expects a positive number but got " + value);
+                }
+            } else {
+                throw new IllegalArgumentException("Unknown option " + name);
+            }
+        }
+        if (includes.isEmpty()) {
+            includes.addAll(Arrays.asList("com.*", "net.*", "org.*"));
+        }
+        if (jarIncludes.isEmpty()) {
+            jarIncludes.add("*");
+        }
+        scanner.select(PackageScanner.jars(toArray(jarIncludes), toArray(jarExcludes)),
+                PackageScanner.packages(toArray(includes), toArray(excludes)))
+                .withMappings(mappings);
+
+        ExecutorService executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "pkgscanner-agent");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        final long start = System.currentTimeMillis();
+        CompletableFuture<ScanResult> scan = scanner.compile().scanResultAsync(executor, throttle,
+                new Function<ScanResult, ScanResult>() {
+                    public ScanResult apply(ScanResult scanned) {
+                        Logger log = LoggerFactory.getLogger(ScanAgent.class);
+                        log.debug("Package scanner agent found " + scanned.getExports().size() + " packages in "
+                                + (System.currentTimeMillis() - start) + "ms");
+                        return scanned;
+                    }
+                });
+        // the thread ends once the scan is done
+        executor.shutdown();
+        result = scan;
+        return scan;
+    }
+
+    private static String[] toArray(List<String> values) {
+        return values.toArray(new String[values.size()]);
+    }
+}
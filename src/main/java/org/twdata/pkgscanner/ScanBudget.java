@@ -0,0 +1,98 @@
+package org.twdata.pkgscanner;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits on how long a scan may take and how much it may read.  When a limit is reached, the scan stops at the next
+ * jar entry or file and returns what it found so far as an incomplete {@link ScanResult}, listing the classpath
+ * elements it skipped or only partly read.
+ * <p/>
+ * Budgets are immutable; each {@code with} method returns a new budget.
+ */
+public final class ScanBudget {
+    private static final ScanBudget UNLIMITED = new ScanBudget(0, 0, 0, 0);
+
+    private final long timeoutNanos;
+    private final int maxJars;
+    private final int maxEntriesPerJar;
+    private final long maxBytes;
+
+    private ScanBudget(long timeoutNanos, int maxJars, int maxEntriesPerJar, long maxBytes) {
+        this.timeoutNanos = timeoutNanos;
+        this.maxJars = maxJars;
+        this.maxEntriesPerJar = maxEntriesPerJar;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * @return A budget without limits
+     */
+    public static ScanBudget unlimited() {
+        return UNLIMITED;
+    }
+
+    /**
+     * @param timeout How long each scan may take, counted from its start
+     * @param unit The unit of the timeout
+     */
+    public ScanBudget withDeadline(long timeout, TimeUnit unit) {
+        return new ScanBudget(positive(unit.toNanos(timeout), "timeout"), maxJars, maxEntriesPerJar, maxBytes);
+    }
+
+    /**
+     * @param maxJars The number of jars a scan may read, whether their contents are cached or not
+     */
+    public ScanBudget withMaxJars(int maxJars) {
+        return new ScanBudget(timeoutNanos, (int) positive(maxJars, "maxJars"), maxEntriesPerJar, maxBytes);
+    }
+
+    /**
+     * @param maxEntriesPerJar The number of entries listed in a jar before the rest of the jar is skipped
+     */
+    public ScanBudget withMaxEntriesPerJar(int maxEntriesPerJar) {
+        return new ScanBudget(timeoutNanos, maxJars, (int) positive(maxEntriesPerJar, "maxEntriesPerJar"), maxBytes);
+    }
+
+    /**
+     * @param maxBytes The number of bytes a scan may read.  Listing a jar counts as reading its central directory,
+     *                 and parsing a class for imports as reading the class.
+     */
+    public ScanBudget withMaxBytes(long maxBytes) {
+        return new ScanBudget(timeoutNanos, maxJars, maxEntriesPerJar, positive(maxBytes, "maxBytes"));
+    }
+
+    /**
+     * @return True if the budget has no limits
+     */
+    public boolean isUnlimited() {
+        return timeoutNanos == 0 && maxJars == 0 && maxEntriesPerJar == 0 && maxBytes == 0;
+    }
+
+    long getTimeoutNanos() {
+        return timeoutNanos;
+    }
+
+    int getMaxJars() {
+        return maxJars;
+    }
+
+    int getMaxEntriesPerJar() {
+        return maxEntriesPerJar;
+    }
+
+    long getMaxBytes() {
+        return maxBytes;
+    }
+
+    private static long positive(long value, String name) {
+        if (value <= 0) {
+            throw new IllegalArgumentException(name + " must be positive");
+        }
+        return value;
+    }
+
+    @Override
+    public String toString() {
+        return "timeout " + timeoutNanos + "ns jars " + maxJars + " entries " + maxEntriesPerJar + " bytes " + maxBytes;
+    }
+}
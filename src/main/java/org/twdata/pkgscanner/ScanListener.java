@@ -0,0 +1,17 @@
+package org.twdata.pkgscanner;
+
+import java.io.File;
+import java.util.List;
+
+/**
+ * Receives the progress of a scan as each classpath element is finished.  Calls are made from the scanning thread.
+ */
+public interface ScanListener {
+
+    /**
+     * Called when a jar or directory has been scanned
+     * @param element The jar or directory
+     * @param packages The matching packages found in it, before duplicates across elements are removed
+     */
+    void elementScanned(File element, List<ExportPackage> packages);
+}
@@ -0,0 +1,587 @@
+package org.twdata.pkgscanner;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.twdata.pkgscanner.pattern.CompiledPattern;
+import org.twdata.pkgscanner.pattern.PatternFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+/**
+ * A compiled scan configuration, created by {@link PackageScanner#compile()}.  The jar and package patterns and the
+ * version mappings are compiled, and the mapped versions converted, once when the plan is created.  A plan is
+ * immutable, so any number of threads can run scans from it at the same time, and later changes to the
+ * {@link PackageScanner} it came from don't affect it.
+ * <p/>
+ * The caches and listener the plan was compiled with are shared by all of its scans.  The caches are thread-safe,
+ * but a {@link ScanListener} is called from every scanning thread, and an {@link ImportCollector} should only be
+ * used by one scan at a time.
+ */
+public final class ScanPlan {
+    private final static Logger log = LoggerFactory.getLogger(ScanPlan.class);
+
+    private final ClassLoader classLoader;
+    private final Matcher jarMatcher;
+    private final Matcher packageMatcher;
+    private final String[] roots;
+    private final Mapping[] mappings;
+    private final List<VersionResolver> versionResolvers;
+    private final boolean lazyVersions;
+    private final boolean firstWins;
+    private final String configurationKey;
+    private final boolean debug;
+    private final ClassLoaderHierarchyCache hierarchyCache;
+    private final File snapshotFile;
+    private final ScanListener scanListener;
+    private final JarContentCache jarContentCache;
+    private final JarFilePool jarFilePool;
+    private final ImportCollector importCollector;
+    private final ScanBudget budget;
+    private final PackageSummaryStore packageSummaries;
+    private final boolean checkModuleDescriptors;
+    private final boolean useDeclaredPackages;
+    private final RemoteJarCache remoteJars;
+    private final InternalScanner.Test test = new InternalScanner.Test() {
+        public boolean matchesPackage(String pkg) {
+            return packageMatcher.matches(pkg);
+        }
+
+        public boolean matchesJar(String name) {
+            return jarMatcher.matches(name);
+        }
+
+        public boolean mayMatchPackageWithPrefix(String prefix) {
+            return packageMatcher.mayMatchWithPrefix(prefix);
+        }
+    };
+
+    /**
+     * Compiles the settings of a scanner
+     * @param settings The scanner, which is only read here
+     */
+    ScanPlan(PackageScanner settings) {
+        PatternFactory patternFactory = settings.patternFactory;
+        OsgiVersionConverter converter = new DefaultOsgiVersionConverter();
+        this.mappings = new Mapping[settings.versionMappings.length];
+        for (int x = 0; x < mappings.length; x++) {
+            mappings[x] = settings.versionMappings[x].compile(patternFactory, converter);
+        }
+        this.classLoader = settings.classLoader;
+        this.jarMatcher = settings.jarPatterns.compile(patternFactory);
+        this.packageMatcher = settings.packagePatterns.compile(patternFactory);
+        List<String> roots = settings.packagePatterns.getRoots();
+        this.roots = roots.toArray(new String[roots.size()]);
+        this.versionResolvers = settings.versionResolvers;
+        this.lazyVersions = settings.lazyVersions;
+        this.firstWins = settings.firstWins;
+        this.configurationKey = settings.configurationKey();
+        this.debug = settings.debug;
+        this.hierarchyCache = settings.hierarchyCache;
+        this.snapshotFile = settings.snapshotFile;
+        this.scanListener = settings.scanListener;
+        this.jarContentCache = settings.jarContentCache;
+        this.jarFilePool = settings.jarFilePool;
+        this.importCollector = settings.importCollector;
+        this.budget = settings.budget;
+        this.packageSummaries = settings.packageSummaries;
+        this.checkModuleDescriptors = settings.checkModuleDescriptors;
+        this.useDeclaredPackages = settings.useDeclaredPackages;
+        this.remoteJars = settings.remoteJars;
+    }
+
+    /**
+     * Scans the classloader of the plan, or the context classloader of the calling thread if none was set
+     * @return A list of discovered packages and their guessed version
+     */
+    public Collection<ExportPackage> scan() {
+        return scan(createScanner());
+    }
+
+    /**
+     * Scans the classloader of the plan, or the context classloader of the calling thread if none was set, telling
+     * whether the scan finished within the budget of the plan
+     * @return The discovered packages, and the classpath elements skipped if the budget ran out
+     */
+    public ScanResult scanResult() {
+        return scan(createScanner(), packagesTask(), true);
+    }
+
+    /**
+     * Scans the passed set of URLs, telling whether the scan finished within the budget of the plan
+     * @param urls A list of urls that should be scanned
+     * @return The discovered packages, and the classpath elements skipped if the budget ran out
+     */
+    public ScanResult scanResult(URL... urls) {
+        return scan(createScanner(), urlsTask(urls), true);
+    }
+
+    /**
+     * Scans the passed set of URLs.
+     * @param urls A list of urls that should be scanned
+     * @return A list of discovered packages and their guessed version
+     */
+    public Collection<ExportPackage> scan(URL... urls) {
+        return exportsOf(scan(createScanner(), urlsTask(urls), true));
+    }
+
+    /**
+     * Scans a jar held in memory, going straight to its central directory and only reading the entries versions are
+     * taken from.  The jar patterns don't apply, imports aren't collected and the budget isn't used.  Version
+     * resolvers that need a {@link java.util.jar.JarFile} are skipped, except the manifest and
+     * {@code pom.properties} ones, which read the jar in memory.
+     * @param location The label the packages are reported against, e.g. the url the jar came from
+     * @param jar The bytes of the jar, between the position and the limit of the buffer, which are left as they are
+     * @return A list of discovered packages and their guessed version
+     * @throws IOException If the jar isn't a zip file
+     */
+    public Collection<ExportPackage> scanArchive(String location, ByteBuffer jar) throws IOException {
+        return scanArchive(location, ArchiveContents.read(CentralDirectory.source(jar)));
+    }
+
+    /**
+     * Scans a jar held in memory, see {@link #scanArchive(String, ByteBuffer)}
+     * @param location The label the packages are reported against, e.g. the url the jar came from
+     * @param jar The bytes of the jar
+     * @return A list of discovered packages and their guessed version
+     * @throws IOException If the jar isn't a zip file
+     */
+    public Collection<ExportPackage> scanArchive(String location, byte[] jar) throws IOException {
+        return scanArchive(location, ByteBuffer.wrap(jar));
+    }
+
+    /**
+     * Scans a jar read through a channel, e.g. one of an in-memory file system, reading its central directory and
+     * the entries versions are taken from, see {@link #scanArchive(String, ByteBuffer)}
+     * @param location The label the packages are reported against
+     * @param jar The jar, from position 0 to its size.  Its position is changed, and it isn't closed.
+     * @return A list of discovered packages and their guessed version
+     * @throws IOException If the jar can't be read or isn't a zip file
+     */
+    public Collection<ExportPackage> scanArchive(String location, SeekableByteChannel jar) throws IOException {
+        return scanArchive(location, ArchiveContents.read(CentralDirectory.source(jar)));
+    }
+
+    /**
+     * Scans a jar that can only be read once from start to end, e.g. one being downloaded, walking the headers of
+     * its entries and skipping over their data, see {@link #scanArchive(String, ByteBuffer)}
+     * @param location The label the packages are reported against
+     * @param jar The jar, which is read to the end but not closed
+     * @return A list of discovered packages and their guessed version
+     * @throws IOException If the jar can't be read or isn't a zip file
+     */
+    public Collection<ExportPackage> scanArchive(String location, InputStream jar) throws IOException {
+        return scanArchive(location, ArchiveContents.read(jar));
+    }
+
+    private Collection<ExportPackage> scanArchive(String location, final ArchiveContents archive) {
+        final File file = new File(location);
+        return exportsOf(scan(createScanner(), new ScanTask() {
+            public long fingerprint(InternalScanner scanner) {
+                return 0;
+            }
+
+            public Collection<ExportPackage> scan(InternalScanner scanner) {
+                return scanner.findInArchive(test, file, archive);
+            }
+        }, false));
+    }
+
+    /**
+     * Scans the classloader of the plan into an index of every location providing each package.  The snapshot, which
+     * only holds one location per package, is not used.
+     * @return The index
+     */
+    public PackageIndex scanIndex() {
+        InternalScanner scanner = createScanner();
+        PackageIndex index = new PackageIndex(firstWins);
+        scanner.setPackageIndex(index);
+        exportsOf(scan(scanner, packagesTask(), false));
+        return index;
+    }
+
+    /**
+     * Scans the passed set of URLs into an index of every location providing each package, see {@link #scanIndex()}
+     * @param urls A list of urls that should be scanned
+     * @return The index
+     */
+    public PackageIndex scanIndex(URL... urls) {
+        InternalScanner scanner = createScanner();
+        PackageIndex index = new PackageIndex(firstWins);
+        scanner.setPackageIndex(index);
+        exportsOf(scan(scanner, urlsTask(urls), false));
+        return index;
+    }
+
+    /**
+     * Scans one shard of the classpath elements of the classloader, for the results of all shards to be merged with
+     * {@link PartialScanResult#merge(PartialScanResult)}.  Each jar falls in a shard of its own, including the jars
+     * of a directory on the classpath, by its path relative to the working directory.  Shards can be scanned by
+     * different processes, as long as they see the same classpath from the same directory.  The snapshot and
+     * hierarchy cache are not used.
+     * @param shard The shard to scan, from 0
+     * @param shardCount The number of shards
+     * @return The packages found in the shard
+     */
+    public PartialScanResult scanShard(int shard, int shardCount) {
+        return scanShard(shard, shardCount, packagesTask());
+    }
+
+    /**
+     * Scans one shard of the passed set of URLs, see {@link #scanShard(int, int)}
+     * @param shard The shard to scan, from 0
+     * @param shardCount The number of shards
+     * @param urls A list of urls, the same for every shard
+     * @return The packages found in the shard
+     */
+    public PartialScanResult scanShard(int shard, int shardCount, URL... urls) {
+        return scanShard(shard, shardCount, urlsTask(urls));
+    }
+
+    private PartialScanResult scanShard(int shard, int shardCount, ScanTask task) {
+        PartialScanResult result = new PartialScanResult(shard, shardCount, firstWins);
+        InternalScanner scanner = createScanner();
+        scanner.setShard(shard, shardCount, result);
+        exportsOf(scan(scanner, task, false));
+        return result;
+    }
+
+    /**
+     * Scans the classloader on a thread of the executor.  Cancelling the returned future stops the scan at the next
+     * jar entry or file; the scanning thread is not interrupted.
+     *
+     * @param executor The executor to scan with
+     * @return The future list of discovered packages and their guessed version
+     */
+    public CompletableFuture<Collection<ExportPackage>> scanAsync(Executor executor) {
+        return scanAsync(executor, createScanner(), new Function<ScanResult, Collection<ExportPackage>>() {
+            public Collection<ExportPackage> apply(ScanResult result) {
+                return exportsOf(result);
+            }
+        });
+    }
+
+    /**
+     * Scans the classloader on a thread of the executor, slowed down by a throttle, see {@link BackgroundScanner}
+     * @param finisher Called on the result on the scanning thread, before the future completes
+     */
+    CompletableFuture<ScanResult> scanResultAsync(Executor executor, ScanThrottle throttle,
+                                                  Function<ScanResult, ScanResult> finisher) {
+        InternalScanner scanner = createScanner();
+        scanner.setThrottle(throttle);
+        return scanAsync(executor, scanner, finisher);
+    }
+
+    private <T> CompletableFuture<T> scanAsync(Executor executor, final InternalScanner scanner,
+                                               final Function<ScanResult, T> finisher) {
+        final CompletableFuture<T> future = new CompletableFuture<T>();
+        future.whenComplete(new BiConsumer<T, Throwable>() {
+            public void accept(T value, Throwable error) {
+                if (future.isCancelled()) {
+                    scanner.cancel();
+                }
+            }
+        });
+        try {
+            executor.execute(new Runnable() {
+                public void run() {
+                    if (future.isDone()) {
+                        return;
+                    }
+                    try {
+                        future.complete(finisher.apply(scan(scanner, packagesTask(), true)));
+                    }
+                    catch (Throwable t) {
+                        future.completeExceptionally(t);
+                    }
+                }
+            });
+        }
+        catch (RejectedExecutionException ex) {
+            future.completeExceptionally(ex);
+        }
+        return future;
+    }
+
+    /**
+     * @return A key that identifies the patterns and mappings of the plan, as scan results depend on them
+     */
+    String getConfigurationKey() {
+        return configurationKey;
+    }
+
+    /**
+     * @return A key that identifies everything in the plan the result of a scan depends on, besides what is scanned:
+     *         the patterns and mappings, and the budget
+     */
+    String getResultKey() {
+        return budget == null ? configurationKey : configurationKey + " budget " + budget;
+    }
+
+    /**
+     * @return True if a scan has no effects besides its result, so callers can share one, see {@link ScanService}
+     */
+    boolean isShareable() {
+        return importCollector == null && scanListener == null;
+    }
+
+    /**
+     * @return The classloader scanned by the calling thread
+     */
+    ClassLoader getClassLoader() {
+        return classLoader == null ? Thread.currentThread().getContextClassLoader() : classLoader;
+    }
+
+    private InternalScanner createScanner() {
+        InternalScanner scanner = new InternalScanner(getClassLoader(), mappings, debug);
+        scanner.setVersionResolvers(versionResolvers);
+        scanner.setLazyVersions(lazyVersions);
+        scanner.setFirstWins(firstWins);
+        if (hierarchyCache != null) {
+            scanner.setHierarchyCache(hierarchyCache, configurationKey);
+        }
+        scanner.setScanListener(scanListener);
+        if (jarContentCache != null) {
+            scanner.setJarContentCache(jarContentCache);
+        }
+        if (jarFilePool != null) {
+            scanner.setJarFilePool(jarFilePool);
+        }
+        scanner.setImportCollector(importCollector);
+        scanner.setBudget(budget);
+        scanner.setPackageSummaries(packageSummaries);
+        scanner.setCheckModuleDescriptors(checkModuleDescriptors);
+        scanner.setUseDeclaredPackages(useDeclaredPackages);
+        scanner.setRemoteJars(remoteJars);
+        return scanner;
+    }
+
+    private Collection<ExportPackage> scan(InternalScanner scanner) {
+        return exportsOf(scan(scanner, packagesTask(), true));
+    }
+
+    private static Collection<ExportPackage> exportsOf(ScanResult result) {
+        if (!result.isComplete()) {
+            log.warn("Scan stopped by its budget (" + result.getLimitsReached() + "), skipping "
+                    + result.getSkipped().size() + " classpath elements");
+        }
+        return result.getExports();
+    }
+
+    private ScanTask packagesTask() {
+        return new ScanTask() {
+            public long fingerprint(InternalScanner scanner) {
+                return scanner.fingerprintPackages(configurationKey, roots);
+            }
+
+            public Collection<ExportPackage> scan(InternalScanner scanner) {
+                return scanner.findInPackages(test, roots);
+            }
+        };
+    }
+
+    private ScanTask urlsTask(final URL... urls) {
+        return new ScanTask() {
+            public long fingerprint(InternalScanner scanner) {
+                return scanner.fingerprintUrls(configurationKey, urls);
+            }
+
+            public Collection<ExportPackage> scan(InternalScanner scanner) {
+                return scanner.findInUrls(test, urls);
+            }
+        };
+    }
+
+    /**
+     * Runs a scan, going through the snapshot and import collection when they are configured
+     */
+    private ScanResult scan(InternalScanner scanner, ScanTask task, boolean allowSnapshot) {
+        boolean useSnapshot = allowSnapshot && snapshotFile != null && importCollector == null;
+        long fingerprint = 0;
+        if (useSnapshot) {
+            fingerprint = task.fingerprint(scanner);
+            Collection<ExportPackage> snapshot = loadSnapshot(fingerprint);
+            if (snapshot != null) {
+                return new ScanResult(snapshot, Collections.<File>emptyList(),
+                        EnumSet.noneOf(ScanResult.Limit.class));
+            }
+        }
+
+        // Kick off the scanning
+        scanner.startBudget();
+        Collection<ExportPackage> exports;
+        try {
+            try {
+                exports = task.scan(scanner);
+            }
+            catch (RuntimeException ex) {
+                if (importCollector != null) {
+                    importCollector.abort();
+                }
+                throw ex;
+            }
+            if (importCollector != null) {
+                importCollector.finish(test);
+            }
+        }
+        finally {
+            scanner.closeJarFiles();
+        }
+        if (packageSummaries != null) {
+            savePackageSummaries();
+        }
+
+        // a partial scan would hide the packages it skipped from the next scans
+        if (useSnapshot && scanner.isComplete()) {
+            saveSnapshot(fingerprint, exports);
+        }
+        return new ScanResult(exports, scanner.getSkipped(), scanner.getLimitsReached());
+    }
+
+    private Collection<ExportPackage> loadSnapshot(long fingerprint) {
+        if (!snapshotFile.exists()) {
+            return null;
+        }
+        try {
+            ScanSnapshot snapshot = ScanSnapshot.open(snapshotFile);
+            if (snapshot.getFingerprint() == fingerprint) {
+                log.debug("Using the snapshot in " + snapshotFile + " as the classpath hasn't changed");
+                return snapshot.asList();
+            }
+            log.debug("Ignoring the snapshot in " + snapshotFile + " as the classpath has changed");
+        }
+        catch (IOException ex) {
+            log.warn("Unable to read the snapshot in " + snapshotFile + ", scanning instead", ex);
+        }
+        return null;
+    }
+
+    private void saveSnapshot(long fingerprint, Collection<ExportPackage> exports) {
+        try {
+            ScanSnapshot.write(snapshotFile, fingerprint, exports);
+        }
+        catch (IOException ex) {
+            log.warn("Unable to write the snapshot to " + snapshotFile, ex);
+        }
+    }
+
+    private void savePackageSummaries() {
+        try {
+            packageSummaries.save();
+        }
+        catch (IOException ex) {
+            log.warn("Unable to write the package summaries", ex);
+        }
+    }
+
+    private interface ScanTask {
+        long fingerprint(InternalScanner scanner);
+
+        Collection<ExportPackage> scan(InternalScanner scanner);
+    }
+
+    /**
+     * Compiled include and exclude patterns.  Simple wildcard patterns are decided by a {@link PatternAutomaton},
+     * others by trying each pattern in turn.  Verdicts for recently tested values are remembered, as the same
+     * packages turn up in many jars.
+     */
+    static final class Matcher {
+        private static final int VERDICT_CACHE_SIZE = 1024;
+
+        private final PatternAutomaton automaton;
+        private final CompiledPattern[] includes;
+        private final CompiledPattern[] excludes;
+        // entries are immutable, so threads racing on a slot at worst recompute a verdict
+        private final Verdict[] verdicts = new Verdict[VERDICT_CACHE_SIZE];
+
+        Matcher(PatternAutomaton automaton) {
+            this.automaton = automaton;
+            this.includes = null;
+            this.excludes = null;
+        }
+
+        Matcher(List<CompiledPattern> includes, List<CompiledPattern> excludes) {
+            this.automaton = null;
+            this.includes = includes.toArray(new CompiledPattern[includes.size()]);
+            this.excludes = excludes.toArray(new CompiledPattern[excludes.size()]);
+        }
+
+        boolean matches(String val) {
+            int slot = (val.hashCode() * 0x9E3779B9 >>> 22) & (VERDICT_CACHE_SIZE - 1);
+            Verdict verdict = verdicts[slot];
+            if (verdict != null && verdict.value.equals(val)) {
+                return verdict.matches;
+            }
+            boolean matches = automaton != null ? automaton.matches(val) : loop(val);
+            verdicts[slot] = new Verdict(val, matches);
+            return matches;
+        }
+
+        /**
+         * @param prefix The start of a value, e.g. a package name
+         * @return False if no value starting with the prefix can match, true if one may
+         */
+        boolean mayMatchWithPrefix(String prefix) {
+            // the patterns that can't be turned into an automaton are opaque, so anything may match them
+            return automaton == null || automaton.mayMatchWithPrefix(prefix);
+        }
+
+        private boolean loop(String val) {
+            for (CompiledPattern ptn : includes) {
+                if (ptn.matches(val)) {
+                    for (CompiledPattern exptn : excludes) {
+                        if (exptn.matches(val)) {
+                            return false;
+                        }
+                    }
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private static final class Verdict {
+            private final String value;
+            private final boolean matches;
+
+            private Verdict(String value, boolean matches) {
+                this.value = value;
+                this.matches = matches;
+            }
+        }
+    }
+
+    /**
+     * A compiled package-version mapping, with its version already converted to an OSGi version
+     */
+    static final class Mapping {
+        private final CompiledPattern pattern;
+        private final String version;
+
+        Mapping(CompiledPattern pattern, String version) {
+            this.pattern = pattern;
+            this.version = version;
+        }
+
+        boolean matches(String pkg) {
+            return pattern.matches(pkg);
+        }
+
+        String getVersion() {
+            return version;
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package org.twdata.pkgscanner;
+
+import java.io.File;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The packages found by a scan, and whether the scan finished within its {@link ScanBudget}.  An incomplete result
+ * holds what was found before the budget ran out, and lists the classpath elements that were skipped or only partly
+ * read, so they can be scanned later.
+ */
+public class ScanResult {
+    /**
+     * The limits of a {@link ScanBudget}
+     */
+    public enum Limit {
+        DEADLINE, JARS, ENTRIES_PER_JAR, BYTES
+    }
+
+    private final Collection<ExportPackage> exports;
+    private final List<File> skipped;
+    private final Set<Limit> limitsReached;
+
+    ScanResult(Collection<ExportPackage> exports, List<File> skipped, Set<Limit> limitsReached) {
+        this.exports = exports;
+        this.skipped = Collections.unmodifiableList(skipped);
+        this.limitsReached = Collections.unmodifiableSet(limitsReached);
+    }
+
+    /**
+     * @return The discovered packages and their guessed version
+     */
+    public Collection<ExportPackage> getExports() {
+        return exports;
+    }
+
+    /**
+     * @return True if every classpath element was fully read
+     */
+    public boolean isComplete() {
+        return limitsReached.isEmpty();
+    }
+
+    /**
+     * @return The jars and directories that weren't read, or only partly, in the order they were met
+     */
+    public List<File> getSkipped() {
+        return skipped;
+    }
+
+    /**
+     * @return The limits that were reached, empty if the scan is complete
+     */
+    public Set<Limit> getLimitsReached() {
+        return limitsReached;
+    }
+}
@@ -0,0 +1,160 @@
+package org.twdata.pkgscanner;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Shares scans between callers that ask for the same scan at the same time, e.g. plugins all scanning the same
+ * classloader during startup.  A scan is the same as one in flight if it is of the same classloader, by identity,
+ * or of the same urls, and its plan has the same patterns, mappings and budget.  The first caller runs the scan on
+ * its own thread, and the callers arriving while it runs wait for its result rather than scanning again.  Nothing
+ * is kept once a scan finishes, so a later call scans again, through the snapshot or caches of its plan.
+ * <p/>
+ * Plans with an {@link ImportCollector} or a {@link ScanListener} are never shared, as each caller expects them to
+ * see its own scan.  A failed scan fails all the callers waiting for it.  Instances are thread-safe.
+ */
+public class ScanService {
+    private static final Logger log = LoggerFactory.getLogger(ScanService.class);
+
+    private final ConcurrentMap<Key, CompletableFuture<ScanResult>> inFlight =
+            new ConcurrentHashMap<Key, CompletableFuture<ScanResult>>();
+    private final AtomicLong sharedScans = new AtomicLong();
+
+    /**
+     * Scans the classloader of a plan, or waits for the same scan already in flight
+     * @param plan The plan
+     * @return The discovered packages, and the classpath elements skipped if the budget ran out
+     */
+    public ScanResult scan(final ScanPlan plan) {
+        return scan(plan, new Key(plan.getClassLoader(), null, plan.getResultKey()), new Scan() {
+            public ScanResult run() {
+                return plan.scanResult();
+            }
+        });
+    }
+
+    /**
+     * Scans the passed set of URLs, or waits for the same scan already in flight
+     * @param plan The plan
+     * @param urls A list of urls that should be scanned
+     * @return The discovered packages, and the classpath elements skipped if the budget ran out
+     */
+    public ScanResult scan(final ScanPlan plan, final URL... urls) {
+        List<String> forms = new ArrayList<String>(urls.length);
+        for (URL url : urls) {
+            forms.add(url.toExternalForm());
+        }
+        return scan(plan, new Key(null, forms, plan.getResultKey()), new Scan() {
+            public ScanResult run() {
+                return plan.scanResult(urls);
+            }
+        });
+    }
+
+    /**
+     * @return The number of callers that were given the result of another caller's scan
+     */
+    public long getSharedScans() {
+        return sharedScans.get();
+    }
+
+    private ScanResult scan(ScanPlan plan, Key key, Scan scan) {
+        if (!plan.isShareable()) {
+            return scan.run();
+        }
+        CompletableFuture<ScanResult> future = new CompletableFuture<ScanResult>();
+        CompletableFuture<ScanResult> running = inFlight.putIfAbsent(key, future);
+        if (running != null) {
+            sharedScans.incrementAndGet();
+            log.debug("Waiting for the scan in flight of " + key);
+            return await(running);
+        }
+
+        try {
+            ScanResult result = scan.run();
+            future.complete(result);
+            return result;
+        }
+        catch (RuntimeException ex) {
+            future.completeExceptionally(ex);
+            throw ex;
+        }
+        catch (Error err) {
+            future.completeExceptionally(err);
+            throw err;
+        }
+        finally {
+            inFlight.remove(key, future);
+        }
+    }
+
+    private static ScanResult await(CompletableFuture<ScanResult> running) {
+        try {
+            return running.join();
+        }
+        catch (CompletionException ex) {
+            // rethrows what the scan threw, as if the caller had scanned
+            if (ex.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) ex.getCause();
+            }
+            if (ex.getCause() instanceof Error) {
+                throw (Error) ex.getCause();
+            }
+            throw ex;
+        }
+    }
+
+    private interface Scan {
+        ScanResult run();
+    }
+
+    /**
+     * What a scan is of, and the plan settings its result depends on
+     */
+    private static final class Key {
+        private final ClassLoader classLoader;
+        private final List<String> urls;
+        private final String resultKey;
+
+        private Key(ClassLoader classLoader, List<String> urls, String resultKey) {
+            this.classLoader = classLoader;
+            this.urls = urls;
+            this.resultKey = resultKey;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return classLoader == other.classLoader
+                    && (urls == null ? other.urls == null : urls.equals(other.urls))
+                    && resultKey.equals(other.resultKey);
+        }
+
+        @Override
+        public int hashCode() {
+            int hash = System.identityHashCode(classLoader);
+            hash = 31 * hash + (urls == null ? 0 : urls.hashCode());
+            return 31 * hash + resultKey.hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return (urls == null ? "classloader " + classLoader : "urls " + urls) + " with " + resultKey;
+        }
+    }
+}
@@ -0,0 +1,285 @@
+package org.twdata.pkgscanner;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A compact binary copy of a scan result, tagged with the fingerprint of the classpath and configuration that
+ * produced it.  The file is memory-mapped when opened and entries are only decoded when they are accessed, so a
+ * snapshot can be queried by package name without reading it all.
+ * <p/>
+ * Layout, all integers big-endian:
+ * <pre>
+ * header:    int magic, int format version, long fingerprint, int location count, int entry count
+ * tables:    int[location count] location offsets, int[entry count] entry offsets (sorted by package name)
+ * locations: string path
+ * entries:   string package name, string version (length -1 if unknown), int location index
+ * </pre>
+ * where a string is an int byte length followed by the UTF-8 bytes.  Every offset and length is checked when the
+ * snapshot is opened, so a truncated or corrupt file fails there with an {@link IOException}.
+ */
+public class ScanSnapshot {
+    private static final int MAGIC = 0x504b5353;
+    private static final int FORMAT_VERSION = 1;
+    private static final int HEADER_SIZE = 24;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final ByteBuffer buffer;
+    private final long fingerprint;
+    private final int locationCount;
+    private final int entryCount;
+
+    private ScanSnapshot(ByteBuffer buffer) throws IOException {
+        this.buffer = buffer;
+        if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC || buffer.getInt(4) != FORMAT_VERSION) {
+            throw new IOException("Not a package scanner snapshot");
+        }
+        this.fingerprint = buffer.getLong(8);
+        this.locationCount = buffer.getInt(16);
+        this.entryCount = buffer.getInt(20);
+        if (locationCount < 0 || entryCount < 0
+                || HEADER_SIZE + 4L * locationCount + 4L * entryCount > buffer.capacity()) {
+            throw new IOException("Truncated package scanner snapshot");
+        }
+        validate();
+    }
+
+    /**
+     * Checks that every offset, length and location index lies within the file, so that entries decoded later, on
+     * access, can't fail
+     */
+    private void validate() throws IOException {
+        int dataStart = HEADER_SIZE + 4 * (locationCount + entryCount);
+        for (int x = 0; x < locationCount; x++) {
+            checkString(buffer.getInt(HEADER_SIZE + 4 * x), dataStart, false);
+        }
+        for (int x = 0; x < entryCount; x++) {
+            int end = checkString(entryOffset(x), dataStart, false);
+            end = checkString(end, dataStart, true);
+            if (end + 4L > buffer.capacity()) {
+                throw new IOException("Truncated package scanner snapshot");
+            }
+            int locationIndex = buffer.getInt(end);
+            if (locationIndex < 0 || locationIndex >= locationCount) {
+                throw new IOException("Corrupt package scanner snapshot: location " + locationIndex + " of entry " + x);
+            }
+        }
+    }
+
+    /**
+     * @return The offset following the string
+     */
+    private int checkString(int offset, int dataStart, boolean nullable) throws IOException {
+        if (offset < dataStart || offset + 4L > buffer.capacity()) {
+            throw new IOException("Corrupt package scanner snapshot: offset " + offset);
+        }
+        int length = buffer.getInt(offset);
+        if (length == -1 && nullable) {
+            return offset + 4;
+        }
+        if (length < 0 || offset + 4L + length > buffer.capacity()) {
+            throw new IOException("Corrupt package scanner snapshot: string of " + length + " bytes at " + offset);
+        }
+        return offset + 4 + length;
+    }
+
+    /**
+     * Opens a snapshot file by mapping it into memory
+     * @param file The snapshot file
+     * @return The snapshot
+     * @throws IOException If the file can't be read or isn't a snapshot
+     */
+    public static ScanSnapshot open(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            return new ScanSnapshot(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+        finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Writes a snapshot file.  The file is written next to its final location first, then renamed, so readers
+     * never see a partially written snapshot.
+     *
+     * @param file The snapshot file
+     * @param fingerprint The fingerprint of the classpath and configuration the exports came from
+     * @param exports The scan result
+     * @throws IOException If the file can't be written
+     */
+    public static void write(File file, long fingerprint, Collection<ExportPackage> exports) throws IOException {
+        List<ExportPackage> sorted = new ArrayList<ExportPackage>(exports);
+        Collections.sort(sorted);
+
+        Map<String, Integer> locationIndexes = new HashMap<String, Integer>();
+        ByteArrayOutputStream locationData = new ByteArrayOutputStream();
+        DataOutputStream locationOut = new DataOutputStream(locationData);
+        List<Integer> locationOffsets = new ArrayList<Integer>();
+        ByteArrayOutputStream entryData = new ByteArrayOutputStream();
+        DataOutputStream entryOut = new DataOutputStream(entryData);
+        int[] entryOffsets = new int[sorted.size()];
+
+        for (int x = 0; x < sorted.size(); x++) {
+            ExportPackage export = sorted.get(x);
+            String path = export.getLocation().getPath();
+            Integer locationIndex = locationIndexes.get(path);
+            if (locationIndex == null) {
+                locationIndex = locationOffsets.size();
+                locationIndexes.put(path, locationIndex);
+                locationOffsets.add(locationOut.size());
+                writeString(locationOut, path);
+            }
+            entryOffsets[x] = entryOut.size();
+            writeString(entryOut, export.getPackageName());
+            writeString(entryOut, export.getVersion());
+            entryOut.writeInt(locationIndex);
+        }
+
+        int locationStart = HEADER_SIZE + 4 * (locationOffsets.size() + entryOffsets.length);
+        int entryStart = locationStart + locationOut.size();
+
+        File tmp = File.createTempFile(file.getName(), ".tmp", file.getAbsoluteFile().getParentFile());
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(tmp));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeLong(fingerprint);
+            out.writeInt(locationOffsets.size());
+            out.writeInt(entryOffsets.length);
+            for (int offset : locationOffsets) {
+                out.writeInt(locationStart + offset);
+            }
+            for (int offset : entryOffsets) {
+                out.writeInt(entryStart + offset);
+            }
+            locationData.writeTo(out);
+            entryData.writeTo(out);
+        }
+        finally {
+            out.close();
+        }
+
+        if (!tmp.renameTo(file)) {
+            // some platforms won't rename over an existing file
+            file.delete();
+            if (!tmp.renameTo(file)) {
+                tmp.delete();
+                throw new IOException("Unable to replace snapshot file " + file);
+            }
+        }
+    }
+
+    /**
+     * @return The fingerprint of the classpath and configuration the snapshot was taken from
+     */
+    public long getFingerprint() {
+        return fingerprint;
+    }
+
+    /**
+     * @return The number of packages in the snapshot
+     */
+    public int size() {
+        return entryCount;
+    }
+
+    /**
+     * Decodes a single package
+     * @param index The index of the package, in package name order
+     * @return The package
+     */
+    public ExportPackage get(int index) {
+        if (index < 0 || index >= entryCount) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", size: " + entryCount);
+        }
+        ByteBuffer entry = buffer.duplicate();
+        entry.position(entryOffset(index));
+        String packageName = readString(entry);
+        String version = readString(entry);
+        int locationIndex = entry.getInt();
+
+        ByteBuffer location = buffer.duplicate();
+        location.position(buffer.getInt(HEADER_SIZE + 4 * locationIndex));
+        return new ExportPackage(packageName, version, new File(readString(location)));
+    }
+
+    /**
+     * Looks up a package with a binary search, decoding only the package names it visits
+     * @param packageName The package name
+     * @return The package, or null if the snapshot doesn't contain it
+     */
+    public ExportPackage find(String packageName) {
+        int low = 0;
+        int high = entryCount - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            ByteBuffer entry = buffer.duplicate();
+            entry.position(entryOffset(mid));
+            int cmp = readString(entry).compareTo(packageName);
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (cmp > 0) {
+                high = mid - 1;
+            } else {
+                return get(mid);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return A read-only view of the packages, ordered by package name, that decodes entries on access
+     */
+    public List<ExportPackage> asList() {
+        return new AbstractList<ExportPackage>() {
+            public ExportPackage get(int index) {
+                return ScanSnapshot.this.get(index);
+            }
+
+            public int size() {
+                return entryCount;
+            }
+        };
+    }
+
+    private int entryOffset(int index) {
+        return buffer.getInt(HEADER_SIZE + 4 * (locationCount + index));
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+        } else {
+            ByteBuffer bytes = UTF8.encode(value);
+            out.writeInt(bytes.remaining());
+            out.write(bytes.array(), bytes.arrayOffset() + bytes.position(), bytes.remaining());
+        }
+    }
+
+    private static String readString(ByteBuffer in) {
+        int length = in.getInt();
+        if (length < 0) {
+            return null;
+        }
+        ByteBuffer bytes = in.slice();
+        bytes.limit(length);
+        in.position(in.position() + length);
+        return UTF8.decode(bytes).toString();
+    }
+}
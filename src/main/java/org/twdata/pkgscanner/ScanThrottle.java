@@ -0,0 +1,96 @@
+package org.twdata.pkgscanner;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Slows a scan down so it leaves disk bandwidth to other work, and lets it be paused and resumed.  The scan counts
+ * the bytes it reads against the throttle as a budget would, see {@link ScanBudget#withMaxBytes(long)}, and once it
+ * is ahead of the rate it waits before reading more.  It checks the throttle between classpath elements too, where
+ * it also yields its thread.  A paused scan waits at its next read or classpath element until it is resumed or
+ * cancelled.
+ * <p/>
+ * One throttle can be shared by several scans, which then share its rate.  Instances are thread-safe.
+ */
+public class ScanThrottle {
+    private final long maxBytesPerSecond;
+    private long nextReadNanos = System.nanoTime();
+    private boolean paused;
+
+    /**
+     * Constructs a throttle that doesn't limit the rate, so it only pauses and yields
+     */
+    public ScanThrottle() {
+        this.maxBytesPerSecond = 0;
+    }
+
+    /**
+     * Constructs a throttle
+     * @param maxBytesPerSecond The number of bytes scans may read per second
+     */
+    public ScanThrottle(long maxBytesPerSecond) {
+        if (maxBytesPerSecond < 1) {
+            throw new IllegalArgumentException("maxBytesPerSecond must be positive");
+        }
+        this.maxBytesPerSecond = maxBytesPerSecond;
+    }
+
+    /**
+     * Makes scans wait at their next read or classpath element
+     */
+    public synchronized void pause() {
+        paused = true;
+    }
+
+    /**
+     * Lets paused scans carry on
+     */
+    public synchronized void resume() {
+        paused = false;
+        notifyAll();
+    }
+
+    /**
+     * @return True if scans are paused
+     */
+    public synchronized boolean isPaused() {
+        return paused;
+    }
+
+    /**
+     * @return The number of bytes scans may read per second, or 0 if the rate isn't limited
+     */
+    public long getMaxBytesPerSecond() {
+        return maxBytesPerSecond;
+    }
+
+    /**
+     * Counts bytes about to be read, if the throttle allows reading now
+     * @param bytes The number of bytes, 0 to just wait while the throttle is paused or the bytes read so far are
+     *              ahead of the rate
+     * @param maxWaitMillis How long to wait for the throttle to allow reading
+     * @return True if the bytes were counted and may be read, false if the caller should try again
+     * @throws InterruptedException If the thread is interrupted while waiting
+     */
+    synchronized boolean tryAcquire(long bytes, long maxWaitMillis) throws InterruptedException {
+        if (paused) {
+            // a paused throttle never allows reading, however short the wait
+            TimeUnit.MILLISECONDS.timedWait(this, maxWaitMillis);
+            if (paused) {
+                return false;
+            }
+        }
+        long waitNanos = nextReadNanos - System.nanoTime();
+        if (waitNanos > 0) {
+            TimeUnit.NANOSECONDS.timedWait(this, Math.min(waitNanos, TimeUnit.MILLISECONDS.toNanos(maxWaitMillis)));
+            if (paused || nextReadNanos - System.nanoTime() > 0) {
+                return false;
+            }
+        }
+        if (maxBytesPerSecond > 0 && bytes > 0) {
+            // the bytes are read straight away, and paid for by the wait of the next read
+            nextReadNanos = Math.max(nextReadNanos, System.nanoTime())
+                    + (long) (bytes * 1e9 / maxBytesPerSecond);
+        }
+        return true;
+    }
+}
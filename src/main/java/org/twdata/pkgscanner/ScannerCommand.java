@@ -0,0 +1,672 @@
+package org.twdata.pkgscanner;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.net.URL;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+
+/**
+ * Command-line entry point for build pipelines.  Scans explicit jars and directories and writes the packages
+ * found as an Export-Package header, JSON or properties.  Many targets can be scanned in one run with
+ * {@code --batch}, sharing the jar content cache.
+ * <p/>
+ * Run with {@code --help} for the options.
+ */
+public class ScannerCommand {
+    private static final String USAGE =
+            "Usage: pkgscanner [options] <jar|dir|glob>...\n" +
+            "  --include <pattern>       package pattern to include, repeatable (default com.*, net.*, org.*)\n" +
+            "  --exclude <pattern>       package pattern to exclude, repeatable\n" +
+            "  --jar-include <pattern>   jar name pattern to include, repeatable (default *)\n" +
+            "  --jar-exclude <pattern>   jar name pattern to exclude, repeatable\n" +
+            "  --map <pattern>=<version> maps packages to an explicit version, repeatable\n" +
+            "  --config <file>           reads more options from a file, one per line, # for comments\n" +
+            "  --imports                 also computes the packages imported by the scanned classes\n" +
+            "  --threads <n>             number of batch targets scanned at once (default 1), and of threads\n" +
+            "                            to parse classes with when computing imports\n" +
+            "  --cache-dir <dir>         keeps scan snapshots in the directory and reuses them while the\n" +
+            "                            scanned files are unchanged\n" +
+            "  --format <format>         export-package (default), json or properties\n" +
+            "  --output <file>           writes to the file instead of standard output\n" +
+            "  --name <name>             names the target, used for its snapshot in the cache directory\n" +
+            "  --batch <file>            scans one target per line of the file, each line holding the options\n" +
+            "                            of the target, with the options given before --batch as defaults\n" +
+            "  --base-dir <dir>          resolves relative paths against the directory\n" +
+            "  --debug                   logs versions that can't be determined\n" +
+            "  --help                    prints this message\n" +
+            "Globs like lib/*.jar or lib/**.jar are expanded by the scanner.";
+
+    private final PrintStream out;
+    private final PrintStream err;
+    private final JarContentCache jarContentCache;
+    private boolean writesFiles = true;
+
+    /**
+     * Constructs a command writing to the given streams
+     * @param out Where results go when no output file is given
+     * @param err Where errors go
+     */
+    public ScannerCommand(PrintStream out, PrintStream err) {
+        this(out, err, new JarContentCache());
+    }
+
+    /**
+     * Constructs a command writing to the given streams and reusing the jar contents of a cache
+     * @param out Where results go when no output file is given
+     * @param err Where errors go
+     * @param jarContentCache The cache of jar contents and versions, e.g. one kept warm by {@link ScannerDaemon}
+     */
+    public ScannerCommand(PrintStream out, PrintStream err, JarContentCache jarContentCache) {
+        this.out = out;
+        this.err = err;
+        this.jarContentCache = jarContentCache;
+    }
+
+    /**
+     * Rejects the options that write files, {@code --output} and {@code --cache-dir}, e.g. for commands run on
+     * behalf of other users
+     * @param writesFiles False to reject them
+     */
+    void setWritesFiles(boolean writesFiles) {
+        this.writesFiles = writesFiles;
+    }
+
+    public static void main(String[] args) {
+        int status = new ScannerCommand(System.out, System.err).run(args);
+        if (status != 0) {
+            System.exit(status);
+        }
+    }
+
+    /**
+     * Runs the command
+     * @param args The command-line arguments
+     * @return The exit status, 0 if every target was scanned
+     */
+    public int run(String... args) {
+        Target target;
+        try {
+            target = new Target();
+            target.writesFiles = writesFiles;
+            target.parse(Arrays.asList(args));
+        }
+        catch (IllegalArgumentException ex) {
+            err.println(ex.getMessage());
+            err.println(USAGE);
+            return 2;
+        }
+        catch (IOException ex) {
+            err.println(ex.getMessage());
+            return 1;
+        }
+
+        if (target.help) {
+            out.println(USAGE);
+            return 0;
+        }
+        if (target.batchFile == null) {
+            return execute(target, out, err) ? 0 : 1;
+        }
+
+        List<Target> targets = new ArrayList<Target>();
+        try {
+            int line = 0;
+            for (String command : readLines(target.resolve(target.batchFile))) {
+                line++;
+                Target batchTarget = target.copy();
+                batchTarget.batchFile = null;
+                if (batchTarget.name == null) {
+                    batchTarget.name = target.batchFile.getName() + "-" + line;
+                }
+                batchTarget.parse(tokenize(command));
+                targets.add(batchTarget);
+            }
+        }
+        catch (IllegalArgumentException ex) {
+            err.println(target.batchFile + ": " + ex.getMessage());
+            return 2;
+        }
+        catch (IOException ex) {
+            err.println(ex.getMessage());
+            return 1;
+        }
+
+        return executeAll(targets, Math.max(1, target.threads)) ? 0 : 1;
+    }
+
+    /**
+     * Scans the targets of a batch, as many at a time as there are threads.  The output of each target is held until
+     * the targets before it are done, so it comes out in the order of the batch file.
+     */
+    private boolean executeAll(List<Target> targets, int threads) {
+        if (threads == 1) {
+            boolean success = true;
+            for (Target batchTarget : targets) {
+                success &= execute(batchTarget, out, err);
+            }
+            return success;
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(threads, targets.size()));
+        try {
+            List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+            List<ByteArrayOutputStream> outputs = new ArrayList<ByteArrayOutputStream>();
+            List<ByteArrayOutputStream> errors = new ArrayList<ByteArrayOutputStream>();
+            for (final Target batchTarget : targets) {
+                final ByteArrayOutputStream output = new ByteArrayOutputStream();
+                final ByteArrayOutputStream error = new ByteArrayOutputStream();
+                outputs.add(output);
+                errors.add(error);
+                results.add(executor.submit(new Callable<Boolean>() {
+                    public Boolean call() throws UnsupportedEncodingException {
+                        return execute(batchTarget, new PrintStream(output, true, "UTF-8"),
+                                new PrintStream(error, true, "UTF-8"));
+                    }
+                }));
+            }
+
+            boolean success = true;
+            for (int x = 0; x < results.size(); x++) {
+                try {
+                    success &= results.get(x).get();
+                }
+                catch (ExecutionException ex) {
+                    err.println("Unable to scan" + targets.get(x).describe() + ": " + ex.getCause());
+                    success = false;
+                }
+                catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    err.println("Interrupted while scanning" + targets.get(x).describe());
+                    return false;
+                }
+                outputs.get(x).writeTo(out);
+                errors.get(x).writeTo(err);
+            }
+            out.flush();
+            return success;
+        }
+        catch (IOException ex) {
+            // not thrown by the print streams
+            throw new IllegalStateException(ex);
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private boolean execute(Target target, PrintStream out, PrintStream err) {
+        try {
+            if (target.paths.isEmpty()) {
+                throw new IllegalArgumentException("No jar or directory to scan" + target.describe());
+            }
+            List<URL> urls = new ArrayList<URL>();
+            for (String path : target.paths) {
+                for (File file : expand(target.resolve(path))) {
+                    urls.add(file.toURI().toURL());
+                }
+            }
+
+            PackageScanner scanner = new PackageScanner()
+                    .select(PackageScanner.jars(toArray(target.jarIncludes), toArray(target.jarExcludes)),
+                            PackageScanner.packages(toArray(target.includes), toArray(target.excludes)))
+                    .withMappings(target.mappings)
+                    .useJarContentCache(jarContentCache);
+            if (target.debug) {
+                scanner.enableDebug();
+            }
+            ImportCollector imports = null;
+            if (target.imports) {
+                imports = target.threads > 0 ? new ImportCollector(target.threads) : new ImportCollector();
+                scanner.collectImports(imports);
+            }
+            if (target.cacheDir != null) {
+                File cacheDir = target.resolve(target.cacheDir);
+                cacheDir.mkdirs();
+                scanner.withSnapshot(new File(cacheDir, snapshotName(target)));
+            }
+
+            Collection<ExportPackage> exports = scanner.scan(urls.toArray(new URL[urls.size()]));
+            write(target, exports, imports, out);
+            return true;
+        }
+        catch (IllegalArgumentException ex) {
+            err.println(ex.getMessage());
+        }
+        catch (IOException ex) {
+            err.println("Unable to scan" + target.describe() + ": " + ex);
+        }
+        return false;
+    }
+
+    private static void write(Target target, Collection<ExportPackage> exports, ImportCollector imports,
+                              PrintStream out) throws IOException {
+        Writer writer;
+        if (target.output != null) {
+            File output = target.resolve(target.output);
+            File parent = output.getAbsoluteFile().getParentFile();
+            if (parent != null) {
+                parent.mkdirs();
+            }
+            writer = new OutputStreamWriter(new FileOutputStream(output), "UTF-8");
+        } else {
+            // the same bytes on every host, whatever its default charset
+            writer = new OutputStreamWriter(out, "UTF-8");
+        }
+        PrintWriter printer = new PrintWriter(writer);
+        if ("json".equals(target.format)) {
+            writeJson(printer, exports, imports);
+        } else if ("properties".equals(target.format)) {
+            writeProperties(printer, exports, imports);
+        } else {
+            writeExportPackage(printer, exports, imports);
+        }
+        printer.flush();
+        if (target.output != null) {
+            printer.close();
+        }
+    }
+
+    static void writeExportPackage(PrintWriter out, Collection<ExportPackage> exports, ImportCollector imports) {
+        out.print("Export-Package: \n");
+        for (Iterator<ExportPackage> i = exports.iterator(); i.hasNext(); ) {
+            ExportPackage pkg = i.next();
+            out.print("\t");
+            out.print(pkg.getPackageName());
+            if (pkg.getVersion() != null) {
+                out.print(";version=" + pkg.getVersion());
+            }
+            if (i.hasNext()) {
+                out.print(", \n");
+            }
+        }
+        out.print("\n");
+        if (imports != null) {
+            Iterator<String> i = allImports(imports).iterator();
+            out.print("Import-Package: \n");
+            while (i.hasNext()) {
+                out.print("\t" + i.next());
+                if (i.hasNext()) {
+                    out.print(", \n");
+                }
+            }
+            out.print("\n");
+        }
+    }
+
+    static void writeProperties(PrintWriter out, Collection<ExportPackage> exports, ImportCollector imports) {
+        for (ExportPackage pkg : exports) {
+            out.print(pkg.getPackageName() + "=" + (pkg.getVersion() == null ? "" : pkg.getVersion()) + "\n");
+        }
+        if (imports != null) {
+            StringBuilder sb = new StringBuilder();
+            for (String pkg : allImports(imports)) {
+                sb.append(sb.length() == 0 ? "" : ",").append(pkg);
+            }
+            out.print("Import-Package=" + sb + "\n");
+        }
+    }
+
+    static void writeJson(PrintWriter out, Collection<ExportPackage> exports, ImportCollector imports) {
+        out.print("{\n  \"exports\": [");
+        String separator = "\n";
+        for (ExportPackage pkg : exports) {
+            out.print(separator);
+            out.print("    {\"package\": " + quote(pkg.getPackageName())
+                    + ", \"version\": " + quote(pkg.getVersion())
+                    + ", \"location\": " + quote(pkg.getLocation().getPath()) + "}");
+            separator = ",\n";
+        }
+        out.print(exports.isEmpty() ? "]" : "\n  ]");
+        if (imports != null) {
+            out.print(",\n  \"imports\": {");
+            separator = "\n";
+            for (Map.Entry<File, SortedSet<String>> entry : imports.getImports().entrySet()) {
+                out.print(separator + "    " + quote(entry.getKey().getPath()) + ": [");
+                String pkgSeparator = "";
+                for (String pkg : entry.getValue()) {
+                    out.print(pkgSeparator + quote(pkg));
+                    pkgSeparator = ", ";
+                }
+                out.print("]");
+                separator = ",\n";
+            }
+            out.print(imports.getImports().isEmpty() ? "}" : "\n  }");
+        }
+        out.print("\n}\n");
+    }
+
+    private static SortedSet<String> allImports(ImportCollector imports) {
+        SortedSet<String> all = new java.util.TreeSet<String>();
+        for (SortedSet<String> packages : imports.getImports().values()) {
+            all.addAll(packages);
+        }
+        return all;
+    }
+
+    private static String quote(String value) {
+        if (value == null) {
+            return "null";
+        }
+        StringBuilder sb = new StringBuilder("\"");
+        for (int x = 0; x < value.length(); x++) {
+            char c = value.charAt(x);
+            switch (c) {
+                case '"':
+                    sb.append("\\\"");
+                    break;
+                case '\\':
+                    sb.append("\\\\");
+                    break;
+                case '\n':
+                    sb.append("\\n");
+                    break;
+                case '\r':
+                    sb.append("\\r");
+                    break;
+                case '\t':
+                    sb.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        sb.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        sb.append(c);
+                    }
+            }
+        }
+        return sb.append('"').toString();
+    }
+
+    /**
+     * Expands a path that may contain {@code *}, {@code ?} or {@code **} into the matching files
+     */
+    static List<File> expand(String path) throws IOException {
+        if (path.indexOf('*') < 0 && path.indexOf('?') < 0) {
+            File file = new File(path);
+            if (!file.exists()) {
+                throw new IllegalArgumentException("No such file: " + path);
+            }
+            return Arrays.asList(file);
+        }
+
+        // walk from the deepest directory that has no wildcard
+        String normalized = path.replace(File.separatorChar, '/');
+        int wildcard = Math.min(indexOf(normalized, '*'), indexOf(normalized, '?'));
+        int slash = normalized.lastIndexOf('/', wildcard);
+        Path base = Paths.get(slash < 0 ? "." : (slash == 0 ? "/" : normalized.substring(0, slash)));
+        final PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + normalized.substring(slash + 1));
+
+        List<File> files = new ArrayList<File>();
+        if (Files.isDirectory(base)) {
+            Stream<Path> stream = Files.walk(base);
+            try {
+                for (Iterator<Path> i = stream.sorted().iterator(); i.hasNext(); ) {
+                    Path candidate = i.next();
+                    if (!candidate.equals(base) && matcher.matches(base.relativize(candidate))) {
+                        files.add(candidate.toFile());
+                    }
+                }
+            }
+            finally {
+                stream.close();
+            }
+        }
+        if (files.isEmpty()) {
+            throw new IllegalArgumentException("No file matches " + path);
+        }
+        return files;
+    }
+
+    private static int indexOf(String value, char c) {
+        int pos = value.indexOf(c);
+        return pos < 0 ? Integer.MAX_VALUE : pos;
+    }
+
+    private static String snapshotName(Target target) {
+        if (target.name != null) {
+            return target.name.replaceAll("[^A-Za-z0-9._-]", "_") + ".snapshot";
+        }
+        Fingerprint fingerprint = new Fingerprint();
+        for (String path : target.paths) {
+            fingerprint.add(new File(target.resolve(path)).getAbsolutePath());
+        }
+        return "target-" + Long.toHexString(fingerprint.get()) + ".snapshot";
+    }
+
+    private static List<String> readLines(File file) throws IOException {
+        List<String> lines = new ArrayList<String>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.length() > 0 && !line.startsWith("#")) {
+                    lines.add(line);
+                }
+            }
+        }
+        finally {
+            reader.close();
+        }
+        return lines;
+    }
+
+    /**
+     * Splits a line into arguments on whitespace, keeping double-quoted strings together
+     */
+    static List<String> tokenize(String line) {
+        List<String> tokens = new ArrayList<String>();
+        StringBuilder token = null;
+        boolean quoted = false;
+        for (int x = 0; x < line.length(); x++) {
+            char c = line.charAt(x);
+            if (c == '"') {
+                quoted = !quoted;
+                if (token == null) {
+                    token = new StringBuilder();
+                }
+            } else if (Character.isWhitespace(c) && !quoted) {
+                if (token != null) {
+                    tokens.add(token.toString());
+                    token = null;
+                }
+            } else {
+                if (token == null) {
+                    token = new StringBuilder();
+                }
+                token.append(c);
+            }
+        }
+        if (quoted) {
+            throw new IllegalArgumentException("Unbalanced quotes in: " + line);
+        }
+        if (token != null) {
+            tokens.add(token.toString());
+        }
+        return tokens;
+    }
+
+    private static String[] toArray(List<String> values) {
+        return values.toArray(new String[values.size()]);
+    }
+
+    /**
+     * The options of a single scan
+     */
+    private static class Target {
+        private List<String> paths = new ArrayList<String>();
+        private List<String> includes = new ArrayList<String>();
+        private List<String> excludes = new ArrayList<String>();
+        private List<String> jarIncludes = new ArrayList<String>();
+        private List<String> jarExcludes = new ArrayList<String>();
+        private Map<String, String> mappings = new LinkedHashMap<String, String>();
+        private boolean defaultIncludes = true;
+        private boolean defaultJarIncludes = true;
+        private boolean imports;
+        private int threads;
+        private File cacheDir;
+        private String format = "export-package";
+        private File output;
+        private String name;
+        private File batchFile;
+        private File baseDir;
+        private boolean debug;
+        private boolean help;
+        private boolean writesFiles = true;
+
+        private Target() {
+            includes.addAll(Arrays.asList("com.*", "net.*", "org.*"));
+            jarIncludes.add("*");
+        }
+
+        private Target copy() {
+            Target copy = new Target();
+            copy.paths = new ArrayList<String>(paths);
+            copy.includes = new ArrayList<String>(includes);
+            copy.excludes = new ArrayList<String>(excludes);
+            copy.jarIncludes = new ArrayList<String>(jarIncludes);
+            copy.jarExcludes = new ArrayList<String>(jarExcludes);
+            copy.mappings = new LinkedHashMap<String, String>(mappings);
+            copy.defaultIncludes = defaultIncludes;
+            copy.defaultJarIncludes = defaultJarIncludes;
+            copy.imports = imports;
+            copy.threads = threads;
+            copy.cacheDir = cacheDir;
+            copy.format = format;
+            copy.output = output;
+            copy.name = name;
+            copy.batchFile = batchFile;
+            copy.baseDir = baseDir;
+            copy.debug = debug;
+            copy.writesFiles = writesFiles;
+            return copy;
+        }
+
+        private File resolve(File file) {
+            return baseDir == null || file.isAbsolute() ? file : new File(baseDir, file.getPath());
+        }
+
+        private String resolve(String path) {
+            return baseDir == null || new File(path).isAbsolute() ? path : new File(baseDir, path).getPath();
+        }
+
+        private String describe() {
+            return name == null ? "" : " for target " + name;
+        }
+
+        private void parse(List<String> args) throws IOException {
+            for (Iterator<String> i = args.iterator(); i.hasNext(); ) {
+                String arg = i.next();
+                if ("--include".equals(arg)) {
+                    if (defaultIncludes) {
+                        includes.clear();
+                        defaultIncludes = false;
+                    }
+                    includes.add(value(arg, i));
+                } else if ("--exclude".equals(arg)) {
+                    excludes.add(value(arg, i));
+                } else if ("--jar-include".equals(arg)) {
+                    if (defaultJarIncludes) {
+                        jarIncludes.clear();
+                        defaultJarIncludes = false;
+                    }
+                    jarIncludes.add(value(arg, i));
+                } else if ("--jar-exclude".equals(arg)) {
+                    jarExcludes.add(value(arg, i));
+                } else if ("--map".equals(arg)) {
+                    String mapping = value(arg, i);
+                    int equals = mapping.indexOf('=');
+                    if (equals < 1 || equals == mapping.length() - 1) {
+                        throw new IllegalArgumentException("Expected <pattern>=<version> but got " + mapping);
+                    }
+                    mappings.put(mapping.substring(0, equals), mapping.substring(equals + 1));
+                } else if ("--config".equals(arg)) {
+                    List<String> fileArgs = new ArrayList<String>();
+                    for (String line : readLines(resolve(new File(value(arg, i))))) {
+                        fileArgs.addAll(tokenize(line));
+                    }
+                    parse(fileArgs);
+                } else if ("--imports".equals(arg)) {
+                    imports = true;
+                } else if ("--threads".equals(arg)) {
+                    String value = value(arg, i);
+                    try {
+                        threads = Integer.parseInt(value);
+                    }
+                    catch (NumberFormatException ex) {
+                        threads = 0;
+                    }
+                    if (threads < 1) {
+                        throw new IllegalArgumentException("--threads expects a positive number but got " + value);
+                    }
+                } else if ("--cache-dir".equals(arg)) {
+                    checkWritesFiles(arg);
+                    cacheDir = new File(value(arg, i));
+                } else if ("--format".equals(arg)) {
+                    format = value(arg, i);
+                    if (!Arrays.asList("export-package", "json", "properties").contains(format)) {
+                        throw new IllegalArgumentException("Unknown format " + format);
+                    }
+                } else if ("--output".equals(arg)) {
+                    checkWritesFiles(arg);
+                    output = new File(value(arg, i));
+                } else if ("--name".equals(arg)) {
+                    name = value(arg, i);
+                } else if ("--batch".equals(arg)) {
+                    batchFile = new File(value(arg, i));
+                } else if ("--base-dir".equals(arg)) {
+                    baseDir = new File(value(arg, i));
+                } else if ("--debug".equals(arg)) {
+                    debug = true;
+                } else if ("--help".equals(arg) || "-h".equals(arg)) {
+                    help = true;
+                } else if (arg.startsWith("--")) {
+                    throw new IllegalArgumentException("Unknown option " + arg);
+                } else {
+                    paths.add(arg);
+                }
+            }
+        }
+
+        private void checkWritesFiles(String option) {
+            if (!writesFiles) {
+                throw new IllegalArgumentException(option + " is not allowed here");
+            }
+        }
+
+        private static String value(String option, Iterator<String> i) {
+            if (!i.hasNext()) {
+                throw new IllegalArgumentException(option + " expects a value");
+            }
+            return i.next();
+        }
+    }
+}
@@ -0,0 +1,450 @@
+package org.twdata.pkgscanner;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Keeps a scanner resident in one JVM, so the jar contents and versions it has read stay cached between scans.
+ * Clients connect to a loopback socket and send the arguments of a {@link ScannerCommand}; the daemon runs the
+ * command and sends back its exit status and output.  Cached jars are revalidated by size and modification time
+ * on every scan.  The daemon stops after being idle for the configured time, or when sent {@code --stop}.
+ * <p/>
+ * The protocol is one request per connection.  The request is the token of the daemon, then the UTF-8 arguments,
+ * one per line, ended by an empty line.  The response is an int exit status, followed by the standard output then
+ * the standard error of the command, each as an int byte length and the UTF-8 bytes.
+ * <p/>
+ * The token is random, and only readable from the port file, which is created readable by its owner only, so other
+ * local users can't use the daemon even though it listens on a port.  Requests can't use the options that write
+ * files, {@code --output} and {@code --cache-dir}, as the files would be written as the user running the daemon;
+ * the client writes {@code --output} itself instead.
+ * <p/>
+ * From the command line:
+ * <pre>
+ * ScannerDaemon serve [--port n] --port-file file [--idle-timeout seconds] [--cache-size bytes]
+ * ScannerDaemon send --port-file file &lt;scanner command arguments&gt;...
+ * </pre>
+ */
+public class ScannerDaemon {
+    private static final Logger log = LoggerFactory.getLogger(ScannerDaemon.class);
+
+    /** The argument that asks the daemon to stop */
+    public static final String STOP = "--stop";
+
+    private final JarContentCache jarContentCache;
+    private final String token;
+    private final long idleTimeoutMillis;
+    private final ServerSocket serverSocket;
+    private final ExecutorService workers;
+    private final AtomicInteger activeRequests = new AtomicInteger();
+    private volatile long lastActivity = System.currentTimeMillis();
+    private volatile boolean stopped;
+
+    /**
+     * Binds the daemon to a loopback port
+     * @param port The port, or 0 for any free port
+     * @param idleTimeoutMillis How long the daemon waits for a request before stopping, 0 for ever
+     * @param jarContentCache The cache kept warm between scans
+     * @throws IOException If the port can't be bound
+     */
+    public ScannerDaemon(int port, long idleTimeoutMillis, JarContentCache jarContentCache) throws IOException {
+        this.jarContentCache = jarContentCache;
+        byte[] random = new byte[16];
+        new SecureRandom().nextBytes(random);
+        StringBuilder sb = new StringBuilder();
+        for (byte b : random) {
+            sb.append(String.format("%02x", b));
+        }
+        this.token = sb.toString();
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        this.serverSocket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+        this.workers = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "pkgscanner-daemon-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * @return The port the daemon listens on
+     */
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * @return The token clients must send with their requests
+     */
+    public String getToken() {
+        return token;
+    }
+
+    /**
+     * Writes the port and token to a file only its owner can read, for {@link #send(File, String...)}
+     * @param file The file, replaced if it exists
+     * @throws IOException If the file can't be written
+     */
+    public void writePortFile(File file) throws IOException {
+        Path path = file.toPath();
+        Files.deleteIfExists(path);
+        try {
+            Files.createFile(path, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+        }
+        catch (UnsupportedOperationException ex) {
+            // not a POSIX file system
+            Files.createFile(path);
+            if (!file.setReadable(false, false) || !file.setReadable(true, true)) {
+                Files.delete(path);
+                throw new IOException("Unable to make " + file + " readable by its owner only");
+            }
+        }
+        Files.write(path, (getPort() + "\n" + token + "\n").getBytes("UTF-8"));
+    }
+
+    /**
+     * Accepts requests until the daemon is stopped or has been idle for the idle timeout
+     */
+    public void serve() {
+        log.info("Package scanner daemon listening on port " + getPort());
+        try {
+            if (idleTimeoutMillis > 0) {
+                serverSocket.setSoTimeout((int) Math.min(idleTimeoutMillis, 1000));
+            }
+            while (!stopped) {
+                final Socket socket;
+                try {
+                    socket = serverSocket.accept();
+                }
+                catch (SocketTimeoutException ex) {
+                    if (activeRequests.get() == 0
+                            && System.currentTimeMillis() - lastActivity >= idleTimeoutMillis) {
+                        log.info("Package scanner daemon idle for " + idleTimeoutMillis + "ms, stopping");
+                        break;
+                    }
+                    continue;
+                }
+                activeRequests.incrementAndGet();
+                lastActivity = System.currentTimeMillis();
+                workers.execute(new Runnable() {
+                    public void run() {
+                        try {
+                            handle(socket);
+                        }
+                        finally {
+                            lastActivity = System.currentTimeMillis();
+                            activeRequests.decrementAndGet();
+                        }
+                    }
+                });
+            }
+        }
+        catch (SocketException ex) {
+            if (!stopped) {
+                log.error("Package scanner daemon socket failed", ex);
+            }
+        }
+        catch (IOException ex) {
+            log.error("Package scanner daemon socket failed", ex);
+        }
+        finally {
+            stop();
+        }
+    }
+
+    /**
+     * Stops accepting requests.  Requests being handled are finished.
+     */
+    public void stop() {
+        stopped = true;
+        workers.shutdown();
+        try {
+            serverSocket.close();
+        }
+        catch (IOException ex) {
+            // ignore
+        }
+    }
+
+    /**
+     * Waits for the requests being handled after {@link #stop()}
+     * @param timeoutMillis How long to wait
+     * @return True if all requests finished
+     */
+    public boolean awaitTermination(long timeoutMillis) throws InterruptedException {
+        return workers.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void handle(Socket socket) {
+        try {
+            List<String> args = new ArrayList<String>();
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+            String requestToken = in.readLine();
+            String line;
+            while ((line = in.readLine()) != null && line.length() > 0) {
+                args.add(line);
+            }
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            ByteArrayOutputStream err = new ByteArrayOutputStream();
+            int status;
+            if (requestToken == null
+                    || !MessageDigest.isEqual(token.getBytes("UTF-8"), requestToken.getBytes("UTF-8"))) {
+                log.warn("Rejected a package scanner request with an invalid token");
+                err.write("Invalid token\n".getBytes("UTF-8"));
+                status = 2;
+            } else if (args.size() == 1 && STOP.equals(args.get(0))) {
+                stop();
+                status = 0;
+            } else {
+                PrintStream outStream = new PrintStream(out, true, "UTF-8");
+                PrintStream errStream = new PrintStream(err, true, "UTF-8");
+                ScannerCommand command = new ScannerCommand(outStream, errStream, jarContentCache);
+                command.setWritesFiles(false);
+                status = command.run(args.toArray(new String[args.size()]));
+                outStream.flush();
+                errStream.flush();
+            }
+
+            DataOutputStream response = new DataOutputStream(socket.getOutputStream());
+            response.writeInt(status);
+            response.writeInt(out.size());
+            out.writeTo(response);
+            response.writeInt(err.size());
+            err.writeTo(response);
+            response.flush();
+        }
+        catch (IOException ex) {
+            log.warn("Unable to handle package scanner request", ex);
+        }
+        catch (RuntimeException ex) {
+            log.error("Package scanner request failed", ex);
+        }
+        finally {
+            try {
+                socket.close();
+            }
+            catch (IOException ex) {
+                // ignore
+            }
+        }
+    }
+
+    /**
+     * Sends a request to a running daemon
+     * @param portFile The port file written by the daemon, see {@link #writePortFile(File)}
+     * @param args The arguments of the scanner command
+     * @return The response
+     * @throws IOException If the port file can't be read or the daemon can't be reached
+     */
+    public static Response send(File portFile, String... args) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(portFile), "UTF-8"));
+        int port;
+        String token;
+        try {
+            port = Integer.parseInt(reader.readLine().trim());
+            token = reader.readLine();
+        }
+        catch (RuntimeException ex) {
+            throw new IOException("Malformed port file " + portFile);
+        }
+        finally {
+            reader.close();
+        }
+        if (token == null) {
+            throw new IOException("No token in port file " + portFile);
+        }
+        return send(port, token.trim(), args);
+    }
+
+    /**
+     * Sends a request to a running daemon
+     * @param port The port of the daemon
+     * @param token The token of the daemon, see {@link #getToken()}
+     * @param args The arguments of the scanner command
+     * @return The response
+     * @throws IOException If the daemon can't be reached
+     */
+    public static Response send(int port, String token, String... args) throws IOException {
+        Socket socket = new Socket(InetAddress.getLoopbackAddress(), port);
+        try {
+            Writer writer = new OutputStreamWriter(socket.getOutputStream(), "UTF-8");
+            writer.write(token);
+            writer.write('\n');
+            for (String arg : args) {
+                if (arg.length() == 0 || arg.indexOf('\n') >= 0 || arg.indexOf('\r') >= 0) {
+                    throw new IllegalArgumentException("Arguments must be non-empty single lines: '" + arg + "'");
+                }
+                writer.write(arg);
+                writer.write('\n');
+            }
+            writer.write('\n');
+            writer.flush();
+
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            int status = in.readInt();
+            byte[] out = new byte[in.readInt()];
+            in.readFully(out);
+            byte[] err = new byte[in.readInt()];
+            in.readFully(err);
+            return new Response(status, new String(out, "UTF-8"), new String(err, "UTF-8"));
+        }
+        finally {
+            socket.close();
+        }
+    }
+
+    /**
+     * The result of a request
+     */
+    public static class Response {
+        private final int status;
+        private final String out;
+        private final String err;
+
+        Response(int status, String out, String err) {
+            this.status = status;
+            this.out = out;
+            this.err = err;
+        }
+
+        /**
+         * @return The exit status of the scanner command
+         */
+        public int getStatus() {
+            return status;
+        }
+
+        /**
+         * @return What the command wrote to its standard output
+         */
+        public String getOut() {
+            return out;
+        }
+
+        /**
+         * @return What the command wrote to its standard error
+         */
+        public String getErr() {
+            return err;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length == 0 || !("serve".equals(args[0]) || "send".equals(args[0]))) {
+            usage();
+        }
+
+        int port = 0;
+        File portFile = null;
+        long idleTimeout = 30 * 60;
+        long cacheSize = JarContentCache.DEFAULT_MAX_BYTES;
+        int x = 1;
+        for (; x < args.length - 1; x += 2) {
+            if ("--port".equals(args[x])) {
+                port = Integer.parseInt(args[x + 1]);
+            } else if ("--port-file".equals(args[x])) {
+                portFile = new File(args[x + 1]);
+            } else if ("--idle-timeout".equals(args[x])) {
+                idleTimeout = Long.parseLong(args[x + 1]);
+            } else if ("--cache-size".equals(args[x])) {
+                cacheSize = Long.parseLong(args[x + 1]);
+            } else {
+                break;
+            }
+        }
+        if (portFile == null) {
+            // the token is only handed out through the port file
+            usage();
+        }
+
+        if ("serve".equals(args[0])) {
+            ScannerDaemon daemon = new ScannerDaemon(port, idleTimeout * 1000, new JarContentCache(cacheSize));
+            daemon.writePortFile(portFile);
+            portFile.deleteOnExit();
+            daemon.serve();
+            return;
+        }
+
+        List<String> commandArgs = new ArrayList<String>();
+        // paths are relative to the client, not the daemon
+        commandArgs.add("--base-dir");
+        commandArgs.add(new File("").getAbsolutePath());
+        File output = null;
+        for (Iterator<String> i = Arrays.asList(args).subList(x, args.length).iterator(); i.hasNext(); ) {
+            String arg = i.next();
+            if ("--output".equals(arg) && i.hasNext()) {
+                // the daemon doesn't write files, so the client writes the output
+                output = new File(i.next());
+            } else {
+                commandArgs.add(arg);
+            }
+        }
+        Response response = send(portFile, commandArgs.toArray(new String[commandArgs.size()]));
+        if (output != null && response.getStatus() == 0) {
+            File parent = output.getAbsoluteFile().getParentFile();
+            if (parent != null) {
+                parent.mkdirs();
+            }
+            OutputStream stream = new FileOutputStream(output);
+            try {
+                write(stream, response.getOut());
+            }
+            finally {
+                stream.close();
+            }
+        } else {
+            write(System.out, response.getOut());
+        }
+        write(System.err, response.getErr());
+        System.exit(response.getStatus());
+    }
+
+    private static void usage() {
+        System.err.println("Usage: ScannerDaemon serve [--port n] --port-file file [--idle-timeout seconds]"
+                + " [--cache-size bytes]\n"
+                + "       ScannerDaemon send --port-file file <scanner command arguments>...");
+        System.exit(2);
+    }
+
+    private static void write(OutputStream stream, String text) throws IOException {
+        Writer writer = new OutputStreamWriter(stream, "UTF-8");
+        writer.write(text);
+        writer.flush();
+    }
+}
@@ -0,0 +1,29 @@
+package org.twdata.pkgscanner;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.jar.JarFile;
+
+/**
+ * Works out the version of a jar.  Resolvers are tried in turn until one finds a version, so the cheapest should
+ * come first.  The jar is only opened once a resolver that {@link #requiresJar() requires it} is reached, so a chain
+ * starting with resolvers that work from the path alone resolves most jars without any I/O.
+ *
+ * @see VersionResolvers
+ */
+public interface VersionResolver {
+    /**
+     * @return True if the resolver reads the jar, false if it only looks at its path
+     */
+    boolean requiresJar();
+
+    /**
+     * Works out the version of a jar
+     * @param jar The jar
+     * @param jarFile The opened jar, or null if the resolver doesn't require it
+     * @param converter Converts versions that may not be OSGi versions, like those taken from file names
+     * @return The version, or null to let the next resolver try
+     * @throws IOException If the jar can't be read
+     */
+    String resolveVersion(File jar, JarFile jarFile, OsgiVersionConverter converter) throws IOException;
+}
@@ -0,0 +1,230 @@
+package org.twdata.pkgscanner;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Properties;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+
+/**
+ * The built-in {@link VersionResolver}s
+ */
+public final class VersionResolvers {
+    private static final String SNAPSHOT = "-SNAPSHOT";
+
+    private static final VersionResolver MAVEN_REPOSITORY = new VersionResolver() {
+        public boolean requiresJar() {
+            return false;
+        }
+
+        public String resolveVersion(File jar, JarFile jarFile, OsgiVersionConverter converter) {
+            String version = versionFromRepositoryPath(jar);
+            return version == null ? null : converter.getVersion(version);
+        }
+
+        @Override
+        public String toString() {
+            return "mavenRepository";
+        }
+    };
+
+    private static final VersionResolver MANIFEST = new VersionResolver() {
+        public boolean requiresJar() {
+            return true;
+        }
+
+        public String resolveVersion(File jar, JarFile jarFile, OsgiVersionConverter converter) throws IOException {
+            return versionFromManifest(jarFile.getManifest());
+        }
+
+        @Override
+        public String toString() {
+            return "manifest";
+        }
+    };
+
+    private static final VersionResolver POM_PROPERTIES = new VersionResolver() {
+        public boolean requiresJar() {
+            return true;
+        }
+
+        public String resolveVersion(File jar, JarFile jarFile, OsgiVersionConverter converter) throws IOException {
+            for (Enumeration<JarEntry> e = jarFile.entries(); e.hasMoreElements(); ) {
+                JarEntry entry = e.nextElement();
+                if (entry.getName().endsWith("/pom.properties")) {
+                    return versionFromPomProperties(jarFile.getInputStream(entry));
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public String toString() {
+            return "pomProperties";
+        }
+    };
+
+    private static final VersionResolver FILE_NAME = new VersionResolver() {
+        public boolean requiresJar() {
+            return false;
+        }
+
+        public String resolveVersion(File jar, JarFile jarFile, OsgiVersionConverter converter) {
+            return versionFromFileName(jar.getName(), converter);
+        }
+
+        @Override
+        public String toString() {
+            return "fileName";
+        }
+    };
+
+    private static final List<VersionResolver> DEFAULTS = Collections.unmodifiableList(Arrays.asList(
+            MANIFEST, MAVEN_REPOSITORY, POM_PROPERTIES, FILE_NAME));
+
+    private VersionResolvers() {
+    }
+
+    /**
+     * The default chain: the manifest, then the Maven repository path, then {@code pom.properties}, then the file
+     * name.  The manifest comes first, so a jar keeps the version it declares wherever it is.  A jar in a Maven
+     * repository whose manifest has no version gets the version of its path, where it used to get the version of
+     * its {@code pom.properties} or file name: the same version, except that a timestamped snapshot gets its
+     * {@code -SNAPSHOT} version and an artifact whose name holds a number, e.g. {@code commons-lang3}, no longer
+     * has its name taken for its version.  The file name comes last as it is the least reliable.
+     * @return The default resolvers in order
+     */
+    public static List<VersionResolver> defaults() {
+        return DEFAULTS;
+    }
+
+    /**
+     * Takes the version from the path of a jar laid out as in a Maven repository, i.e.
+     * {@code <group>/<artifact>/<version>/<artifact>-<version>[-<classifier>].jar}.  The jar isn't opened.
+     */
+    public static VersionResolver mavenRepository() {
+        return MAVEN_REPOSITORY;
+    }
+
+    /**
+     * Takes the version from the Bundle-Version, Specification-Version or Implementation-Version manifest
+     * attribute, in that order
+     */
+    public static VersionResolver manifest() {
+        return MANIFEST;
+    }
+
+    /**
+     * Takes the version from the first {@code pom.properties} file in the jar
+     */
+    public static VersionResolver pomProperties() {
+        return POM_PROPERTIES;
+    }
+
+    /**
+     * Guesses the version from the jar name, assuming it starts as the first number after a '-' or '_' sign.  The
+     * jar isn't opened.
+     */
+    public static VersionResolver fileName() {
+        return FILE_NAME;
+    }
+
+    /**
+     * @param mf The manifest of a jar, or null
+     * @return The Bundle-Version, Specification-Version or Implementation-Version attribute, or null if there is none
+     */
+    static String versionFromManifest(Manifest mf) {
+        if (mf == null || mf.getMainAttributes() == null) {
+            return null;
+        }
+        Attributes attributes = mf.getMainAttributes();
+        String version = attributes.getValue("Bundle-Version");
+        if (version == null) {
+            version = attributes.getValue("Specification-Version");
+        }
+        if (version == null) {
+            version = attributes.getValue("Implementation-Version");
+        }
+        return version;
+    }
+
+    /**
+     * @param in The contents of a {@code pom.properties} file, which is closed
+     * @return Its version property, or null if there is none
+     */
+    static String versionFromPomProperties(InputStream in) throws IOException {
+        try {
+            Properties props = new Properties();
+            props.load(in);
+            return props.getProperty("version");
+        }
+        finally {
+            in.close();
+        }
+    }
+
+    /**
+     * @return The version directory of a jar in a Maven repository layout, or null if the jar isn't laid out so
+     */
+    static String versionFromRepositoryPath(File jar) {
+        String name = jar.getName();
+        File versionDir = jar.getParentFile();
+        File artifactDir = versionDir == null ? null : versionDir.getParentFile();
+        if (artifactDir == null || !name.endsWith(".jar")) {
+            return null;
+        }
+        String version = versionDir.getName();
+        // timestamped snapshots live in the -SNAPSHOT directory but carry the timestamp in their name
+        String fileVersion = version.endsWith(SNAPSHOT)
+                ? version.substring(0, version.length() - SNAPSHOT.length()) : version;
+        String prefix = artifactDir.getName() + "-" + fileVersion;
+        if (fileVersion.length() == 0 || name.length() <= prefix.length() || !name.startsWith(prefix)) {
+            return null;
+        }
+        char next = name.charAt(prefix.length());
+        return next == '.' || next == '-' ? version : null;
+    }
+
+    /**
+     * Tries to guess the version by assuming it starts as the first number after a '-' or '_' sign, then converts
+     * the version into an OSGi-compatible one.
+     * @param filename the filename
+     * @param converter Converts the version
+     * @return The extracted version.
+     */
+    static String versionFromFileName(String filename, OsgiVersionConverter converter)
+    {
+        StringBuilder version = null;
+        boolean lastWasSeparator = false;
+        for (int x=0; x<filename.length(); x++)
+        {
+            char c = filename.charAt(x);
+            if (c == '-' || c == '_')
+                lastWasSeparator = true;
+            else
+            {
+                if (Character.isDigit(c) && lastWasSeparator && version == null)
+                    version = new StringBuilder();
+                lastWasSeparator = false;
+            }
+
+            if (version != null)
+                version.append(c);
+        }
+
+        if (version != null)
+        {
+            if (version.length() >= 4 && ".jar".equals(version.substring(version.length() - 4)))
+                version.delete(version.length() - 4, version.length());
+            return converter.getVersion(version.toString());
+        } else
+            return null;
+    }
+}
@@ -0,0 +1,222 @@
+package org.twdata.pkgscanner;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.jar.Manifest;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.twdata.pkgscanner.PackageScanner.*;
+
+public class ArchiveContentsTest extends TestCase {
+    public void testReadWithRandomAccess() throws IOException {
+        byte[] jar = createJar();
+        // the jar sits in the middle of a larger buffer
+        ByteBuffer buffer = ByteBuffer.allocate(jar.length + 20);
+        buffer.position(10);
+        buffer.put(jar);
+        buffer.position(10).limit(10 + jar.length);
+
+        ArchiveContents archive = ArchiveContents.read(CentralDirectory.source(buffer));
+        assertEquals(10, buffer.position());
+        assertContents(archive);
+    }
+
+    public void testReadForwardOnly() throws IOException {
+        assertContents(ArchiveContents.read(new ByteArrayInputStream(createJar())));
+    }
+
+    public void testMetadataOfAFileIsReadWhenFirstAskedFor() throws IOException {
+        File file = File.createTempFile("archive", ".jar");
+        try {
+            Files.write(file.toPath(), createJar());
+            final long[] reserved = new long[1];
+            ArchiveContents archive = ArchiveContents.read(file, CentralDirectory.read(file),
+                    new ArchiveContents.ByteBudget() {
+                        public boolean reserve(long bytes) {
+                            reserved[0] += bytes;
+                            return true;
+                        }
+                    });
+            assertEquals(5, archive.getNames().size());
+            assertEquals(0, reserved[0]);
+
+            assertEquals("2.5", archive.getManifest().getMainAttributes().getValue("Bundle-Version"));
+            long manifest = reserved[0];
+            assertTrue(manifest > 0);
+            archive.getManifest();
+            assertEquals(manifest, reserved[0]);
+            assertNull(archive.getModuleDescriptor());
+            assertEquals(manifest, reserved[0]);
+        }
+        finally {
+            file.delete();
+        }
+    }
+
+    public void testMetadataIsNotReadPastTheBudget() throws IOException {
+        File file = File.createTempFile("archive", ".jar");
+        try {
+            Files.write(file.toPath(), createJar());
+            ArchiveContents archive = ArchiveContents.read(file, CentralDirectory.read(file),
+                    new ArchiveContents.ByteBudget() {
+                        public boolean reserve(long bytes) {
+                            return false;
+                        }
+                    });
+            try {
+                archive.getManifest();
+                fail("Expected an IOException");
+            }
+            catch (IOException expected) {
+            }
+        }
+        finally {
+            file.delete();
+        }
+    }
+
+    public void testModuleDescriptorOfAMultiReleaseJar() throws IOException {
+        assertEquals("9", read(ArchiveContents.read(new ByteArrayInputStream(createModularJar(true)))
+                .getModuleDescriptor()));
+        // versioned entries only count in a jar declared multi-release
+        assertEquals("root", read(ArchiveContents.read(new ByteArrayInputStream(createModularJar(false)))
+                .getModuleDescriptor()));
+    }
+
+    public void testNotAZip() {
+        try {
+            ArchiveContents.read(new ByteArrayInputStream("not a jar".getBytes()));
+            fail("Expected an IOException");
+        }
+        catch (IOException expected) {
+        }
+        try {
+            ArchiveContents.read(CentralDirectory.source(ByteBuffer.wrap(new byte[100])));
+            fail("Expected an IOException");
+        }
+        catch (IOException expected) {
+        }
+    }
+
+    public void testScanArchive() throws IOException {
+        PackageScanner scanner = new PackageScanner().select(jars(include("*.jar")), packages(include("org.foo", "org.foo.*")));
+        assertExports(scanner.scanArchive("mem:foo.jar", createJar()));
+        assertExports(scanner.scanArchive("mem:foo.jar", new ByteArrayInputStream(createJar())));
+
+        File file = File.createTempFile("archive", ".jar");
+        try {
+            Files.write(file.toPath(), createJar());
+            SeekableByteChannel channel = Files.newByteChannel(file.toPath(), StandardOpenOption.READ);
+            try {
+                assertExports(scanner.scanArchive("mem:foo.jar", channel));
+            }
+            finally {
+                channel.close();
+            }
+        }
+        finally {
+            file.delete();
+        }
+    }
+
+    public void testScanArchiveWithPrependedLauncher() throws IOException {
+        byte[] jar = createJar();
+        byte[] launcher = "#!/bin/sh\nexec java -jar \"$0\" \"$@\"\n".getBytes("UTF-8");
+        byte[] prefixed = Arrays.copyOf(launcher, launcher.length + jar.length);
+        System.arraycopy(jar, 0, prefixed, launcher.length, jar.length);
+        PackageScanner scanner = new PackageScanner().select(jars(include("*.jar")), packages(include("org.foo", "org.foo.*")));
+        assertExports(scanner.scanArchive("mem:foo.jar", prefixed));
+    }
+
+    public void testScanArchiveUsesDeclaredPackages() throws IOException {
+        Collection<ExportPackage> exports = new PackageScanner()
+                .select(jars(include("*.jar")), packages(include("org.foo", "org.foo.*")))
+                .useDeclaredPackages()
+                .scanArchive("mem:foo.jar", createJar());
+        assertEquals(1, exports.size());
+        ExportPackage export = exports.iterator().next();
+        assertEquals("org.foo.api", export.getPackageName());
+        assertEquals("3.1.0", export.getVersion());
+    }
+
+    private static void assertContents(ArchiveContents archive) throws IOException {
+        assertEquals(Arrays.asList("META-INF/MANIFEST.MF", "org/foo/", "org/foo/Foo.class", "org/foo/api/Api.class",
+                "META-INF/maven/org.foo/foo/pom.properties"), archive.getNames());
+        assertEquals("2.5", archive.getManifest().getMainAttributes().getValue("Bundle-Version"));
+        assertNotNull(archive.getPomProperties());
+        assertNull(archive.getIndexList());
+        assertTrue(archive.getPackages().containsAll(Arrays.asList("org.foo", "org.foo.api")));
+    }
+
+    private static void assertExports(Collection<ExportPackage> exports) {
+        assertEquals(2, exports.size());
+        Iterator<ExportPackage> it = exports.iterator();
+        ExportPackage foo = it.next();
+        assertEquals("org.foo", foo.getPackageName());
+        assertEquals("2.5", foo.getVersion());
+        assertEquals(new File("mem:foo.jar"), foo.getLocation());
+        assertEquals("org.foo.api", it.next().getPackageName());
+    }
+
+    private static byte[] createModularJar(boolean multiRelease) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ZipOutputStream out = new ZipOutputStream(bytes);
+        Manifest manifest = new Manifest();
+        manifest.getMainAttributes().putValue("Manifest-Version", "1.0");
+        if (multiRelease) {
+            manifest.getMainAttributes().putValue("Multi-Release", "true");
+        }
+        out.putNextEntry(new ZipEntry("META-INF/MANIFEST.MF"));
+        manifest.write(out);
+        out.putNextEntry(new ZipEntry("module-info.class"));
+        out.write("root".getBytes("UTF-8"));
+        out.putNextEntry(new ZipEntry("META-INF/versions/9/module-info.class"));
+        out.write("9".getBytes("UTF-8"));
+        // a release later than any JVM running the test
+        out.putNextEntry(new ZipEntry("META-INF/versions/999/module-info.class"));
+        out.write("999".getBytes("UTF-8"));
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    private static String read(InputStream in) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        for (int b; (b = in.read()) != -1; ) {
+            bytes.write(b);
+        }
+        return new String(bytes.toByteArray(), "UTF-8");
+    }
+
+    private static byte[] createJar() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ZipOutputStream out = new ZipOutputStream(bytes);
+        Manifest manifest = new Manifest();
+        manifest.getMainAttributes().putValue("Manifest-Version", "1.0");
+        manifest.getMainAttributes().putValue("Bundle-Version", "2.5");
+        manifest.getMainAttributes().putValue("Export-Package", "org.foo.api;version=\"3.1\"");
+        out.putNextEntry(new ZipEntry("META-INF/MANIFEST.MF"));
+        manifest.write(out);
+        out.putNextEntry(new ZipEntry("org/foo/"));
+        out.putNextEntry(new ZipEntry("org/foo/Foo.class"));
+        out.write(new byte[100]);
+        out.putNextEntry(new ZipEntry("org/foo/api/Api.class"));
+        out.write(new byte[100]);
+        out.putNextEntry(new ZipEntry("META-INF/maven/org.foo/foo/pom.properties"));
+        out.write("version=2.5\n".getBytes("UTF-8"));
+        out.close();
+        return bytes.toByteArray();
+    }
+}
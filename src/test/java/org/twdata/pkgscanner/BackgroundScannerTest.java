@@ -0,0 +1,60 @@
+package org.twdata.pkgscanner;
+
+import junit.framework.TestCase;
+
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.twdata.pkgscanner.PackageScanner.*;
+
+public class BackgroundScannerTest extends TestCase {
+
+    public void testPausedScanKeepsPreviousResult() throws Exception {
+        BackgroundScanner scanner = new BackgroundScanner(createPlan(), new ScanThrottle(1024 * 1024));
+        try {
+            assertNull(scanner.getResult());
+            ScanResult first = scanner.rescan().get(10, TimeUnit.SECONDS);
+            assertSame(first, scanner.getResult());
+            assertEquals("foo", first.getExports().iterator().next().getPackageName());
+
+            scanner.pause();
+            CompletableFuture<ScanResult> second = scanner.rescan();
+            assertSame(second, scanner.rescan());
+            Thread.sleep(200);
+            assertTrue(scanner.isScanning());
+            assertSame(first, scanner.getResult());
+
+            scanner.resume();
+            assertSame(second.get(10, TimeUnit.SECONDS), scanner.getResult());
+            assertFalse(scanner.isScanning());
+        }
+        finally {
+            scanner.close();
+        }
+    }
+
+    public void testCloseCancelsPausedScan() throws Exception {
+        BackgroundScanner scanner = new BackgroundScanner(createPlan());
+        scanner.pause();
+        CompletableFuture<ScanResult> future = scanner.rescan();
+        scanner.close();
+        try {
+            future.get(10, TimeUnit.SECONDS);
+            fail();
+        }
+        catch (CancellationException expected) {
+        }
+        assertNull(scanner.getResult());
+    }
+
+    private ScanPlan createPlan() {
+        URLClassLoader cl = new URLClassLoader(new URL[] {getClass().getResource("/foo+bar.jar")}, null);
+        return new PackageScanner()
+                .useClassLoader(cl)
+                .select(jars(include("*.jar")), packages(include("foo")))
+                .compile();
+    }
+}
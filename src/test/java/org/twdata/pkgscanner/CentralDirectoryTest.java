@@ -0,0 +1,78 @@
+package org.twdata.pkgscanner;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+public class CentralDirectoryTest extends TestCase {
+
+    public void testNames() throws IOException {
+        CentralDirectory directory = CentralDirectory.read(createZip(null, "org/foo/Foo.class", "org/bar/Bar.class"));
+        assertEquals(2, directory.getEntryCount());
+        assertEquals(Arrays.asList("org/foo/Foo.class", "org/bar/Bar.class"), directory.getNames());
+    }
+
+    public void testNamesWithArchiveComment() throws IOException {
+        CentralDirectory directory = CentralDirectory.read(createZip("a comment", "org/foo/Foo.class"));
+        assertEquals(Arrays.asList("org/foo/Foo.class"), directory.getNames());
+    }
+
+    public void testFingerprint() throws IOException {
+        long fingerprint = CentralDirectory.read(createZip(null, "org/foo/Foo.class")).fingerprint();
+        assertEquals(fingerprint, CentralDirectory.read(createZip(null, "org/foo/Foo.class")).fingerprint());
+        assertFalse(fingerprint == CentralDirectory.read(createZip(null, "org/foo/Fo0.class")).fingerprint());
+    }
+
+    public void testDataInFrontOfTheArchive() throws IOException {
+        File zip = createZip(null, "org/foo/Foo.class");
+        byte[] bytes = Files.readAllBytes(zip.toPath());
+        ByteBuffer prefixed = ByteBuffer.allocate(bytes.length + 62);
+        prefixed.position(62);
+        prefixed.put(bytes);
+        prefixed.flip();
+
+        CentralDirectory.Source source = CentralDirectory.source(prefixed);
+        CentralDirectory directory = CentralDirectory.read(source);
+        CentralDirectory.Entry entry = directory.getEntries().get(0);
+        assertEquals(62, entry.getLocalHeaderOffset());
+        assertEquals("org/foo/Foo.class", new String(CentralDirectory.readEntry(source, entry), "UTF-8"));
+    }
+
+    public void testNotAZip() throws IOException {
+        File file = File.createTempFile("central", ".jar");
+        file.deleteOnExit();
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(new byte[64]);
+        out.close();
+        try {
+            CentralDirectory.read(file);
+            fail();
+        } catch (IOException expected) {
+        }
+    }
+
+    private File createZip(String comment, String... names) throws IOException {
+        File file = File.createTempFile("central", ".jar");
+        file.deleteOnExit();
+        ZipOutputStream out = new ZipOutputStream(new FileOutputStream(file));
+        for (String name : names) {
+            ZipEntry entry = new ZipEntry(name);
+            // fixed times, so zips made in different seconds are identical
+            entry.setTime(0);
+            out.putNextEntry(entry);
+            out.write(name.getBytes("UTF-8"));
+        }
+        if (comment != null) {
+            out.setComment(comment);
+        }
+        out.close();
+        return file;
+    }
+}
@@ -0,0 +1,35 @@
+package org.twdata.pkgscanner;
+
+import junit.framework.TestCase;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.Map;
+
+public class DeclaredPackagesTest extends TestCase {
+
+    public void testParseExportPackage() {
+        Map<String, String> packages = DeclaredPackages.parseExportPackage(
+                "org.foo;version=\"1.2\", org.foo.api;org.foo.spi;uses:=\"org.foo,org.bar\";version=2.0,"
+                        + "org.baz;x-internal:=true,org.qux;specification-version=3");
+        assertEquals(Arrays.asList("org.foo", "org.foo.api", "org.foo.spi", "org.baz", "org.qux"),
+                new ArrayList<String>(packages.keySet()));
+        assertEquals("1.2", packages.get("org.foo"));
+        assertEquals("2.0", packages.get("org.foo.api"));
+        assertEquals("2.0", packages.get("org.foo.spi"));
+        assertNull(packages.get("org.baz"));
+        assertNull(packages.get("org.qux"));
+    }
+
+    public void testParseIndexList() throws IOException {
+        Map<String, String> packages = DeclaredPackages.parseIndexList(new BufferedReader(new StringReader(
+                "JarIndex-Version: 1.0\n\nmain.jar\norg/foo\norg/foo/api\nMETA-INF\nlog.properties\n\n"
+                        + "other.jar\ncom/other\n")));
+        assertEquals(Arrays.asList("org.foo", "org.foo.api", "log.properties"),
+                new ArrayList<String>(packages.keySet()));
+        assertNull(packages.get("org.foo"));
+    }
+}
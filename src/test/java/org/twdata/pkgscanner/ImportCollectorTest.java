@@ -0,0 +1,77 @@
+package org.twdata.pkgscanner;
+
+import junit.framework.TestCase;
+import org.apache.commons.io.IOUtils;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.util.SortedSet;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.twdata.pkgscanner.PackageScanner.*;
+
+public class ImportCollectorTest extends TestCase {
+    private File tmpDir;
+
+    @Override
+    public void setUp() {
+        tmpDir = new File("target", "importtest").getAbsoluteFile();
+        tmpDir.mkdirs();
+    }
+
+    public void testImportsOfJar() throws Exception {
+        File jar = new File(tmpDir, "scanner-1.0.jar");
+        ZipOutputStream zout = new ZipOutputStream(new FileOutputStream(jar));
+        for (String name : new String[] {"PackageScanner", "ScanPlan"}) {
+            zout.putNextEntry(new ZipEntry("org/twdata/pkgscanner/" + name + ".class"));
+            InputStream in = getClass().getResourceAsStream("/org/twdata/pkgscanner/" + name + ".class");
+            IOUtils.copy(in, zout);
+            in.close();
+        }
+        zout.close();
+
+        ImportCollector collector = new ImportCollector(2);
+        new PackageScanner()
+                .select(jars(include("*.jar")), packages(include("org.*")))
+                .collectImports(collector)
+                .scan(tmpDir.toURI().toURL());
+
+        SortedSet<String> imports = collector.getImports(jar);
+        assertTrue(imports.contains("org.slf4j"));
+        assertTrue(imports.contains("org.twdata.pkgscanner.pattern"));
+        assertTrue(imports.contains("org.twdata.pkgscanner"));
+        // filtered by the package patterns
+        assertFalse(imports.contains("java.util"));
+    }
+
+    public void testImportsOfDirectory() throws Exception {
+        File pkgDir = new File(getClass().getResource("/org/twdata/pkgscanner/PackageScanner.class").toURI()).getParentFile();
+        File classes = pkgDir.getParentFile().getParentFile().getParentFile();
+
+        ImportCollector collector = new ImportCollector(2);
+        new PackageScanner()
+                .select(jars(include("*.jar")), packages(include("org.twdata.*"), exclude("org.twdata.pkgscanner.pattern")))
+                .collectImports(collector)
+                .scan(classes.toURI().toURL());
+
+        SortedSet<String> imports = collector.getImports(pkgDir);
+        assertTrue(imports.contains("org.twdata.pkgscanner"));
+        assertFalse(imports.contains("org.twdata.pkgscanner.pattern"));
+        assertFalse(imports.contains("org.slf4j"));
+    }
+
+    public void testReadsReferencedPackages() throws Exception {
+        ClassFileReader reader = new ClassFileReader();
+        InputStream in = getClass().getResourceAsStream("/org/twdata/pkgscanner/ImportCollector.class");
+        reader.read(in);
+        in.close();
+
+        SortedSet<String> packages = new java.util.TreeSet<String>();
+        reader.collectReferencedPackages(packages);
+        assertTrue(packages.contains("java.util.concurrent"));
+        assertTrue(packages.contains("java.util.jar"));
+        assertTrue(packages.contains("org.slf4j"));
+    }
+}
@@ -1,11 +1,14 @@
 package org.twdata.pkgscanner;
 
 import junit.framework.TestCase;
+import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
 import org.twdata.pkgscanner.pattern.CompiledPattern;
 import org.twdata.pkgscanner.pattern.PatternFactory;
 import org.twdata.pkgscanner.pattern.SimpleWildcardPatternFactory;
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
@@ -31,7 +34,7 @@ public class InternalScannerTest extends TestCase {
         tmpDir = new File("target", "footest");
         tmpDir.mkdir();
 
-        scanner = new InternalScanner(getClass().getClassLoader(), new PackageScanner.VersionMapping[] {}, debug);
+        scanner = new InternalScanner(getClass().getClassLoader(), new ScanPlan.Mapping[] {}, debug);
         scanner.setOsgiVersionConverter(new OsgiVersionConverter()
         {
             public String getVersion(String version)
@@ -73,6 +76,53 @@ public class InternalScannerTest extends TestCase {
                         "foo=bar\nversion=1")), "testpackage"));
     }
 
+    public void testDeterminePackageVersionFromMavenRepositoryWithoutOpeningJar() throws Exception {
+        File repo = new File(tmpDir, "repository");
+        // the jars don't exist, so only the path can give the version
+        assertEquals("3.2.1", scanner.determinePackageVersion(
+                new File(repo, "org/foo/foo-core/3.2.1/foo-core-3.2.1.jar"), "testpackage"));
+        assertEquals("3.2.1", scanner.determinePackageVersion(
+                new File(repo, "org/foo/foo-core/3.2.1/foo-core-3.2.1-tests.jar"), "testpackage"));
+        assertEquals("1.0-SNAPSHOT", scanner.determinePackageVersion(
+                new File(repo, "org/foo/foo-core/1.0-SNAPSHOT/foo-core-1.0-20200101.101010-3.jar"), "testpackage"));
+        assertNull(VersionResolvers.versionFromRepositoryPath(new File(repo, "org/foo/foo-core/3.2.1/other-3.2.1.jar")));
+        assertNull(VersionResolvers.versionFromRepositoryPath(new File(repo, "org/foo/foo-core/3.2.1/foo-core-3.2.10.jar")));
+    }
+
+    public void testDefaultResolversPreferTheManifestToTheRepositoryPath() throws Exception {
+        File versionDir = new File(tmpDir, "repository/org/foo/foo-core/3.2.1");
+        versionDir.mkdirs();
+        File declaring = new File(versionDir, "foo-core-3.2.1.jar");
+        declaring.deleteOnExit();
+        FileUtils.copyFile(createJarWithManifest(singletonMap("Bundle-Version", "4.0")), declaring);
+        assertEquals("4.0", scanner.determinePackageVersion(declaring, "testpackage"));
+
+        // without a manifest version, the path wins over pom.properties and the file name
+        File undeclaring = new File(versionDir, "foo-core-3.2.1-tests.jar");
+        undeclaring.deleteOnExit();
+        FileUtils.copyFile(createJarWithManifestAndEntries(Collections.<String, String>emptyMap(),
+                singletonMap("META-INF/maven/org.foo/foo-core/pom.properties", "version=3.2.0")), undeclaring);
+        assertEquals("3.2.1", scanner.determinePackageVersion(undeclaring, "testpackage"));
+    }
+
+    public void testDeterminePackageVersionWithResolverChain() throws Exception {
+        File jar = createJarWithManifest(singletonMap("Bundle-Version", "1"));
+        scanner.setVersionResolvers(Arrays.asList(new VersionResolver() {
+            public boolean requiresJar() {
+                return false;
+            }
+
+            public String resolveVersion(File jar, JarFile jarFile, OsgiVersionConverter converter) {
+                assertNull(jarFile);
+                return null;
+            }
+        }, VersionResolvers.manifest()));
+        assertEquals("1", scanner.determinePackageVersion(jar, "testpackage"));
+
+        scanner.setVersionResolvers(Arrays.asList(VersionResolvers.fileName()));
+        assertNull(scanner.determinePackageVersion(new File(tmpDir, "nothing.jar"), "testpackage"));
+    }
+
     private File createJarWithManifest(Map<String, String> manifestEntries) throws
             IOException
     {
@@ -104,7 +154,7 @@ public class InternalScannerTest extends TestCase {
 
     public void testDeterminePackageVersionWithExplicitVersion() throws Exception {
         PackageScanner.VersionMapping mapping = new PackageScanner.VersionMapping("testpackage").toVersion("34");
-        mapping.setPatternFactory(new PatternFactory() {
+        PatternFactory factory = new PatternFactory() {
             public CompiledPattern compile(final String pattern) {
                 return new CompiledPattern() {
                     public String getOriginal() {
@@ -116,15 +166,17 @@ public class InternalScannerTest extends TestCase {
                     }
                 };
             }
-        });
-        InternalScanner scanner = new InternalScanner(getClass().getClassLoader(), new PackageScanner.VersionMapping[] {mapping}, debug);
+        };
+        InternalScanner scanner = new InternalScanner(getClass().getClassLoader(), new ScanPlan.Mapping[] {
+                mapping.compile(factory, new DefaultOsgiVersionConverter())
+        }, debug);
 
         assertEquals("34.0.0", scanner.determinePackageVersion(new File(tmpDir, "fdas-2.0.jar"), "testpackage"));
     }
 
     public void testDeterminePackageVersionWithExplicitNonOsgiVersion() throws Exception {
         PackageScanner.VersionMapping mapping = new PackageScanner.VersionMapping("testpackage").toVersion("34-SNAPSHOT");
-        mapping.setPatternFactory(new PatternFactory() {
+        PatternFactory factory = new PatternFactory() {
             public CompiledPattern compile(final String pattern) {
                 return new CompiledPattern() {
                     public String getOriginal() {
@@ -136,8 +188,10 @@ public class InternalScannerTest extends TestCase {
                     }
                 };
             }
-        });
-        InternalScanner scanner = new InternalScanner(getClass().getClassLoader(), new PackageScanner.VersionMapping[] {mapping}, debug);
+        };
+        InternalScanner scanner = new InternalScanner(getClass().getClassLoader(), new ScanPlan.Mapping[] {
+                mapping.compile(factory, new DefaultOsgiVersionConverter())
+        }, debug);
 
         assertEquals("34.0.0.SNAPSHOT", scanner.determinePackageVersion(new File(tmpDir, "asdf-2.0.jar"), "testpackage"));
     }
@@ -151,7 +205,7 @@ public class InternalScannerTest extends TestCase {
         File baby2 = new File(child, "bfoo");
         baby2.createNewFile();
 
-        InternalScanner scanner = new InternalScanner(getClass().getClassLoader(), new PackageScanner.VersionMapping[] {}, debug);
+        InternalScanner scanner = new InternalScanner(getClass().getClassLoader(), new ScanPlan.Mapping[] {}, debug);
         Collection<ExportPackage> exports = scanner.loadImplementationsInDirectory(new InternalScanner.Test() {
             public boolean matchesPackage(String pkg) { return true; }
             public boolean matchesJar(String name) { return true; }
@@ -170,7 +224,7 @@ public class InternalScannerTest extends TestCase {
         File baby2 = new File(child, "bfoo");
         baby2.createNewFile();
 
-        InternalScanner scanner = new InternalScanner(getClass().getClassLoader(), new PackageScanner.VersionMapping[] {}, debug);
+        InternalScanner scanner = new InternalScanner(getClass().getClassLoader(), new ScanPlan.Mapping[] {}, debug);
         Collection<ExportPackage> exports = scanner.loadImplementationsInDirectory(new InternalScanner.Test() {
             public boolean matchesPackage(String pkg) { return true; }
             public boolean matchesJar(String name) { return true; }
@@ -183,9 +237,8 @@ public class InternalScannerTest extends TestCase {
     public void testFindInUrls() throws Exception {
 
         final PackageScanner.VersionMapping mapping = new PackageScanner.VersionMapping("pkg.in.dir", "1.1");
-        mapping.setPatternFactory(new SimpleWildcardPatternFactory());
-        InternalScanner scanner = new InternalScanner(getClass().getClassLoader(), new PackageScanner.VersionMapping[] {
-                mapping
+        InternalScanner scanner = new InternalScanner(getClass().getClassLoader(), new ScanPlan.Mapping[] {
+                mapping.compile(new SimpleWildcardPatternFactory(), new DefaultOsgiVersionConverter())
         }, debug);
         Collection<ExportPackage> exports = scanner.findInUrls(new InternalScanner.Test() {
             public boolean matchesPackage(String pkg) { return true; }
@@ -201,7 +254,7 @@ public class InternalScannerTest extends TestCase {
     public void testFindInPackagesWithUrlsAndPlusInFilename() throws Exception {
 
         URLClassLoader cl = new URLClassLoader(new URL[] {getClass().getResource("/foo+bar.jar")});
-        InternalScanner scanner = new InternalScanner(cl, new PackageScanner.VersionMapping[] {}, debug);
+        InternalScanner scanner = new InternalScanner(cl, new ScanPlan.Mapping[] {}, debug);
         Collection<ExportPackage> exports = scanner.findInPackage(new InternalScanner.Test() {
             public boolean matchesPackage(String pkg) { return true; }
             public boolean matchesJar(String name) { return true; }
@@ -214,7 +267,7 @@ public class InternalScannerTest extends TestCase {
     public void testFindInPackagesWithUrlsAndMultiplePlusesInFilename() throws Exception {
 
         URLClassLoader cl = new URLClassLoader(new URL[] {getClass().getResource("/foo+bar+baz.jar")});
-        InternalScanner scanner = new InternalScanner(cl, new PackageScanner.VersionMapping[] {}, debug);
+        InternalScanner scanner = new InternalScanner(cl, new ScanPlan.Mapping[] {}, debug);
         Collection<ExportPackage> exports = scanner.findInPackage(new InternalScanner.Test() {
             public boolean matchesPackage(String pkg) { return true; }
             public boolean matchesJar(String name) { return true; }
@@ -227,7 +280,7 @@ public class InternalScannerTest extends TestCase {
     public void testFindInPackagesWithUrlsAndSpaceInFilename() throws Exception {
 
         URLClassLoader cl = new URLClassLoader(new URL[] {getClass().getResource("/bar baz.jar")});
-        InternalScanner scanner = new InternalScanner(cl, new PackageScanner.VersionMapping[] {}, debug);
+        InternalScanner scanner = new InternalScanner(cl, new ScanPlan.Mapping[] {}, debug);
         Collection<ExportPackage> exports = scanner.findInPackage(new InternalScanner.Test() {
             public boolean matchesPackage(String pkg) { return true; }
             public boolean matchesJar(String name) { return true; }
@@ -242,7 +295,7 @@ public class InternalScannerTest extends TestCase {
         URL[] array = {new URL("jar:http://www.atlassian.com/foo.jar!/foo")};
         Enumeration<URL> urls = new Vector<URL>(Arrays.asList(array)).elements();
         URLClassLoader cl = new URLClassLoader(array);
-        InternalScanner scanner = new InternalScanner(cl, new PackageScanner.VersionMapping[] {}, debug);
+        InternalScanner scanner = new InternalScanner(cl, new ScanPlan.Mapping[] {}, debug);
         Collection<ExportPackage> exports = scanner.findInPackageWithUrls(new InternalScanner.Test() {
             public boolean matchesPackage(String pkg) { return true; }
             public boolean matchesJar(String name) { return true; }
@@ -251,9 +304,80 @@ public class InternalScannerTest extends TestCase {
         assertEquals(0, exports.size());
     }
 
+    public void testFindInPackageHierarchyReusesAncestorResults() throws Exception {
+        ClassLoaderHierarchyCache cache = new ClassLoaderHierarchyCache();
+        InternalScanner.Test test = new InternalScanner.Test() {
+            public boolean matchesPackage(String pkg) { return true; }
+            public boolean matchesJar(String name) { return true; }
+        };
+        URLClassLoader parent = new URLClassLoader(new URL[] {getClass().getResource("/scanbase/lib/pkg-1.0.jar")}, null);
+        URLClassLoader child1 = new URLClassLoader(new URL[] {getClass().getResource("/foo+bar.jar")}, parent);
+        URLClassLoader child2 = new URLClassLoader(new URL[] {getClass().getResource("/bar baz.jar")}, parent);
+
+        InternalScanner scanner = new InternalScanner(child1, new ScanPlan.Mapping[] {}, debug);
+        scanner.setHierarchyCache(cache, "config");
+        Collection<ExportPackage> exports = scanner.findInPackages(test, "pkg", "foo");
+        assertEquals(2, exports.size());
+        assertEquals(1, cache.size());
+        assertNotNull(cache.get(parent, "config|pkg"));
+        assertNull(cache.get(child1, "config|pkg"));
+
+        scanner = new InternalScanner(child2, new ScanPlan.Mapping[] {}, debug);
+        scanner.setHierarchyCache(cache, "config");
+        List<ExportPackage> parentExports = cache.get(parent, "config|pkg").getExports();
+        List<ExportPackage> pkgExports = scanner.findInPackage(test, "pkg");
+        assertEquals(1, pkgExports.size());
+        assertSame(parentExports.get(0), pkgExports.get(0));
+
+        List<ExportPackage> fooExports = scanner.findInPackage(test, "foo");
+        assertEquals(1, fooExports.size());
+        assertEquals(new File(getClass().getResource("/bar baz.jar").toURI()), fooExports.get(0).getLocation());
+    }
+
+    public void testCachedAncestorsAreRevalidatedAndReported() throws Exception {
+        ClassLoaderHierarchyCache cache = new ClassLoaderHierarchyCache();
+        InternalScanner.Test test = new InternalScanner.Test() {
+            public boolean matchesPackage(String pkg) { return true; }
+            public boolean matchesJar(String name) { return true; }
+        };
+        File jar = File.createTempFile("pkg-1.0", ".jar");
+        try {
+            FileUtils.copyURLToFile(getClass().getResource("/scanbase/lib/pkg-1.0.jar"), jar);
+            URLClassLoader parent = new URLClassLoader(new URL[] {jar.toURI().toURL()}, null);
+            URLClassLoader child = new URLClassLoader(new URL[] {getClass().getResource("/foo+bar.jar")}, parent);
+            final List<File> reported = new ArrayList<File>();
+            ScanListener listener = new ScanListener() {
+                public void elementScanned(File element, List<ExportPackage> packages) {
+                    reported.add(element);
+                }
+            };
+
+            InternalScanner scanner = new InternalScanner(child, new ScanPlan.Mapping[] {}, debug);
+            scanner.setHierarchyCache(cache, "config");
+            scanner.findInPackage(test, "pkg");
+            ClassLoaderHierarchyCache.Level level = cache.get(parent, "config|pkg");
+
+            // the cached level is still reported to the listener
+            scanner = new InternalScanner(child, new ScanPlan.Mapping[] {}, debug);
+            scanner.setHierarchyCache(cache, "config");
+            scanner.setScanListener(listener);
+            assertEquals(1, scanner.findInPackage(test, "pkg").size());
+            assertEquals(Collections.singletonList(jar), reported);
+            assertSame(level, cache.get(parent, "config|pkg"));
+
+            // a changed jar is scanned again
+            assertTrue(jar.setLastModified(jar.lastModified() - 10000));
+            scanner.findInPackage(test, "pkg");
+            assertNotSame(level, cache.get(parent, "config|pkg"));
+        }
+        finally {
+            jar.delete();
+        }
+    }
+
     public void testExtractVersion() throws Exception
     {
-        InternalScanner scanner = new InternalScanner(this.getClass().getClassLoader(), new PackageScanner.VersionMapping[0], false);
+        InternalScanner scanner = new InternalScanner(this.getClass().getClassLoader(), new ScanPlan.Mapping[0], false);
         assertEquals("1.6.1", scanner.extractVersion("wsdl4j-1.6.1.jar"));
         assertEquals("1.6.0", scanner.extractVersion("wsdl4j-1.6.jar"));
         assertEquals("1.0.0", scanner.extractVersion("wsdl4j-1.jar"));
@@ -269,4 +393,194 @@ public class InternalScannerTest extends TestCase {
         assertEquals("2.3.4", scanner.extractVersion("stuff-foo2-2.3.4.jar"));
         assertEquals(null, scanner.extractVersion("tomcat-i18n-es.jar"));
     }
+
+    public void testDeclaredPackagesWithVersions() throws Exception {
+        Map<String, String> manifest = new HashMap<String, String>();
+        manifest.put("Bundle-Version", "9.9");
+        manifest.put("Export-Package", "org.foo;version=\"1.2\",org.foo.api;uses:=\"org.foo\";version=2.0,org.bar");
+        Map<String, String> entries = new HashMap<String, String>();
+        entries.put("org/foo/Foo.class", "");
+        entries.put("org/foo/internal/Internal.class", "");
+        File jar = createJarWithManifestAndEntries(manifest, entries);
+        scanner.setUseDeclaredPackages(true);
+
+        List<ExportPackage> exports = new ArrayList<ExportPackage>(scanner.loadImplementationsInJar(ALL, jar));
+        Collections.sort(exports);
+        assertEquals(3, exports.size());
+        assertEquals("org.bar", exports.get(0).getPackageName());
+        assertEquals("9.9", exports.get(0).getVersion());
+        assertEquals("org.foo", exports.get(1).getPackageName());
+        assertEquals("1.2", exports.get(1).getVersion());
+        assertEquals("org.foo.api", exports.get(2).getPackageName());
+        assertEquals("2.0", exports.get(2).getVersion());
+
+        // the declared versions are cached with the packages
+        exports = new ArrayList<ExportPackage>(scanner.loadImplementationsInJar(ALL, jar));
+        Collections.sort(exports);
+        assertEquals("2.0", exports.get(2).getVersion());
+    }
+
+    public void testIdenticalJarsAreReadOnce() throws Exception {
+        File jar = createJarWithManifestAndEntries(singletonMap("Bundle-Version", "4.5"),
+                singletonMap("org/foo/Foo.class", "foo"));
+        File copy = copyOf(jar, "copy-of-" + jar.getName());
+        scanner.setVersionResolvers(Arrays.asList(VersionResolvers.manifest()));
+        JarFilePool pool = new JarFilePool();
+        scanner.setJarFilePool(pool);
+
+        // the central directory read for the fingerprint gives the entries and the manifest, so the jar isn't opened
+        assertEquals(2, scanner.loadImplementationsInJar(ALL, jar).size());
+        assertEquals(0, pool.getOpenCount());
+        List<ExportPackage> exports = new ArrayList<ExportPackage>(scanner.loadImplementationsInJar(ALL, copy));
+        Collections.sort(exports);
+
+        // the copy was neither read nor given a version of its own, but keeps its location
+        assertEquals(0, pool.getOpenCount());
+        assertEquals(2, exports.size());
+        assertEquals("org.foo", exports.get(1).getPackageName());
+        assertEquals("4.5", exports.get(1).getVersion());
+        assertEquals(copy, exports.get(1).getLocation());
+        pool.close();
+    }
+
+    public void testJarWithPrependedLauncherIsListed() throws Exception {
+        File jar = createJarWithManifestAndEntries(singletonMap("Bundle-Version", "1.2"),
+                singletonMap("org/acme/A.class", "a"));
+        File launcher = new File(tmpDir, "launcher.jar");
+        launcher.deleteOnExit();
+        FileOutputStream out = new FileOutputStream(launcher);
+        out.write("#!/bin/sh\nexec java -jar \"$0\" \"$@\"\n".getBytes("UTF-8"));
+        out.write(FileUtils.readFileToByteArray(jar));
+        out.close();
+        scanner.setVersionResolvers(Arrays.asList(VersionResolvers.manifest()));
+        JarFilePool pool = new JarFilePool();
+        scanner.setJarFilePool(pool);
+
+        List<ExportPackage> exports = new ArrayList<ExportPackage>(scanner.loadImplementationsInJar(ALL, launcher));
+        Collections.sort(exports);
+        assertEquals(2, exports.size());
+        assertEquals("org.acme", exports.get(1).getPackageName());
+        assertEquals("1.2", exports.get(1).getVersion());
+        // listed from its central directory, with the offsets moved past the launcher
+        assertEquals(0, pool.getOpenCount());
+        pool.close();
+    }
+
+    public void testCopiesKeepTheVersionOfTheirPath() throws Exception {
+        File jar = createJarWithManifestAndEntries(Collections.<String, String>emptyMap(),
+                singletonMap("org/foo/Foo.class", "foo"));
+        File first = copyOf(jar, "foo-1.0.jar");
+        File second = copyOf(jar, "foo-2.0.jar");
+        scanner.setVersionResolvers(Arrays.asList(VersionResolvers.fileName()));
+
+        assertEquals("1.0", scanner.loadImplementationsInJar(ALL, first).iterator().next().getVersion());
+        assertEquals("2.0", scanner.loadImplementationsInJar(ALL, second).iterator().next().getVersion());
+    }
+
+    private File copyOf(File jar, String name) throws IOException {
+        File copy = new File(tmpDir, name);
+        copy.deleteOnExit();
+        FileUtils.copyFile(jar, copy);
+        return copy;
+    }
+
+    public void testModuleDescriptorGivesPackagesAndVersion() throws Exception {
+        File jar = createModularJar("com/example/api/Api.class", "com/example/impl/Impl.class");
+        scanner.setVersionResolvers(Collections.<VersionResolver>emptyList());
+        List<ExportPackage> exports = new ArrayList<ExportPackage>(scanner.loadImplementationsInJar(ALL, jar));
+        Collections.sort(exports);
+
+        assertEquals(2, exports.size());
+        assertEquals("com.example.api", exports.get(0).getPackageName());
+        assertEquals("com.example.impl", exports.get(1).getPackageName());
+        assertEquals("1.2.3", exports.get(0).getVersion());
+    }
+
+    public void testModuleDescriptorCheck() throws Exception {
+        scanner.setCheckModuleDescriptors(true);
+        assertEquals(2, scanner.loadImplementationsInJar(ALL,
+                createModularJar("com/example/api/Api.class", "com/example/impl/Impl.class")).size());
+        try {
+            scanner.loadImplementationsInJar(ALL, createModularJar("com/example/api/Api.class",
+                    "com/example/impl/Impl.class", "com/example/extra/Extra.class"));
+            fail();
+        } catch (IllegalStateException ex) {
+            assertTrue(ex.getMessage().contains("com.example.extra"));
+        }
+    }
+
+    private static final InternalScanner.Test ALL = new InternalScanner.Test() {
+        public boolean matchesPackage(String pkg) { return true; }
+        public boolean matchesJar(String name) { return true; }
+    };
+
+    /**
+     * Creates a jar with the given entries and a module descriptor for module com.example.mod 1.2.3, with the
+     * packages com.example.api and com.example.impl
+     */
+    private File createModularJar(String... entries) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(0xCAFEBABE);
+        out.writeShort(0);
+        out.writeShort(53);
+        out.writeShort(14);
+        writeUtf8(out, "module-info");           // 1
+        out.writeByte(7); out.writeShort(1);      // 2 class
+        writeUtf8(out, "Module");                // 3
+        writeUtf8(out, "com.example.mod");       // 4
+        out.writeByte(19); out.writeShort(4);     // 5 module
+        writeUtf8(out, "1.2.3");                 // 6
+        writeUtf8(out, "ModulePackages");        // 7
+        writeUtf8(out, "com/example/api");       // 8
+        out.writeByte(20); out.writeShort(8);     // 9 package
+        writeUtf8(out, "com/example/impl");      // 10
+        out.writeByte(20); out.writeShort(10);    // 11 package
+        writeUtf8(out, "java.base");             // 12
+        out.writeByte(19); out.writeShort(12);    // 13 module
+        out.writeShort(0x8000);
+        out.writeShort(2);
+        out.writeShort(0);
+        out.writeShort(0);
+        out.writeShort(0);
+        out.writeShort(0);
+        out.writeShort(2);
+        // Module: name, flags, version, requires java.base, no exports, opens, uses or provides
+        out.writeShort(3);
+        out.writeInt(22);
+        out.writeShort(5);
+        out.writeShort(0);
+        out.writeShort(6);
+        out.writeShort(1);
+        out.writeShort(13);
+        out.writeShort(0x8000);
+        out.writeShort(0);
+        out.writeShort(0);
+        out.writeShort(0);
+        out.writeShort(0);
+        out.writeShort(0);
+        // ModulePackages
+        out.writeShort(7);
+        out.writeInt(6);
+        out.writeShort(2);
+        out.writeShort(9);
+        out.writeShort(11);
+        out.close();
+
+        File file = File.createTempFile("pkgscanner-module-", ".jar", tmpDir);
+        ZipOutputStream zout = new ZipOutputStream(new FileOutputStream(file));
+        zout.putNextEntry(new ZipEntry("module-info.class"));
+        zout.write(bytes.toByteArray());
+        zout.putNextEntry(new ZipEntry("META-INF/MANIFEST.MF"));
+        for (String entry : entries) {
+            zout.putNextEntry(new ZipEntry(entry));
+        }
+        zout.close();
+        return file;
+    }
+
+    private static void writeUtf8(DataOutputStream out, String value) throws IOException {
+        out.writeByte(1);
+        out.writeUTF(value);
+    }
 }
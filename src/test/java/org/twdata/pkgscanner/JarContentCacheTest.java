@@ -0,0 +1,111 @@
+package org.twdata.pkgscanner;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+
+public class JarContentCacheTest extends TestCase {
+
+    public void testRoundTrip() {
+        JarContentCache cache = new JarContentCache();
+        cache.put("/lib/foo.jar", new HashSet<String>(Arrays.asList(
+                "org.apache.commons.lang", "org.apache.commons.io", "org.apache.commons.io.input",
+                "", "META-INF", "org.caf\u00e9", "org.caf\u00e9.bar")));
+
+        assertEquals(Arrays.asList("", "META-INF", "org.apache.commons.io", "org.apache.commons.io.input",
+                "org.apache.commons.lang", "org.caf\u00e9", "org.caf\u00e9.bar"), cache.get("/lib/foo.jar"));
+        assertNull(cache.get("/lib/bar.jar"));
+    }
+
+    public void testEmpty() {
+        JarContentCache cache = new JarContentCache();
+        cache.put("/lib/empty.jar", Collections.<String>emptySet());
+        assertEquals(Collections.<String>emptyList(), cache.get("/lib/empty.jar"));
+    }
+
+    public void testFrontCodingIsSmallerThanTheNames() {
+        byte[] encoded = JarContentCache.encode(Arrays.asList(
+                "org.apache.commons.collections", "org.apache.commons.collections.bag",
+                "org.apache.commons.collections.map", "org.apache.commons.collections.set"));
+        assertTrue(encoded.length < "org.apache.commons.collections".length() + 20);
+    }
+
+    public void testEvictsLeastRecentlyUsed() {
+        JarContentCache cache = new JarContentCache(460);
+        cache.put("/a.jar", Arrays.asList("org.a"));
+        cache.put("/b.jar", Arrays.asList("org.b"));
+        cache.put("/c.jar", Arrays.asList("org.c"));
+        assertEquals(3, cache.size());
+
+        // touch a, so b is the eldest
+        cache.get("/a.jar");
+        cache.put("/d.jar", Arrays.asList("org.d"));
+
+        assertEquals(3, cache.size());
+        assertNull(cache.get("/b.jar"));
+        assertNotNull(cache.get("/a.jar"));
+        assertNotNull(cache.get("/d.jar"));
+        assertTrue(cache.getUsedBytes() <= cache.getMaxBytes());
+    }
+
+    public void testEntryLargerThanBudgetIsNotCached() {
+        JarContentCache cache = new JarContentCache(50);
+        cache.put("/a.jar", Arrays.asList("org.a"));
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.getUsedBytes());
+    }
+
+    public void testRevalidatesJarsBySizeAndModificationTime() throws Exception {
+        File jar = File.createTempFile("pkgscanner-cache-", ".jar", new File("target"));
+        jar.deleteOnExit();
+        JarContentCache cache = new JarContentCache();
+        cache.put(jar, Arrays.asList("org.a"));
+        cache.putVersion(jar, "1.0");
+        assertEquals(Arrays.asList("org.a"), cache.get(jar));
+        assertEquals("1.0", cache.getVersion(jar));
+
+        jar.setLastModified(jar.lastModified() - 10000);
+        assertNull(cache.get(jar));
+        assertNull(cache.getVersion(jar));
+        assertEquals(0, cache.size());
+    }
+
+    public void testVersionSharedWithCopyStaysWithinBudget() throws Exception {
+        File jar = File.createTempFile("pkgscanner-cache-", ".jar", new File("target"));
+        File copy = File.createTempFile("pkgscanner-cache-", ".jar", new File("target"));
+        jar.deleteOnExit();
+        copy.deleteOnExit();
+        JarContentCache sizing = new JarContentCache();
+        sizing.put(jar, Arrays.asList("org.a"), null, null, 42);
+        assertTrue(sizing.putCopy(copy, 42));
+
+        // room for the version of one jar only
+        JarContentCache cache = new JarContentCache(sizing.getUsedBytes() + 2 * "1.0".length());
+        cache.put(jar, Arrays.asList("org.a"), null, null, 42);
+        assertTrue(cache.putCopy(copy, 42));
+        cache.putVersion(copy, "1.0", true);
+        assertTrue(cache.getUsedBytes() <= cache.getMaxBytes());
+        assertEquals(1, cache.size());
+    }
+
+    public void testVersionFromThePathIsNotSharedWithCopies() throws Exception {
+        File jar = File.createTempFile("pkgscanner-cache-", ".jar", new File("target"));
+        File copy = File.createTempFile("pkgscanner-cache-", ".jar", new File("target"));
+        jar.deleteOnExit();
+        copy.deleteOnExit();
+        JarContentCache cache = new JarContentCache();
+        cache.put(jar, Arrays.asList("org.a"), null, null, 42);
+        assertTrue(cache.putCopy(copy, 42));
+
+        cache.putVersion(jar, "1.0");
+        assertEquals("1.0", cache.getVersion(jar));
+        assertNull(cache.getVersion(copy));
+
+        cache.putVersion(copy, "2.0", true);
+        assertEquals("2.0", cache.getVersion(copy));
+        assertEquals("1.0", cache.getVersion(jar));
+    }
+}
@@ -0,0 +1,132 @@
+package org.twdata.pkgscanner;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.jar.JarFile;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+public class JarFilePoolTest extends TestCase {
+
+    public void testHandleIsReused() throws IOException {
+        File jar = createJar("a");
+        JarFilePool pool = new JarFilePool(2);
+        JarFile first = pool.acquire(jar);
+        pool.release(jar);
+        assertSame(first, pool.acquire(jar));
+        assertSame(first, pool.acquire(jar));
+        pool.release(jar);
+        pool.release(jar);
+        assertEquals(1, pool.getOpenCount());
+    }
+
+    public void testLeastRecentlyUsedIsClosed() throws IOException {
+        File a = createJar("a");
+        File b = createJar("b");
+        File c = createJar("c");
+        JarFilePool pool = new JarFilePool(2);
+        JarFile jarA = pool.acquire(a);
+        pool.acquire(b);
+        pool.release(b);
+        pool.release(a);
+        // a was used last, so b is closed to make room for c
+        pool.acquire(a);
+        pool.release(a);
+        pool.acquire(c);
+        pool.release(c);
+        assertEquals(2, pool.getOpenCount());
+        assertSame(jarA, pool.acquire(a));
+        pool.release(a);
+    }
+
+    public void testWaitsForARelease() throws Exception {
+        final File a = createJar("a");
+        final File b = createJar("b");
+        final JarFilePool pool = new JarFilePool(1);
+        pool.acquire(a);
+        final CountDownLatch opened = new CountDownLatch(1);
+        Thread thread = new Thread() {
+            public void run() {
+                try {
+                    pool.acquire(b);
+                    opened.countDown();
+                    pool.release(b);
+                }
+                catch (IOException ex) {
+                    throw new RuntimeException(ex);
+                }
+            }
+        };
+        thread.start();
+        assertFalse(opened.await(100, TimeUnit.MILLISECONDS));
+        pool.release(a);
+        assertTrue(opened.await(5, TimeUnit.SECONDS));
+        thread.join();
+        assertEquals(1, pool.getOpenCount());
+    }
+
+    public void testClose() throws IOException {
+        File a = createJar("a");
+        File b = createJar("b");
+        JarFilePool pool = new JarFilePool(4);
+        pool.acquire(a);
+        pool.acquire(b);
+        pool.release(b);
+        pool.close();
+        assertEquals(1, pool.getOpenCount());
+        pool.release(a);
+        assertEquals(0, pool.getOpenCount());
+        // jars used after the pool is closed are closed as soon as they are released
+        pool.acquire(a);
+        pool.release(a);
+        assertEquals(0, pool.getOpenCount());
+    }
+
+    public void testChangedJarIsReopened() throws IOException {
+        File jar = createJar("a");
+        JarFilePool pool = new JarFilePool(2);
+        JarFile first = pool.acquire(jar);
+        pool.release(jar);
+        assertTrue(jar.setLastModified(jar.lastModified() - 10000));
+        assertNotSame(first, pool.acquire(jar));
+        pool.release(jar);
+        assertEquals(1, pool.getOpenCount());
+    }
+
+    public void testScanWithSharedPool() throws Exception {
+        File jar = createJar("a");
+        JarFilePool pool = new JarFilePool(2);
+        new PackageScanner()
+                .select(PackageScanner.jars(PackageScanner.include("*.jar")),
+                        PackageScanner.packages(PackageScanner.include("*")))
+                .useJarFilePool(pool)
+                .scan(jar.toURI().toURL());
+        // the jar was listed, and its manifest read, from its central directory rather than opened
+        assertEquals(0, pool.getOpenCount());
+        new PackageScanner()
+                .select(PackageScanner.jars(PackageScanner.include("*.jar")),
+                        PackageScanner.packages(PackageScanner.include("*")))
+                .useJarFilePool(pool)
+                .collectImports(new ImportCollector())
+                .scan(jar.toURI().toURL());
+        // collecting imports reads the classes, through one handle left open for later scans
+        assertEquals(1, pool.getOpenCount());
+        pool.close();
+        assertEquals(0, pool.getOpenCount());
+    }
+
+    private File createJar(String pkg) throws IOException {
+        File jar = File.createTempFile("pool", ".jar");
+        jar.deleteOnExit();
+        ZipOutputStream zout = new ZipOutputStream(new FileOutputStream(jar));
+        zout.putNextEntry(new ZipEntry(pkg + "/A.class"));
+        zout.closeEntry();
+        zout.close();
+        return jar;
+    }
+}
@@ -0,0 +1,52 @@
+package org.twdata.pkgscanner;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.twdata.pkgscanner.PackageScanner.*;
+
+public class PackageIndexTest extends TestCase {
+
+    public void testQueries() {
+        PackageIndex index = new PackageIndex(false);
+        ExportPackage fooA = new ExportPackage("org.foo", "1.0", new File("a-1.0.jar"));
+        ExportPackage fooB = new ExportPackage("org.foo", "2.0", new File("b-2.0.jar"));
+        index.add(fooA);
+        index.add(new ExportPackage("org.foo.bar", "1.0", new File("a-1.0.jar")));
+        index.add(fooB);
+        index.add(new ExportPackage("org.foo2", null, new File("c.jar")));
+        index.add(new ExportPackage("com.baz", "1.0", new File("a-1.0.jar")));
+        index.add(new ExportPackage("com.baz", null, new File("c.jar")));
+
+        assertEquals(4, index.size());
+        assertTrue(index.contains("org.foo"));
+        assertFalse(index.contains("org"));
+        assertFalse(index.contains("org.foo.bar.baz"));
+        assertEquals(Arrays.asList(fooA, fooB), index.getProviders("org.foo"));
+        assertSame(fooB, index.getProviders("org.foo").get(1));
+        assertEquals(Collections.emptyList(), index.getProviders("net.foo"));
+
+        assertEquals(Arrays.asList("org.foo", "org.foo.bar"), index.getPackages("org.foo"));
+        assertEquals(Arrays.asList("org.foo", "org.foo.bar", "org.foo2"), index.getPackages("org"));
+        assertEquals(Arrays.asList("com.baz", "org.foo", "org.foo.bar", "org.foo2"), index.getPackages(""));
+        assertEquals(Collections.emptyList(), index.getPackages("net"));
+
+        assertEquals(Collections.singleton("org.foo"), index.getConflicts().keySet());
+        assertEquals(4, index.getExports().size());
+        assertSame(fooB, index.getExports().get(1));
+    }
+
+    public void testScanIndex() throws Exception {
+        PackageIndex index = new PackageScanner()
+                .select(jars(include("*.jar")), packages(include("foo")))
+                .scanIndex(getClass().getResource("/foo+bar.jar"), getClass().getResource("/foo+bar.jar"));
+
+        assertEquals(1, index.size());
+        assertEquals(2, index.getProviders("foo").size());
+        assertEquals(1, index.getExports().size());
+        assertTrue(index.getConflicts().isEmpty());
+    }
+}
@@ -0,0 +1,21 @@
+package org.twdata.pkgscanner;
+
+import junit.framework.TestCase;
+
+public class PackageNamesTest extends TestCase {
+
+    public void testFromPath() {
+        String name = PackageNames.fromPath("org/foo/bar/Baz.class", 11);
+        assertEquals("org.foo.bar", name);
+        assertSame(name, PackageNames.fromPath("org/foo/bar/Other.class", 11));
+        assertEquals("org.foo", PackageNames.fromPath("org/foo/bar/Baz.class", 7));
+        assertEquals("org", PackageNames.fromPath("org/Baz.class", 3));
+    }
+
+    public void testSamePackage() {
+        assertTrue(PackageNames.samePackage("org/foo/A.class", 7, "org/foo/B.class", 7));
+        assertFalse(PackageNames.samePackage("org/foo/A.class", 7, "org/fob/B.class", 7));
+        assertFalse(PackageNames.samePackage("org/foo/A.class", 7, "org/foo/x/B.class", 9));
+        assertFalse(PackageNames.samePackage("org/foo/A.class", 7, null, -1));
+    }
+}
@@ -2,13 +2,27 @@ package org.twdata.pkgscanner;
 
 import junit.framework.TestCase;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
 import java.util.zip.ZipOutputStream;
 import java.util.zip.ZipEntry;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 
 import static org.twdata.pkgscanner.PackageScanner.*;
 
@@ -67,4 +81,356 @@ public class PackageScannerTest extends TestCase
         System.out.println("Total: "+(end-start)+"ms, each: "+((end-start)/100)+"ms");
     }
 
+    public void testScanAsync() throws Exception
+    {
+        URLClassLoader cl = new URLClassLoader(new URL[] {getClass().getResource("/foo+bar.jar")}, null);
+        final List<File> scanned = new ArrayList<File>();
+        CompletableFuture<Collection<ExportPackage>> future = new PackageScanner()
+                .useClassLoader(cl)
+                .select(jars(include("*.jar")), packages(include("foo")))
+                .withScanListener(new ScanListener()
+                {
+                    public void elementScanned(File element, List<ExportPackage> packages)
+                    {
+                        scanned.add(element);
+                    }
+                })
+                .scanAsync(new Executor()
+                {
+                    public void execute(Runnable command)
+                    {
+                        command.run();
+                    }
+                });
+
+        assertEquals(1, future.get().size());
+        assertEquals("foo", future.get().iterator().next().getPackageName());
+        assertEquals(1, scanned.size());
+        assertEquals("foo+bar.jar", scanned.get(0).getName());
+    }
+
+    public void testScanAsyncCancelledWhileScanning() throws Exception
+    {
+        URLClassLoader cl = new URLClassLoader(new URL[] {
+                getClass().getResource("/foo+bar.jar"),
+                getClass().getResource("/bar baz.jar")}, null);
+        final List<File> scanned = new ArrayList<File>();
+        final List<Runnable> queue = new ArrayList<Runnable>();
+        final List<CompletableFuture<?>> futures = new ArrayList<CompletableFuture<?>>();
+        CompletableFuture<Collection<ExportPackage>> future = new PackageScanner()
+                .useClassLoader(cl)
+                .select(jars(include("*.jar")), packages(include("foo")))
+                .withScanListener(new ScanListener()
+                {
+                    public void elementScanned(File element, List<ExportPackage> packages)
+                    {
+                        scanned.add(element);
+                        futures.get(0).cancel(false);
+                    }
+                })
+                .scanAsync(new Executor()
+                {
+                    public void execute(Runnable command)
+                    {
+                        queue.add(command);
+                    }
+                });
+        futures.add(future);
+        queue.get(0).run();
+
+        assertTrue(future.isCancelled());
+        assertEquals(1, scanned.size());
+        try
+        {
+            future.get();
+            fail("Expected the scan to be cancelled");
+        }
+        catch (CancellationException ex)
+        {
+            // expected
+        }
+    }
+
+    public void testCompiledPlanIsSharedBetweenThreads() throws Exception
+    {
+        URLClassLoader cl = new URLClassLoader(new URL[] {getClass().getResource("/foo+bar.jar")}, null);
+        PackageScanner scanner = new PackageScanner()
+                .useClassLoader(cl)
+                .select(jars(include("*.jar")), packages(include("foo")))
+                .withMappings(mapPackage("foo").toVersion("3.1"));
+        final ScanPlan plan = scanner.compile();
+        scanner.select(jars(include("*.jar")), packages(include("bar")));
+
+        final List<Collection<ExportPackage>> results = new ArrayList<Collection<ExportPackage>>();
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int x = 0; x < 4; x++)
+        {
+            Thread thread = new Thread(new Runnable()
+            {
+                public void run()
+                {
+                    Collection<ExportPackage> exports = plan.scan();
+                    synchronized (results)
+                    {
+                        results.add(exports);
+                    }
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        for (Thread thread : threads)
+        {
+            thread.join();
+        }
+
+        assertEquals(4, results.size());
+        for (Collection<ExportPackage> exports : results)
+        {
+            assertEquals(1, exports.size());
+            assertEquals("foo", exports.iterator().next().getPackageName());
+            assertEquals("3.1.0", exports.iterator().next().getVersion());
+        }
+    }
+
+    public void testResolveVersionsLazily() throws Exception
+    {
+        final List<File> resolved = new ArrayList<File>();
+        VersionResolver recording = new VersionResolver()
+        {
+            public boolean requiresJar()
+            {
+                return false;
+            }
+
+            public String resolveVersion(File jar, java.util.jar.JarFile jarFile, OsgiVersionConverter converter)
+            {
+                resolved.add(jar);
+                return "1.0";
+            }
+        };
+        Collection<ExportPackage> exports = new PackageScanner()
+                .select(jars(include("*.jar")), packages(include("foo")))
+                .withVersionResolvers(recording)
+                .resolveVersionsLazily()
+                .keepFirstDuplicates()
+                .scan(getClass().getResource("/foo+bar.jar"), getClass().getResource("/foo+bar.jar"));
+
+        assertEquals(1, exports.size());
+        ExportPackage export = exports.iterator().next();
+        assertFalse(export.isVersionResolved());
+        assertTrue(resolved.isEmpty());
+        assertEquals("1.0", export.getVersion());
+        assertTrue(export.isVersionResolved());
+        assertEquals(1, resolved.size());
+        assertEquals("1.0", export.getVersion());
+        assertEquals(1, resolved.size());
+    }
+
+    public void testLazyVersionsKeepTheSameDuplicate() throws Exception
+    {
+        VersionResolver onlyBaz = new VersionResolver()
+        {
+            public boolean requiresJar()
+            {
+                return false;
+            }
+
+            public String resolveVersion(File jar, java.util.jar.JarFile jarFile, OsgiVersionConverter converter)
+            {
+                return jar.getName().contains("baz") ? "2.0" : null;
+            }
+        };
+        URL first = getClass().getResource("/foo+bar.jar");
+        URL second = getClass().getResource("/foo+bar+baz.jar");
+        PackageScanner scanner = new PackageScanner()
+                .select(jars(include("*.jar")), packages(include("foo")))
+                .withVersionResolvers(onlyBaz);
+
+        // the versioned duplicate is kept whether or not versions are lazy
+        ExportPackage eager = scanner.scan(first, second).iterator().next();
+        ExportPackage lazy = scanner.resolveVersionsLazily().scan(first, second).iterator().next();
+        assertEquals("2.0", eager.getVersion());
+        assertEquals(eager.getLocation(), lazy.getLocation());
+        assertEquals("2.0", lazy.getVersion());
+
+        ExportPackage firstFound = scanner.keepFirstDuplicates().scan(first, second).iterator().next();
+        assertEquals("foo+bar.jar", firstFound.getLocation().getName());
+        assertNull(firstFound.getVersion());
+    }
+
+    public void testBudgetLimitsJars() throws Exception
+    {
+        URL first = getClass().getResource("/foo+bar.jar");
+        URL second = getClass().getResource("/foo+bar+baz.jar");
+        ScanResult result = new PackageScanner()
+                .select(jars(include("*.jar")), packages(include("foo")))
+                .withBudget(ScanBudget.unlimited().withMaxJars(1))
+                .scanResult(first, second);
+
+        assertFalse(result.isComplete());
+        assertEquals(1, result.getExports().size());
+        assertEquals(EnumSet.of(ScanResult.Limit.JARS), result.getLimitsReached());
+        assertEquals(1, result.getSkipped().size());
+        assertEquals("foo+bar+baz.jar", result.getSkipped().get(0).getName());
+    }
+
+    public void testBudgetLimitsEntriesPerJar() throws Exception
+    {
+        File jar = File.createTempFile("budget", ".jar");
+        jar.deleteOnExit();
+        ZipOutputStream zout = new ZipOutputStream(new FileOutputStream(jar));
+        for (String name : new String[] {"a/A.txt", "b/B.txt", "c/C.txt"}) {
+            zout.putNextEntry(new ZipEntry(name));
+            zout.closeEntry();
+        }
+        zout.close();
+
+        JarContentCache cache = new JarContentCache();
+        PackageScanner scanner = new PackageScanner()
+                .select(jars(include("*.jar")), packages(include("*")))
+                .useJarContentCache(cache);
+        ScanResult partial = scanner.withBudget(ScanBudget.unlimited().withMaxEntriesPerJar(2))
+                .scanResult(jar.toURI().toURL());
+
+        assertFalse(partial.isComplete());
+        assertEquals(2, partial.getExports().size());
+        assertEquals(EnumSet.of(ScanResult.Limit.ENTRIES_PER_JAR), partial.getLimitsReached());
+        assertEquals(jar.getCanonicalFile(), partial.getSkipped().get(0).getCanonicalFile());
+        // the partial listing isn't cached, so an unlimited scan reads the whole jar
+        assertNull(cache.get(jar));
+
+        ScanResult full = scanner.withBudget(ScanBudget.unlimited()).scanResult(jar.toURI().toURL());
+        assertTrue(full.isComplete());
+        assertEquals(3, full.getExports().size());
+        assertTrue(full.getSkipped().isEmpty());
+    }
+
+    public void testBudgetChargesTheCentralDirectoryOfListedJars() throws Exception
+    {
+        URL url = getClass().getResource("/foo+bar+baz.jar");
+        File jar = new File(url.toURI());
+        int directorySize = CentralDirectory.read(jar).getSize();
+        assertTrue(directorySize < jar.length());
+        PackageScanner scanner = new PackageScanner().select(jars(include("*.jar")), packages(include("foo")));
+
+        ScanResult result = scanner.withBudget(ScanBudget.unlimited().withMaxBytes(directorySize)).scanResult(url);
+        assertTrue(result.isComplete());
+        assertEquals(1, result.getExports().size());
+
+        result = scanner.withBudget(ScanBudget.unlimited().withMaxBytes(directorySize - 1)).scanResult(url);
+        assertEquals(EnumSet.of(ScanResult.Limit.BYTES), result.getLimitsReached());
+    }
+
+    public void testBudgetChargesJarsWithAnUnreadableDirectoryInFull() throws Exception
+    {
+        File jar = File.createTempFile("budget", ".jar");
+        jar.deleteOnExit();
+        ZipOutputStream zout = new ZipOutputStream(new FileOutputStream(jar));
+        zout.putNextEntry(new ZipEntry("foo/Foo.class"));
+        zout.closeEntry();
+        zout.close();
+        // an entry count of 0xffff marks a Zip64 archive, which the directory reader refuses but JarFile opens
+        RandomAccessFile raf = new RandomAccessFile(jar, "rw");
+        try {
+            raf.seek(raf.length() - CentralDirectory.END_RECORD_SIZE + 10);
+            raf.write(new byte[] {(byte) 0xff, (byte) 0xff});
+        }
+        finally {
+            raf.close();
+        }
+        URL url = jar.toURI().toURL();
+        PackageScanner scanner = new PackageScanner().select(jars(include("*.jar")), packages(include("foo")));
+
+        ScanResult result = scanner.withBudget(ScanBudget.unlimited().withMaxBytes(jar.length())).scanResult(url);
+        assertTrue(result.isComplete());
+        assertEquals(1, result.getExports().size());
+
+        result = scanner.withBudget(ScanBudget.unlimited().withMaxBytes(jar.length() - 1)).scanResult(url);
+        assertEquals(EnumSet.of(ScanResult.Limit.BYTES), result.getLimitsReached());
+    }
+
+    public void testBudgetDeadline() throws Exception
+    {
+        ScanResult result = new PackageScanner()
+                .select(jars(include("*.jar")), packages(include("foo")))
+                .withBudget(ScanBudget.unlimited().withDeadline(1, TimeUnit.NANOSECONDS))
+                .scanResult(getClass().getResource("/foo+bar.jar"));
+
+        assertFalse(result.isComplete());
+        assertTrue(result.getExports().isEmpty());
+        assertEquals(EnumSet.of(ScanResult.Limit.DEADLINE), result.getLimitsReached());
+        assertEquals(1, result.getSkipped().size());
+    }
+
+    public void testPackageSummariesSkipJars() throws Exception
+    {
+        URL jar = getClass().getResource("/foo+bar.jar");
+        PackageSummaryStore store = new PackageSummaryStore();
+        PackageScanner scanner = new PackageScanner()
+                .select(jars(include("*.jar")), packages(include("org.twdata.*")))
+                .withPackageSummaries(store);
+        assertTrue(scanner.scan(jar).isEmpty());
+        assertEquals(1, store.size());
+
+        // a jar that can't hold a selected package isn't read, so it doesn't count against the budget
+        ScanResult result = scanner.withBudget(ScanBudget.unlimited().withMaxBytes(1)).scanResult(jar);
+        assertTrue(result.isComplete());
+
+        // a jar that may hold a selected package still is
+        result = scanner.select(jars(include("*.jar")), packages(include("f*"))).scanResult(jar);
+        assertFalse(result.isComplete());
+        assertEquals(EnumSet.of(ScanResult.Limit.BYTES), result.getLimitsReached());
+    }
+
+    public void testDeclaredPackagesAreNotSharedWithOtherScanners() throws Exception
+    {
+        // a bundle declaring a package of a jar it embeds, rather than the packages it holds
+        File jar = File.createTempFile("declared", ".jar");
+        jar.deleteOnExit();
+        Manifest manifest = new Manifest();
+        manifest.getMainAttributes().putValue("Manifest-Version", "1.0");
+        manifest.getMainAttributes().putValue("Export-Package", "org.embedded.api");
+        JarOutputStream zout = new JarOutputStream(new FileOutputStream(jar), manifest);
+        for (String name : new String[] {"org/foo/Foo.class", "org/foo/impl/Impl.class"}) {
+            zout.putNextEntry(new ZipEntry(name));
+            zout.closeEntry();
+        }
+        zout.close();
+        URL url = jar.toURI().toURL();
+
+        JarContentCache cache = new JarContentCache();
+        PackageSummaryStore store = new PackageSummaryStore();
+        PackageScanner declared = new PackageScanner()
+                .select(jars(include("*.jar")), packages(include("org.embedded.*", "org.foo.*")))
+                .useJarContentCache(cache)
+                .withPackageSummaries(store)
+                .useDeclaredPackages();
+        PackageScanner listing = new PackageScanner()
+                .select(jars(include("*.jar")), packages(include("org.foo.*")))
+                .useJarContentCache(cache)
+                .withPackageSummaries(store);
+
+        assertEquals(Arrays.asList("org.embedded.api"), namesOf(declared.scan(url)));
+        assertEquals(Arrays.asList("org.foo.impl"), namesOf(listing.scan(url)));
+
+        // and the other way round
+        cache.clear();
+        store = new PackageSummaryStore();
+        listing.withPackageSummaries(store);
+        declared.select(jars(include("*.jar")), packages(include("org.embedded.*"))).withPackageSummaries(store);
+        assertEquals(Arrays.asList("org.foo.impl"), namesOf(listing.scan(url)));
+        assertEquals(Arrays.asList("org.embedded.api"), namesOf(declared.scan(url)));
+        assertEquals(Arrays.asList("org.foo.impl"), namesOf(listing.scan(url)));
+    }
+
+    private static List<String> namesOf(Collection<ExportPackage> exports)
+    {
+        List<String> names = new ArrayList<String>();
+        for (ExportPackage export : exports) {
+            names.add(export.getPackageName());
+        }
+        Collections.sort(names);
+        return names;
+    }
 }
@@ -0,0 +1,100 @@
+package org.twdata.pkgscanner;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+public class PackageSummaryStoreTest extends TestCase {
+
+    public void testSummarize() {
+        assertEquals(Arrays.asList("META-INF", "org.apache", "org.apache.commons", "org.twdata.pkgscanner"),
+                Arrays.asList(PackageSummaryStore.summarize(Arrays.asList("org.apache.commons.lang",
+                        "org.apache.commons.io", "org.apache", "org.twdata.pkgscanner.pattern", "META-INF"), 3)));
+        assertEquals(Arrays.asList("com", "org"),
+                Arrays.asList(PackageSummaryStore.summarize(Arrays.asList("org.foo", "com.bar", "org.baz"), 1)));
+    }
+
+    public void testSavedAndReloaded() throws IOException {
+        File jar = createJar();
+        File file = File.createTempFile("summaries", ".bin");
+        file.delete();
+        file.deleteOnExit();
+
+        PackageSummaryStore store = new PackageSummaryStore(file);
+        store.put(jar, Arrays.asList("org.foo.bar.baz", "org.foo.bar.qux"));
+        store.save();
+        assertTrue(file.exists());
+
+        PackageSummaryStore reloaded = new PackageSummaryStore(file);
+        assertEquals(1, reloaded.size());
+        assertEquals(Arrays.asList("org.foo.bar"), Arrays.asList(reloaded.get(jar)));
+
+        // summaries made at another depth are of no use
+        assertEquals(0, new PackageSummaryStore(file, 2).size());
+    }
+
+    public void testOtherFormatVersionIsIgnored() throws IOException {
+        File jar = createJar();
+        File file = File.createTempFile("summaries", ".bin");
+        file.delete();
+        file.deleteOnExit();
+        PackageSummaryStore store = new PackageSummaryStore(file);
+        store.put(jar, Arrays.asList("org.foo"), 42);
+        store.save();
+
+        // the format version follows the magic number
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.seek(4);
+            raf.writeInt(1);
+        }
+        finally {
+            raf.close();
+        }
+        assertEquals(0, new PackageSummaryStore(file).size());
+    }
+
+    public void testChangedJarIsDropped() throws IOException {
+        File jar = createJar();
+        PackageSummaryStore store = new PackageSummaryStore();
+        store.put(jar, Arrays.asList("org.foo"));
+        assertNotNull(store.get(jar));
+
+        FileOutputStream out = new FileOutputStream(jar, true);
+        out.write(new byte[16]);
+        out.close();
+        assertNull(store.get(jar));
+        assertEquals(0, store.size());
+    }
+
+    public void testCopiesShareSummaries() throws IOException {
+        File jar = createJar();
+        File copy = createJar();
+        File file = File.createTempFile("summaries", ".bin");
+        file.delete();
+        file.deleteOnExit();
+
+        PackageSummaryStore store = new PackageSummaryStore(file);
+        store.put(jar, Arrays.asList("org.foo.bar.baz"), 42);
+        store.save();
+        PackageSummaryStore reloaded = new PackageSummaryStore(file);
+        assertNull(reloaded.get(copy));
+        assertNull(reloaded.getCopy(copy, 43));
+        assertEquals(Arrays.asList("org.foo.bar"), Arrays.asList(reloaded.getCopy(copy, 42)));
+        assertEquals(Arrays.asList("org.foo.bar"), Arrays.asList(reloaded.get(copy)));
+        assertEquals(2, reloaded.size());
+    }
+
+    private File createJar() throws IOException {
+        File jar = File.createTempFile("summary", ".jar");
+        jar.deleteOnExit();
+        FileOutputStream out = new FileOutputStream(jar);
+        out.write(new byte[32]);
+        out.close();
+        return jar;
+    }
+}
@@ -0,0 +1,157 @@
+package org.twdata.pkgscanner;
+
+import junit.framework.TestCase;
+import org.apache.commons.io.FileUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.twdata.pkgscanner.PackageScanner.*;
+
+public class PartialScanResultTest extends TestCase {
+    private URL[] urls;
+
+    @Override
+    protected void setUp() throws Exception {
+        File dir = File.createTempFile("shards", "");
+        dir.delete();
+        dir.mkdir();
+        dir.deleteOnExit();
+        urls = new URL[] {
+                createJar(dir, "lib-1.0.jar", "x/X.class", "a/A.class"),
+                createJar(dir, "lib-2.0.jar", "x/X.class", "b/B.class"),
+                createJar(dir, "other.jar", "x/X.class", "c/C.class"),
+                createJar(dir, "mod-3.0.jar", "c/C.class", "d/D.class"),
+                createJar(dir, "plain.jar", "a/A.class", "e/E.class")
+        };
+    }
+
+    public void testMergedShardsMatchFullScan() throws IOException {
+        PackageScanner scanner = new PackageScanner().select(jars(include("*.jar")), packages(include("*")));
+        List<String> expected = describe(scanner.scan(urls));
+
+        for (int shardCount = 1; shardCount <= 4; shardCount++) {
+            PartialScanResult forward = scanner.scanShard(0, shardCount, urls);
+            for (int shard = 1; shard < shardCount; shard++) {
+                forward = forward.merge(roundTrip(scanner.scanShard(shard, shardCount, urls)));
+            }
+            PartialScanResult backward = scanner.scanShard(shardCount - 1, shardCount, urls);
+            for (int shard = shardCount - 2; shard >= 0; shard--) {
+                backward = scanner.scanShard(shard, shardCount, urls).merge(backward);
+            }
+            assertTrue(forward.isComplete());
+            assertEquals(expected, describe(forward.getExports()));
+            assertEquals(expected, describe(backward.getExports()));
+            assertEquals(Arrays.asList("1.0.0", "2.0.0"), new ArrayList<String>(forward.getConflicts().get("x")));
+        }
+    }
+
+    public void testFirstWinsAndProvenance() throws IOException {
+        PackageScanner scanner = new PackageScanner().select(jars(include("*.jar")), packages(include("*")))
+                .resolveVersionsLazily().keepFirstDuplicates();
+        List<String> expected = describe(scanner.scan(urls));
+
+        PartialScanResult merged = scanner.scanShard(1, 2, urls).merge(scanner.scanShard(0, 2, urls));
+        assertEquals(expected, describe(merged.getExports()));
+        for (ExportPackage export : merged.getExports()) {
+            int shard = InternalScanner.shardOf(InternalScanner.shardKey(export.getLocation()), 2);
+            assertEquals(shard, merged.getShardOf(export.getPackageName()));
+        }
+        assertEquals(-1, merged.getShardOf("missing"));
+    }
+
+    public void testJarsOfADirectoryAreSharded() throws IOException {
+        File dir = File.createTempFile("classpath", "");
+        dir.delete();
+        dir.mkdir();
+        File classes = new File(dir, "p");
+        classes.mkdir();
+        new FileOutputStream(new File(classes, "P.class")).close();
+        createJar(dir, "one-1.0.jar", "x/X.class", "a/A.class");
+        createJar(dir, "two-2.0.jar", "x/X.class", "b/B.class");
+        createJar(dir, "three.jar", "c/C.class");
+        createJar(dir, "four-4.0.jar", "a/A.class", "d/D.class");
+        URL[] urls = new URL[] {dir.toURI().toURL()};
+        try {
+            PackageScanner scanner = new PackageScanner().select(jars(include("*.jar")), packages(include("*")));
+            List<String> expected = describe(scanner.scan(urls));
+            assertEquals(6, expected.size());
+            for (int shardCount = 2; shardCount <= 4; shardCount++) {
+                PartialScanResult merged = scanner.scanShard(0, shardCount, urls);
+                for (int shard = 1; shard < shardCount; shard++) {
+                    merged = merged.merge(roundTrip(scanner.scanShard(shard, shardCount, urls)));
+                }
+                assertEquals(expected, describe(merged.getExports()));
+                for (ExportPackage export : merged.getExports()) {
+                    // the classes of the directory fall in its shard, and each jar in its own
+                    File location = export.getPackageName().equals("p") ? dir : export.getLocation();
+                    assertEquals(InternalScanner.shardOf(InternalScanner.shardKey(location), shardCount),
+                            merged.getShardOf(export.getPackageName()));
+                }
+            }
+        }
+        finally {
+            FileUtils.deleteDirectory(dir);
+        }
+    }
+
+    public void testShardKeyIsRelativeToTheWorkingDirectory() {
+        assertEquals("lib/foo.jar", InternalScanner.shardKey(new File("lib", "foo.jar")));
+        assertFalse(InternalScanner.shardKey(new File("lib", "foo.jar"))
+                .equals(InternalScanner.shardKey(new File("other", "foo.jar"))));
+    }
+
+    public void testMergeRejectsOverlappingShards() {
+        PackageScanner scanner = new PackageScanner().select(jars(include("*.jar")), packages(include("*")));
+        PartialScanResult first = scanner.scanShard(0, 2, urls);
+        try {
+            first.merge(scanner.scanShard(0, 2, urls));
+            fail();
+        } catch (IllegalArgumentException ex) {
+            // expected
+        }
+        try {
+            first.merge(scanner.scanShard(1, 3, urls));
+            fail();
+        } catch (IllegalArgumentException ex) {
+            // expected
+        }
+        assertFalse(first.isComplete());
+    }
+
+    private static PartialScanResult roundTrip(PartialScanResult result) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        result.writeTo(out);
+        return PartialScanResult.readFrom(new ByteArrayInputStream(out.toByteArray()));
+    }
+
+    private static List<String> describe(Collection<ExportPackage> exports) {
+        List<String> described = new ArrayList<String>();
+        for (ExportPackage export : exports) {
+            described.add(export.getPackageName() + ";" + export.getVersion() + ";" + export.getLocation().getName());
+        }
+        return described;
+    }
+
+    private static URL createJar(File dir, String name, String... entries) throws IOException {
+        File jar = new File(dir, name);
+        jar.deleteOnExit();
+        ZipOutputStream zout = new ZipOutputStream(new FileOutputStream(jar));
+        for (String entry : entries) {
+            zout.putNextEntry(new ZipEntry(entry));
+            zout.closeEntry();
+        }
+        zout.close();
+        return jar.toURI().toURL();
+    }
+}
@@ -0,0 +1,68 @@
+package org.twdata.pkgscanner;
+
+import junit.framework.TestCase;
+import org.twdata.pkgscanner.pattern.SimpleWildcardPattern;
+
+import java.util.Arrays;
+
+import static org.twdata.pkgscanner.PackageScanner.*;
+
+public class PatternAutomatonTest extends TestCase {
+
+    public void testMatches() {
+        PatternAutomaton automaton = PatternAutomaton.build(
+                new String[] {"org.*", "com.*", "javax.*", "org.twdata.pkgscanner.*", "foo"},
+                new String[] {"com.intellij.*", "*.internal*"});
+        assertTrue(automaton.matches("org.apache"));
+        assertTrue(automaton.matches("org.twdata.pkgscanner.pattern"));
+        assertTrue(automaton.matches("foo"));
+        assertTrue(automaton.matches("com.intellijx"));
+        assertFalse(automaton.matches("foobar"));
+        assertFalse(automaton.matches("org"));
+        assertFalse(automaton.matches("com.intellij.openapi"));
+        assertFalse(automaton.matches("org.apache.internal.util"));
+        assertFalse(automaton.matches("net.sf"));
+        assertFalse(automaton.matches(""));
+        assertTrue(automaton.matches("org.\u00e4"));
+    }
+
+    public void testMayMatchWithPrefix() {
+        PatternAutomaton automaton = PatternAutomaton.build(
+                new String[] {"org.twdata.*", "foo"}, new String[] {"org.twdata.internal*"});
+        assertTrue(automaton.mayMatchWithPrefix("org"));
+        assertTrue(automaton.mayMatchWithPrefix("org.twdata"));
+        assertTrue(automaton.mayMatchWithPrefix("org.twdata.pkgscanner"));
+        assertTrue(automaton.mayMatchWithPrefix("foo"));
+        assertTrue(automaton.mayMatchWithPrefix(""));
+        assertFalse(automaton.mayMatchWithPrefix("org.apache"));
+        assertFalse(automaton.mayMatchWithPrefix("foo.bar"));
+        assertFalse(automaton.mayMatchWithPrefix("org.twdata.internal"));
+        assertFalse(automaton.mayMatchWithPrefix("com"));
+    }
+
+    public void testAgreesWithWildcardPatterns() {
+        String[] includes = {"*.jar", "bar-*.jar", "a*b*c"};
+        String[] excludes = {"*dira*.jar", "*-sources.jar"};
+        PatternAutomaton automaton = PatternAutomaton.build(includes, excludes);
+        for (String value : Arrays.asList("foo.jar", "bar-1.0.jar", "dira.jar", "xdirax-1.jar", "foo-sources.jar",
+                "jar", ".jar", "abc", "aabbcc", "acb", "abcx", "bar-1.0.jar.zip")) {
+            boolean expected = false;
+            for (String include : includes) {
+                expected |= new SimpleWildcardPattern(include).matches(value);
+            }
+            for (String exclude : excludes) {
+                expected &= !new SimpleWildcardPattern(exclude).matches(value);
+            }
+            assertEquals(value, expected, automaton.matches(value));
+        }
+    }
+
+    public void testRoots() {
+        assertEquals(Arrays.asList("com", "javax", "org"), packages(
+                include("org.*", "com.*", "javax.*", "org.twdata.pkgscanner.*", "com.intellij.*"),
+                exclude("com.intellij.*")).getRoots());
+        assertEquals(Arrays.asList("com.atlassian", "foo"), packages(
+                include("com.atlassian.*", "com.intellij.openapi.*", "foo"), exclude("com.intellij.*")).getRoots());
+        assertEquals(Arrays.asList(""), packages(include("*.api", "org.*")).getRoots());
+    }
+}
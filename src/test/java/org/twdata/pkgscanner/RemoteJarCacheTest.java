@@ -0,0 +1,173 @@
+package org.twdata.pkgscanner;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.twdata.pkgscanner.PackageScanner.*;
+
+public class RemoteJarCacheTest extends TestCase {
+    private static final String ETAG = "\"v1\"";
+
+    private HttpServer server;
+    private byte[] jar;
+    private boolean rangesSupported = true;
+    private final List<String> requests = Collections.synchronizedList(new ArrayList<String>());
+    private long bytesServed;
+    private File cacheDir;
+
+    @Override
+    public void setUp() throws IOException {
+        jar = createJar();
+        cacheDir = File.createTempFile("remote", "");
+        cacheDir.delete();
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                serve(exchange);
+            }
+        });
+        server.start();
+    }
+
+    @Override
+    public void tearDown() {
+        server.stop(0);
+    }
+
+    public void testStubHoldsEntriesAndMetadata() throws IOException {
+        File stub = new RemoteJarCache(cacheDir).getStub(url("foo-2.5.jar"));
+        assertEquals("foo-2.5.jar", stub.getName());
+        // the large entry was never fetched
+        assertTrue(bytesServed < jar.length / 2);
+
+        JarFile jarFile = new JarFile(stub);
+        try {
+            assertEquals("2.5", jarFile.getManifest().getMainAttributes().getValue("Bundle-Version"));
+            assertNotNull(jarFile.getEntry("org/foo/Foo.class"));
+            assertEquals(0, jarFile.getEntry("org/big/Data.bin").getSize());
+            assertEquals(12, jarFile.getEntry("META-INF/maven/org.foo/foo/pom.properties").getSize());
+        }
+        finally {
+            jarFile.close();
+        }
+    }
+
+    public void testUnchangedJarIsRevalidated() throws IOException {
+        RemoteJarCache cache = new RemoteJarCache(cacheDir);
+        File stub = cache.getStub(url("foo-2.5.jar"));
+        long modified = stub.lastModified();
+        requests.clear();
+
+        assertEquals(stub, cache.getStub(new URL("jar:" + url("foo-2.5.jar") + "!/org/foo")));
+        assertEquals(1, requests.size());
+        assertEquals(modified, stub.lastModified());
+    }
+
+    public void testServerWithoutRanges() {
+        rangesSupported = false;
+        try {
+            new RemoteJarCache(cacheDir).getStub(url("foo-2.5.jar"));
+            fail();
+        }
+        catch (IOException expected) {
+        }
+    }
+
+    public void testScan() throws IOException {
+        Collection<ExportPackage> exports = new PackageScanner()
+                .select(jars(include("*.jar")), packages(include("org.*")))
+                .useRemoteJars(new RemoteJarCache(cacheDir))
+                .scan(url("foo-2.5.jar"));
+
+        assertEquals(2, exports.size());
+        for (ExportPackage export : exports) {
+            assertEquals("2.5", export.getVersion());
+            assertEquals("foo-2.5.jar", export.getLocation().getName());
+        }
+        // without a cache, remote jars are skipped
+        assertTrue(new PackageScanner()
+                .select(jars(include("*.jar")), packages(include("org.*")))
+                .scan(url("foo-2.5.jar")).isEmpty());
+    }
+
+    private URL url(String name) throws IOException {
+        return new URL("http://localhost:" + server.getAddress().getPort() + "/" + name);
+    }
+
+    private void serve(HttpExchange exchange) throws IOException {
+        String range = exchange.getRequestHeaders().getFirst("Range");
+        requests.add(range);
+        exchange.getResponseHeaders().add("ETag", ETAG);
+        if (ETAG.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+            exchange.sendResponseHeaders(304, -1);
+            exchange.close();
+            return;
+        }
+        int start = 0;
+        int end = jar.length - 1;
+        if (rangesSupported && range != null && range.startsWith("bytes=")) {
+            String[] bounds = range.substring("bytes=".length()).split("-", 2);
+            if (bounds[0].length() == 0) {
+                start = Math.max(0, jar.length - Integer.parseInt(bounds[1]));
+            } else {
+                start = Integer.parseInt(bounds[0]);
+                end = Math.min(end, Integer.parseInt(bounds[1]));
+            }
+            exchange.getResponseHeaders().add("Content-Range", "bytes " + start + "-" + end + "/" + jar.length);
+            exchange.sendResponseHeaders(206, end - start + 1);
+        } else {
+            exchange.sendResponseHeaders(200, jar.length);
+        }
+        OutputStream out = exchange.getResponseBody();
+        try {
+            out.write(jar, start, end - start + 1);
+            bytesServed += end - start + 1;
+        }
+        catch (IOException ex) {
+            // the client gave up on the response
+        }
+        finally {
+            exchange.close();
+        }
+    }
+
+    private static byte[] createJar() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ZipOutputStream out = new ZipOutputStream(bytes);
+        Manifest manifest = new Manifest();
+        manifest.getMainAttributes().putValue("Manifest-Version", "1.0");
+        manifest.getMainAttributes().putValue("Bundle-Version", "2.5");
+        out.putNextEntry(new ZipEntry("META-INF/MANIFEST.MF"));
+        manifest.write(out);
+        out.putNextEntry(new ZipEntry("META-INF/maven/org.foo/foo/pom.properties"));
+        out.write("version=2.5\n".getBytes("UTF-8"));
+        out.putNextEntry(new ZipEntry("org/foo/Foo.class"));
+        out.write(new byte[] {1, 2, 3});
+        // random data doesn't compress, so the jar is much larger than the parts read
+        byte[] data = new byte[256 * 1024];
+        new Random(42).nextBytes(data);
+        out.putNextEntry(new ZipEntry("org/big/Data.bin"));
+        out.write(data);
+        out.close();
+        return bytes.toByteArray();
+    }
+}
@@ -0,0 +1,34 @@
+package org.twdata.pkgscanner;
+
+import junit.framework.TestCase;
+
+import java.util.concurrent.TimeUnit;
+
+public class ScanAgentTest extends TestCase {
+
+    public void testScansSystemClasspath() throws Exception {
+        ScanAgent.premain("include=junit.framework, map=junit.framework=3.8.1", null);
+        ScanResult result = ScanAgent.getResult().get(30, TimeUnit.SECONDS);
+        assertEquals(1, result.getExports().size());
+        ExportPackage export = result.getExports().iterator().next();
+        assertEquals("junit.framework", export.getPackageName());
+        assertEquals("3.8.1", export.getVersion());
+    }
+
+    public void testInvalidArguments() {
+        try {
+            ScanAgent.start("include=junit.*,bogus");
+            fail("Expected an IllegalArgumentException");
+        }
+        catch (IllegalArgumentException expected) {
+        }
+        try {
+            ScanAgent.start("map=junit.*");
+            fail("Expected an IllegalArgumentException");
+        }
+        catch (IllegalArgumentException expected) {
+        }
+        // the agent reports invalid arguments rather than stopping the JVM
+        ScanAgent.premain("bogus", null);
+    }
+}
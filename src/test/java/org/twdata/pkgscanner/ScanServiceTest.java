@@ -0,0 +1,149 @@
+package org.twdata.pkgscanner;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.jar.JarFile;
+
+import static org.twdata.pkgscanner.PackageScanner.*;
+
+public class ScanServiceTest extends TestCase {
+    private final AtomicInteger resolved = new AtomicInteger();
+    private final CountDownLatch entered = new CountDownLatch(1);
+    private final CountDownLatch release = new CountDownLatch(1);
+    private final ClassLoader cl = new URLClassLoader(new URL[] {getClass().getResource("/foo+bar.jar")}, null);
+
+    public void testConcurrentScansAreShared() throws Exception {
+        final ScanService service = new ScanService();
+        ExecutorService executor = Executors.newFixedThreadPool(5);
+        try {
+            List<Future<ScanResult>> results = new ArrayList<Future<ScanResult>>();
+            for (int x = 0; x < 5; x++) {
+                // every caller compiles its own plan
+                final ScanPlan plan = createScanner().compile();
+                results.add(executor.submit(new Callable<ScanResult>() {
+                    public ScanResult call() {
+                        return service.scan(plan);
+                    }
+                }));
+                if (x == 0) {
+                    assertTrue(entered.await(10, TimeUnit.SECONDS));
+                }
+            }
+            for (long end = System.currentTimeMillis() + 10000; service.getSharedScans() < 4; ) {
+                assertTrue(System.currentTimeMillis() < end);
+                Thread.sleep(10);
+            }
+            release.countDown();
+
+            ScanResult first = results.get(0).get(10, TimeUnit.SECONDS);
+            assertEquals("foo", first.getExports().iterator().next().getPackageName());
+            for (Future<ScanResult> result : results) {
+                assertSame(first, result.get(10, TimeUnit.SECONDS));
+            }
+            assertEquals(1, resolved.get());
+
+            // nothing is kept once the scan is done
+            assertNotSame(first, service.scan(createScanner().compile()));
+            assertEquals(2, resolved.get());
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+
+    public void testDifferentScansAreNotShared() throws Exception {
+        final ScanService service = new ScanService();
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<ScanResult> first = executor.submit(new Callable<ScanResult>() {
+                public ScanResult call() {
+                    return service.scan(createScanner().compile());
+                }
+            });
+            assertTrue(entered.await(10, TimeUnit.SECONDS));
+
+            // these don't wait for the first scan, which is held until released
+            service.scan(createScanner().select(jars(include("*.jar")), packages(include("foo", "bar"))).compile());
+            service.scan(createScanner().withScanListener(new ScanListener() {
+                public void elementScanned(File element, List<ExportPackage> exports) {
+                }
+            }).compile());
+            service.scan(createScanner().compile(), getClass().getResource("/foo+bar.jar"));
+            assertEquals(4, resolved.get());
+            assertEquals(0, service.getSharedScans());
+
+            release.countDown();
+            first.get(10, TimeUnit.SECONDS);
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+
+    public void testScansWithDifferentOptionsAreNotShared() throws Exception {
+        final ScanService service = new ScanService();
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<ScanResult> first = executor.submit(new Callable<ScanResult>() {
+                public ScanResult call() {
+                    return service.scan(createScanner().compile());
+                }
+            });
+            assertTrue(entered.await(10, TimeUnit.SECONDS));
+
+            // each option can change the result, so none of these waits for the first scan
+            service.scan(createScanner().useRemoteJars(new RemoteJarCache(new File("target", "remote-jars"))).compile());
+            service.scan(createScanner().useDeclaredPackages().compile());
+            service.scan(createScanner().keepFirstDuplicates().compile());
+            assertEquals(4, resolved.get());
+            assertEquals(0, service.getSharedScans());
+
+            release.countDown();
+            first.get(10, TimeUnit.SECONDS);
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private PackageScanner createScanner() {
+        return new PackageScanner()
+                .useClassLoader(cl)
+                .select(jars(include("*.jar")), packages(include("foo")))
+                .withVersionResolvers(new BlockingResolver());
+    }
+
+    /**
+     * Holds the first scan it is called by until released
+     */
+    private class BlockingResolver implements VersionResolver {
+        public boolean requiresJar() {
+            return false;
+        }
+
+        public String resolveVersion(File jar, JarFile jarFile, OsgiVersionConverter converter) {
+            if (resolved.incrementAndGet() == 1) {
+                entered.countDown();
+                try {
+                    release.await(10, TimeUnit.SECONDS);
+                }
+                catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            return "1.0";
+        }
+    }
+}
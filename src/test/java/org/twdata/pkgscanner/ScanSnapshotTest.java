@@ -0,0 +1,106 @@
+package org.twdata.pkgscanner;
+
+import junit.framework.TestCase;
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+public class ScanSnapshotTest extends TestCase {
+    private File file;
+
+    @Override
+    public void setUp() throws Exception {
+        File tmpDir = new File("target", "snapshottest");
+        tmpDir.mkdirs();
+        file = new File(tmpDir, "scan.snapshot");
+        file.delete();
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        file.delete();
+    }
+
+    public void testWriteAndRead() throws Exception {
+        ScanSnapshot.write(file, 42L, Arrays.asList(
+                new ExportPackage("org.foo.bar", "1.0", new File("/stuff/foobar-1.0.jar")),
+                new ExportPackage("org.foo", null, new File("/stuff/foobar-1.0.jar")),
+                new ExportPackage("com.b\u00e4z", "2.0", new File("/stuff/b\u00e4z.jar"))));
+
+        ScanSnapshot snapshot = ScanSnapshot.open(file);
+        assertEquals(42L, snapshot.getFingerprint());
+        assertEquals(3, snapshot.size());
+
+        List<ExportPackage> list = snapshot.asList();
+        assertEquals("com.b\u00e4z", list.get(0).getPackageName());
+        assertEquals("org.foo", list.get(1).getPackageName());
+        assertNull(list.get(1).getVersion());
+        assertEquals(new File("/stuff/foobar-1.0.jar"), list.get(2).getLocation());
+
+        assertEquals(new ExportPackage("org.foo.bar", "1.0", new File("/stuff/foobar-1.0.jar")), snapshot.find("org.foo.bar"));
+        assertEquals(new File("/stuff/b\u00e4z.jar"), snapshot.find("com.b\u00e4z").getLocation());
+        assertNull(snapshot.find("org.foo.baz"));
+        assertNull(snapshot.find("a"));
+    }
+
+    public void testCorruptSnapshotFailsToOpen() throws Exception {
+        ScanSnapshot.write(file, 42L, Arrays.asList(
+                new ExportPackage("org.foo.bar", "1.0", new File("/stuff/foobar-1.0.jar")),
+                new ExportPackage("org.foo", null, new File("/stuff/foobar-1.0.jar"))));
+        byte[] bytes = FileUtils.readFileToByteArray(file);
+
+        FileUtils.writeByteArrayToFile(file, Arrays.copyOf(bytes, bytes.length - 3));
+        assertOpenFails();
+
+        // the length of the first location string runs past the end of the file
+        byte[] corrupt = bytes.clone();
+        int location = ((bytes[24] & 0xff) << 24) | ((bytes[25] & 0xff) << 16) | ((bytes[26] & 0xff) << 8)
+                | (bytes[27] & 0xff);
+        corrupt[location] = 0x7f;
+        FileUtils.writeByteArrayToFile(file, corrupt);
+        assertOpenFails();
+
+        // location and entry counts whose sum overflows an int
+        corrupt = bytes.clone();
+        for (int x = 16; x < 24; x++) {
+            corrupt[x] = (byte) (x % 4 == 0 ? 0x7f : 0xff);
+        }
+        FileUtils.writeByteArrayToFile(file, corrupt);
+        assertEquals("Truncated package scanner snapshot", assertOpenFails().getMessage());
+    }
+
+    private IOException assertOpenFails() {
+        try {
+            ScanSnapshot.open(file);
+            fail("Expected an IOException");
+            return null;
+        }
+        catch (IOException expected) {
+            return expected;
+        }
+    }
+
+    public void testScannerUsesSnapshotUntilClasspathChanges() throws Exception {
+        File lib = new File(file.getParentFile(), "lib");
+        lib.mkdirs();
+        File jar = new File(lib, "pkg-1.0.jar");
+        FileUtils.copyURLToFile(getClass().getResource("/scanbase/lib/pkg-1.0.jar"), jar);
+
+        PackageScanner scanner = new PackageScanner()
+                .select(PackageScanner.jars(PackageScanner.include("*.jar")), PackageScanner.packages(PackageScanner.include("pkg.*")))
+                .withSnapshot(file);
+        assertEquals(Arrays.asList(new ExportPackage("pkg.in.jar", "1.0.0", jar)), scanner.scan(lib.toURI().toURL()));
+        assertTrue(file.exists());
+
+        // Replace the snapshot content to see whether it gets used
+        long fingerprint = ScanSnapshot.open(file).getFingerprint();
+        ScanSnapshot.write(file, fingerprint, Arrays.asList(new ExportPackage("from.snapshot", null, jar)));
+        assertEquals("from.snapshot", scanner.scan(lib.toURI().toURL()).iterator().next().getPackageName());
+
+        jar.setLastModified(jar.lastModified() - 10000);
+        assertEquals("pkg.in.jar", scanner.scan(lib.toURI().toURL()).iterator().next().getPackageName());
+    }
+}
@@ -0,0 +1,30 @@
+package org.twdata.pkgscanner;
+
+import junit.framework.TestCase;
+
+public class ScanThrottleTest extends TestCase {
+
+    public void testRate() throws InterruptedException {
+        ScanThrottle throttle = new ScanThrottle(1000);
+        assertTrue(throttle.tryAcquire(500, 0));
+        // half a second of reading was paid for, so nothing more can be read for now
+        assertFalse(throttle.tryAcquire(0, 10));
+        assertFalse(throttle.tryAcquire(100, 10));
+        long start = System.nanoTime();
+        while (!throttle.tryAcquire(100, 100)) {
+        }
+        assertTrue(System.nanoTime() - start > 300L * 1000 * 1000);
+    }
+
+    public void testPause() throws InterruptedException {
+        ScanThrottle throttle = new ScanThrottle();
+        assertTrue(throttle.tryAcquire(Long.MAX_VALUE, 0));
+        throttle.pause();
+        assertTrue(throttle.isPaused());
+        assertFalse(throttle.tryAcquire(0, 10));
+        assertFalse(throttle.tryAcquire(0, 0));
+        assertFalse(throttle.tryAcquire(100, 0));
+        throttle.resume();
+        assertTrue(throttle.tryAcquire(0, 10));
+    }
+}
@@ -0,0 +1,83 @@
+package org.twdata.pkgscanner;
+
+import junit.framework.TestCase;
+import org.apache.commons.io.FileUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.PrintStream;
+import java.util.Arrays;
+
+public class ScannerCommandTest extends TestCase {
+    private File tmpDir;
+    private File lib;
+    private ByteArrayOutputStream out;
+    private ByteArrayOutputStream err;
+    private ScannerCommand command;
+
+    @Override
+    public void setUp() throws Exception {
+        tmpDir = new File("target", "commandtest");
+        FileUtils.deleteDirectory(tmpDir);
+        lib = new File(tmpDir, "lib");
+        lib.mkdirs();
+        FileUtils.copyURLToFile(getClass().getResource("/scanbase/lib/pkg-1.0.jar"), new File(lib, "pkg-1.0.jar"));
+        FileUtils.copyURLToFile(getClass().getResource("/foo+bar.jar"), new File(lib, "sub/foo-2.0.jar"));
+
+        out = new ByteArrayOutputStream();
+        err = new ByteArrayOutputStream();
+        command = new ScannerCommand(new PrintStream(out), new PrintStream(err));
+    }
+
+    public void testExportPackage() throws Exception {
+        assertEquals(0, command.run("--include", "pkg.*", lib.getPath() + "/*.jar"));
+        assertEquals("Export-Package: \n\tpkg.in.jar;version=1.0.0\n", out.toString());
+    }
+
+    public void testJsonToFile() throws Exception {
+        File output = new File(tmpDir, "out/exports.json");
+        assertEquals(0, command.run("--include", "pkg.*", "--include", "foo", "--map", "foo=3.1",
+                "--format", "json", "--output", output.getPath(), lib.getPath() + "/**.jar"));
+        String json = FileUtils.readFileToString(output);
+        assertTrue(json, json.contains("{\"package\": \"foo\", \"version\": \"3.1.0\""));
+        assertTrue(json, json.contains("{\"package\": \"pkg.in.jar\", \"version\": \"1.0.0\""));
+    }
+
+    public void testBatch() throws Exception {
+        File batch = new File(tmpDir, "targets.txt");
+        File first = new File(tmpDir, "first.properties");
+        File second = new File(tmpDir, "second.properties");
+        FileUtils.writeLines(batch, Arrays.asList(
+                "# one target per line",
+                "--include pkg.* --output " + first.getPath() + " " + lib.getPath(),
+                "--include foo --output \"" + second.getPath() + "\" " + new File(lib, "sub").getPath()));
+
+        assertEquals(0, command.run("--format", "properties", "--cache-dir", new File(tmpDir, "cache").getPath(),
+                "--batch", batch.getPath()));
+        assertEquals("pkg.in.jar=1.0.0\n", FileUtils.readFileToString(first));
+        assertEquals("foo=2.0.0\n", FileUtils.readFileToString(second));
+        assertEquals(2, new File(tmpDir, "cache").list().length);
+    }
+
+    public void testParallelBatchKeepsOutputOrder() throws Exception {
+        File batch = new File(tmpDir, "targets.txt");
+        FileUtils.writeLines(batch, Arrays.asList(
+                "--include pkg.* " + lib.getPath(),
+                "--include foo " + new File(lib, "sub").getPath(),
+                "--include pkg.* " + lib.getPath()));
+
+        assertEquals(0, command.run("--format", "properties", "--threads", "3", "--batch", batch.getPath()));
+        assertEquals("pkg.in.jar=1.0.0\nfoo=2.0.0\npkg.in.jar=1.0.0\n", out.toString("UTF-8"));
+    }
+
+    public void testErrors() throws Exception {
+        assertEquals(2, command.run("--format", "xml", lib.getPath()));
+        assertTrue(err.toString().contains("Unknown format xml"));
+        assertEquals(1, command.run(new File(tmpDir, "missing.jar").getPath()));
+        assertEquals(1, command.run());
+    }
+
+    public void testTokenize() {
+        assertEquals(Arrays.asList("--output", "a b.txt", "", "lib"), ScannerCommand.tokenize(" --output \"a b.txt\" \"\"  lib"));
+    }
+}
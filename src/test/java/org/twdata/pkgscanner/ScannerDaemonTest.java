@@ -0,0 +1,84 @@
+package org.twdata.pkgscanner;
+
+import junit.framework.TestCase;
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermissions;
+
+public class ScannerDaemonTest extends TestCase {
+    private File lib;
+
+    @Override
+    public void setUp() throws Exception {
+        File tmpDir = new File("target", "daemontest");
+        FileUtils.deleteDirectory(tmpDir);
+        lib = new File(tmpDir, "lib");
+        lib.mkdirs();
+        FileUtils.copyURLToFile(getClass().getResource("/scanbase/lib/pkg-1.0.jar"), new File(lib, "pkg-1.0.jar"));
+    }
+
+    public void testScansUntilStopped() throws Exception {
+        JarContentCache cache = new JarContentCache();
+        final ScannerDaemon daemon = new ScannerDaemon(0, 0, cache);
+        Thread server = new Thread(new Runnable() {
+            public void run() {
+                daemon.serve();
+            }
+        });
+        server.start();
+
+        File portFile = new File(lib.getParentFile(), "daemon.port");
+        daemon.writePortFile(portFile);
+        if (FileSystems.getDefault().supportedFileAttributeViews().contains("posix")) {
+            assertEquals(PosixFilePermissions.fromString("rw-------"),
+                    Files.getPosixFilePermissions(portFile.toPath()));
+        }
+
+        ScannerDaemon.Response response = ScannerDaemon.send(portFile,
+                "--base-dir", lib.getParentFile().getAbsolutePath(), "--include", "pkg.*", "lib/*.jar");
+        assertEquals(response.getErr(), 0, response.getStatus());
+        assertEquals("Export-Package: \n\tpkg.in.jar;version=1.0.0\n", response.getOut());
+        assertEquals(1, cache.size());
+
+        response = ScannerDaemon.send(daemon.getPort(), daemon.getToken(), "--include", "pkg.*", lib.getAbsolutePath());
+        assertEquals("Export-Package: \n\tpkg.in.jar;version=1.0.0\n", response.getOut());
+
+        response = ScannerDaemon.send(portFile, new File(lib, "missing.jar").getAbsolutePath());
+        assertEquals(1, response.getStatus());
+        assertTrue(response.getErr(), response.getErr().contains("No such file"));
+
+        // files would be written as the daemon user
+        File output = new File(lib.getParentFile(), "out.txt");
+        response = ScannerDaemon.send(portFile, "--output", output.getAbsolutePath(), lib.getAbsolutePath());
+        assertEquals(2, response.getStatus());
+        assertTrue(response.getErr(), response.getErr().contains("--output is not allowed"));
+        assertFalse(output.exists());
+        response = ScannerDaemon.send(portFile, "--cache-dir", output.getAbsolutePath(), lib.getAbsolutePath());
+        assertEquals(2, response.getStatus());
+
+        // requests without the token are rejected, even to stop the daemon
+        response = ScannerDaemon.send(daemon.getPort(), "guess", ScannerDaemon.STOP);
+        assertEquals(2, response.getStatus());
+        assertTrue(response.getErr(), response.getErr().contains("Invalid token"));
+        assertTrue(server.isAlive());
+
+        assertEquals(0, ScannerDaemon.send(portFile, ScannerDaemon.STOP).getStatus());
+        server.join(10000);
+        assertFalse(server.isAlive());
+    }
+
+    public void testStopsWhenIdle() throws Exception {
+        final ScannerDaemon daemon = new ScannerDaemon(0, 200, new JarContentCache());
+        Thread server = new Thread(new Runnable() {
+            public void run() {
+                daemon.serve();
+            }
+        });
+        server.start();
+        server.join(10000);
+        assertFalse(server.isAlive());
+    }
+}